@@ -32,6 +32,7 @@ CREATE TABLE `customer` (
   `last_name` varchar(45) NOT NULL,
   `address` varchar(45) NOT NULL,
   `phone` varchar(45) NOT NULL,
+  `version` bigint(20) NOT NULL DEFAULT '0',
   PRIMARY KEY (`user_name`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 /*!40101 SET character_set_client = @saved_cs_client */;
@@ -53,8 +54,13 @@ DROP TABLE IF EXISTS `customer_cart`;
 /*!40101 SET @saved_cs_client     = @@character_set_client */;
 /*!40101 SET character_set_client = utf8 */;
 CREATE TABLE `customer_cart` (
+  `id_cart_item` int(11) NOT NULL AUTO_INCREMENT,
+  `user_name` varchar(45) NOT NULL,
   `id_item` int(11) NOT NULL,
-  `user_name` varchar(45) NOT NULL
+  `quantity` int(11) NOT NULL,
+  PRIMARY KEY (`id_cart_item`),
+  UNIQUE KEY `user_item` (`user_name`,`id_item`),
+  KEY `id_item` (`id_item`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
@@ -67,6 +73,29 @@ LOCK TABLES `customer_cart` WRITE;
 /*!40000 ALTER TABLE `customer_cart` ENABLE KEYS */;
 UNLOCK TABLES;
 
+--
+-- Table structure for table `id_allocation`
+--
+
+DROP TABLE IF EXISTS `id_allocation`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `id_allocation` (
+  `name` varchar(45) NOT NULL,
+  `next_id` int(11) NOT NULL,
+  PRIMARY KEY (`name`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `id_allocation`
+--
+
+LOCK TABLES `id_allocation` WRITE;
+/*!40000 ALTER TABLE `id_allocation` DISABLE KEYS */;
+/*!40000 ALTER TABLE `id_allocation` ENABLE KEYS */;
+UNLOCK TABLES;
+
 --
 -- Table structure for table `order`
 --
@@ -77,9 +106,11 @@ DROP TABLE IF EXISTS `order`;
 CREATE TABLE `order` (
   `id_order` int(11) NOT NULL AUTO_INCREMENT,
   `customer_name` varchar(45) NOT NULL,
-  `created` varchar(45) NOT NULL,
-  `shipped` varchar(45) DEFAULT NULL,
-  PRIMARY KEY (`id_order`)
+  `created` date NOT NULL,
+  `shipped` date DEFAULT NULL,
+  `version` bigint(20) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`id_order`),
+  KEY `customer_name` (`customer_name`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
@@ -101,7 +132,10 @@ DROP TABLE IF EXISTS `order_items`;
 /*!40101 SET character_set_client = utf8 */;
 CREATE TABLE `order_items` (
   `id_order` int(11) NOT NULL,
-  `id_product` varchar(45) NOT NULL
+  `id_product` varchar(45) NOT NULL,
+  `quantity` int(11) NOT NULL DEFAULT '1',
+  `unit_price` double NOT NULL DEFAULT '0',
+  KEY `id_order` (`id_order`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
@@ -130,6 +164,7 @@ CREATE TABLE `product` (
   `image` varchar(45) DEFAULT NULL,
   `price` double NOT NULL,
   `quantity` int(11) NOT NULL,
+  `version` bigint(20) NOT NULL DEFAULT '0',
   PRIMARY KEY (`id_product`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 /*!40101 SET character_set_client = @saved_cs_client */;
@@ -142,6 +177,29 @@ LOCK TABLES `product` WRITE;
 /*!40000 ALTER TABLE `product` DISABLE KEYS */;
 /*!40000 ALTER TABLE `product` ENABLE KEYS */;
 UNLOCK TABLES;
+
+--
+-- Table structure for table `table_version`
+--
+
+DROP TABLE IF EXISTS `table_version`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `table_version` (
+  `name` varchar(45) NOT NULL,
+  `version` bigint(20) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`name`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `table_version`
+--
+
+LOCK TABLES `table_version` WRITE;
+/*!40000 ALTER TABLE `table_version` DISABLE KEYS */;
+/*!40000 ALTER TABLE `table_version` ENABLE KEYS */;
+UNLOCK TABLES;
 /*!40103 SET TIME_ZONE=@OLD_TIME_ZONE */;
 
 /*!40101 SET SQL_MODE=@OLD_SQL_MODE */;
@@ -17,6 +17,7 @@ import se.erikwelander.ecommerce.repository.sql.SQLConnector;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.Response;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
@@ -33,21 +34,28 @@ public class AdminService extends WebShopService
     {
         if (command.equals("reset-repo"))
         {
+            // Unflushed carts would otherwise be written back into the empty tables
+            customerCache.invalidateAll();
             SQLConnector sql = new SQLConnector();
-            PreparedStatement preparedStatement = sql.prepareStatement("TRUNCATE TABLE customer_cart;");
-            sql.queryUpdate(preparedStatement);
+            try (Connection connection = sql.getConnection())
+            {
+                PreparedStatement preparedStatement = sql.prepareStatement(connection, "TRUNCATE TABLE customer_cart;");
+                sql.queryUpdate(preparedStatement);
 
-            preparedStatement = sql.prepareStatement("TRUNCATE TABLE order_items;");
-            sql.queryUpdate(preparedStatement);
+                preparedStatement = sql.prepareStatement(connection, "TRUNCATE TABLE order_items;");
+                sql.queryUpdate(preparedStatement);
 
-            preparedStatement = sql.prepareStatement("TRUNCATE TABLE product;");
-            sql.queryUpdate(preparedStatement);
+                preparedStatement = sql.prepareStatement(connection, "TRUNCATE TABLE product;");
+                sql.queryUpdate(preparedStatement);
 
-            preparedStatement = sql.prepareStatement("TRUNCATE TABLE `order`;");
-            sql.queryUpdate(preparedStatement);
+                preparedStatement = sql.prepareStatement(connection, "TRUNCATE TABLE `order`;");
+                sql.queryUpdate(preparedStatement);
 
-            preparedStatement = sql.prepareStatement("TRUNCATE TABLE customer;");
-            sql.queryUpdate(preparedStatement);
+                preparedStatement = sql.prepareStatement(connection, "TRUNCATE TABLE customer;");
+                sql.queryUpdate(preparedStatement);
+            }
+            productCache.invalidateAll();
+            customerCache.invalidateAll();
 
             return Response.ok("SQLRepo has been reset").build();
 
@@ -56,6 +64,32 @@ public class AdminService extends WebShopService
 //			 shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
 //			 return Response.ok("InMemoryRepo has been reset").build();
         }
+        if (command.equals("cache-stats"))
+        {
+            return Response.ok(String.format("Product cache: %d entries, hit ratio %.3f (%d hits, %d misses), %d evictions, %d expirations",
+                    productCache.size(),
+                    productCache.getHitRatio(),
+                    productCache.getHits(),
+                    productCache.getMisses(),
+                    productCache.getEvictions(),
+                    productCache.getExpirations())
+                    + String.format("\nCustomer cache: %d entries, %d unflushed, hit ratio %.3f (%d hits, %d misses), %d evictions, %d customers flushed",
+                    customerCache.size(),
+                    customerCache.getDirtyCount(),
+                    customerCache.getHitRatio(),
+                    customerCache.getHits(),
+                    customerCache.getMisses(),
+                    customerCache.getEvictions(),
+                    customerCache.getFlushedCustomers())).build();
+        }
+        if (command.equals("worker-stats"))
+        {
+            return Response.ok(String.format("Workers (%s threads): %d busy, %d queued, %d requests turned away",
+                    workerPool.isVirtual() ? "virtual" : "platform",
+                    workerPool.getActiveCount(),
+                    workerPool.getQueuedCount(),
+                    workerPool.getRejectedCount())).build();
+        }
         return Response.status(400).entity("Invalid command received").build();
     }
 }
\ No newline at end of file
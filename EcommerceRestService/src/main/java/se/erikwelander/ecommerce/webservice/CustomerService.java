@@ -17,6 +17,8 @@ import se.erikwelander.ecommerce.model.Customer;
 import se.erikwelander.ecommerce.model.Order;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.*;
 import javax.ws.rs.core.Response.Status;
 import java.net.URI;
@@ -38,92 +40,123 @@ public final class CustomerService extends WebShopService
     //  Hämta en användare med ett visst id
     @GET
     @Path ("{username}")
-    public Response getCustomer (@PathParam ("username") final String username)
+    public void getCustomer (@Suspended final AsyncResponse asyncResponse, @PathParam ("username") final String username)
     {
-        Customer customer = shopService.getCustomer(username);
-        return Response.ok(customer).build();
+        async(asyncResponse, () ->
+        {
+            Customer customer = shopService.getCustomer(username);
+            return okWithVersion(customer, customer.version);
+        });
     }
 
     //  Skapa en ny användare – detta ska returnera en länk till den skapade
     // användaren i Location-headern
     @POST
-    public Response createCustomer (final Customer customer)
+    public void createCustomer (@Suspended final AsyncResponse asyncResponse, final Customer customer)
     {
-        shopService.addCustomer(customer);
+        async(asyncResponse, () ->
+        {
+            shopService.addCustomer(customer);
 
-        final URI location = uriInfo.getAbsolutePathBuilder().path(customer.userName).build();
-        return Response.created(location).build();
+            final URI location = uriInfo.getAbsolutePathBuilder().path(customer.userName).build();
+            return Response.created(location).build();
+        });
     }
 
     //  Uppdatera en användare
     @PUT
     @Path ("{username}")
-    public Response putCustomer (@PathParam ("username") final String username, final Customer customer)
+    public void putCustomer (@Suspended final AsyncResponse asyncResponse, @PathParam ("username") final String username, @HeaderParam ("If-Match") final String ifMatch, final Customer customer)
     {
-        // if path username and new customer username matches then update
-        // repository
-        if (username.equals(customer.userName))
+        async(asyncResponse, () ->
         {
-            shopService.updateCustomer(customer);
-            return Response.status(Status.NO_CONTENT).build();
-        }
-        // otherwise send error code
-        return Response.status(Status.BAD_REQUEST).entity("Username mismatch between path and new customer info").build();
+            // if path username and new customer username matches then update
+            // repository
+            if (username.equals(customer.userName))
+            {
+                long version;
+                try
+                {
+                    version = ifMatchVersion(ifMatch);
+                } catch (IllegalArgumentException e)
+                {
+                    return Response.status(Status.BAD_REQUEST).entity("If-Match must be an ETag from this service.").build();
+                }
+                shopService.updateCustomer(new Customer(customer.userName, customer.password, customer.email, customer.firstName,
+                        customer.lastName, customer.address, customer.phoneNumber, version));
+                return Response.status(Status.NO_CONTENT).build();
+            }
+            // otherwise send error code
+            return Response.status(Status.BAD_REQUEST).entity("Username mismatch between path and new customer info").build();
+        });
     }
 
     //  Ta bort en användare (eller sätta den som inaktiv)
     @DELETE
     @Path ("{username}")
-    public Response deleteCustomer (@PathParam ("username") final String username)
+    public void deleteCustomer (@Suspended final AsyncResponse asyncResponse, @PathParam ("username") final String username)
     {
-        shopService.removeCustomer(username);
+        async(asyncResponse, () ->
+        {
+            shopService.removeCustomer(username);
 
-        return Response.noContent().build();
+            return Response.noContent().build();
+        });
     }
 
     @GET
     @Path ("{username}/cart")
-    public Response getOrder (@PathParam ("username") final String username)
+    public void getOrder (@Suspended final AsyncResponse asyncResponse, @PathParam ("username") final String username)
     {
-        ArrayList<Integer> cartList;
-        cartList = shopService.getCustomer(username).getAllShoppingCartItems();
-
-        // GenericEntity is created for IntegerListMapper generic handling
-        return Response.ok(new GenericEntity<ArrayList<Integer>>(cartList)
+        async(asyncResponse, () ->
         {
-        }).build();
+            ArrayList<Integer> cartList;
+            cartList = shopService.getCustomer(username).getAllShoppingCartItems();
+
+            // GenericEntity is created for IntegerListMapper generic handling
+            return Response.ok(new GenericEntity<ArrayList<Integer>>(cartList)
+            {
+            }).build();
+        });
     }
 
     @POST
     @Path ("{username}/cart")
-    public Response addToCart (@PathParam ("username") final String username,
-                               @QueryParam ("amount") @DefaultValue ("1") final Integer amount,
-                               final String productId)
+    public void addToCart (@Suspended final AsyncResponse asyncResponse,
+                           @PathParam ("username") final String username,
+                           @QueryParam ("amount") @DefaultValue ("1") final Integer amount,
+                           final String productId)
     {
-        try
+        async(asyncResponse, () ->
         {
-            int productIdInt = Integer.parseInt(productId);
-            shopService.addProductToCustomer(productIdInt, username, amount);
-
-            final URI location = uriInfo.getAbsolutePathBuilder().build();
-            return Response.created(location).build();
-        } catch (NumberFormatException e)
-        {
-            return Response.status(Status.BAD_REQUEST).entity("Expected body to be parsable as integers").build();
-        }
+            try
+            {
+                int productIdInt = Integer.parseInt(productId);
+                shopService.addProductToCustomer(productIdInt, username, amount);
+
+                final URI location = uriInfo.getAbsolutePathBuilder().build();
+                return Response.created(location).build();
+            } catch (NumberFormatException e)
+            {
+                return Response.status(Status.BAD_REQUEST).entity("Expected body to be parsable as integers").build();
+            }
+        });
     }
 
     //  Hämta en användares alla order
     @GET
     @Path ("{username}/orders")
-    public Response getOrders (@PathParam ("username") final String username)
+    public void getOrders (@Suspended final AsyncResponse asyncResponse, @PathParam ("username") final String username)
     {
-        ArrayList<Order> orderList;
-        orderList = new ArrayList<Order>(shopService.getOrdersFromUser(username));
-
-        // GenericEntity is created for IntegerListMapper generic handling
-        return Response.ok(new GenericEntity<ArrayList<Order>>(orderList)
+        async(asyncResponse, () ->
         {
-        }).build();
+            ArrayList<Order> orderList;
+            orderList = new ArrayList<Order>(shopService.getOrdersFromUser(username));
+
+            // GenericEntity is created for IntegerListMapper generic handling
+            return Response.ok(new GenericEntity<ArrayList<Order>>(orderList)
+            {
+            }).build();
+        });
     }
 }
\ No newline at end of file
@@ -16,9 +16,12 @@ import se.erikwelander.ecommerce.exception.RepositoryException;
 import se.erikwelander.ecommerce.model.Order;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
 import java.net.URI;
 
@@ -38,36 +41,56 @@ public final class OrderService extends WebShopService
     //  Hämta en viss order för en användare
     @GET
     @Path ("{orderId}")
-    public Response getOrder (@PathParam ("orderId") final int orderId)
+    public void getOrder (@Suspended final AsyncResponse asyncResponse, @PathParam ("orderId") final int orderId)
     {
-        Order order = shopService.getOrder(orderId);
-        return Response.ok(order).build();
+        async(asyncResponse, () ->
+        {
+            Order order = shopService.getOrder(orderId);
+            return okWithVersion(order, order.version);
+        });
     }
 
     //  Skapa en order för en användare
     @POST
-    public Response createOrder (final String username)
+    public void createOrder (@Suspended final AsyncResponse asyncResponse, final String username)
     {
-        Order newOrder = shopService.createOrder(username);
+        async(asyncResponse, () ->
+        {
+            Order newOrder = shopService.createOrder(username);
 
-        final URI location = uriInfo.getAbsolutePathBuilder().path(Integer.toString(newOrder.id)).build();
-        return Response.created(location).build();
+            final URI location = uriInfo.getAbsolutePathBuilder().path(Integer.toString(newOrder.id)).build();
+            return Response.created(location).build();
+        });
     }
 
     //  Uppdatera en order för en användare
     @PUT
-    public Response updateOrder (final Order order)
+    public void updateOrder (@Suspended final AsyncResponse asyncResponse, @HeaderParam ("If-Match") final String ifMatch, final Order order)
     {
-        shopService.updateOrder(order);
-        return Response.ok().build();
+        async(asyncResponse, () ->
+        {
+            long version;
+            try
+            {
+                version = ifMatchVersion(ifMatch);
+            } catch (IllegalArgumentException e)
+            {
+                return Response.status(Status.BAD_REQUEST).entity("If-Match must be an ETag from this service.").build();
+            }
+            shopService.updateOrder(order.withVersion(version));
+            return Response.ok().build();
+        });
     }
 
     //  Ta bort en order för en användare
     @DELETE
     @Path ("{orderId}")
-    public Response removeOrder (@PathParam ("orderId") final Integer orderId)
+    public void removeOrder (@Suspended final AsyncResponse asyncResponse, @PathParam ("orderId") final Integer orderId)
     {
-        shopService.removeOrder(orderId);
-        return Response.noContent().build();
+        async(asyncResponse, () ->
+        {
+            shopService.removeOrder(orderId);
+            return Response.noContent().build();
+        });
     }
 }
\ No newline at end of file
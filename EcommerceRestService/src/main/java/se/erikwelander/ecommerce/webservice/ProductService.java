@@ -12,20 +12,30 @@
 /////////////////////////////////////////////////////////////////////////////
 package se.erikwelander.ecommerce.webservice;
 
+import com.google.gson.JsonParseException;
 import se.erikwelander.ecommerce.exception.RepositoryException;
 import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.webservice.util.ProductListMapper;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.*;
 import javax.ws.rs.core.Response.Status;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.List;
 
 @Path ("ecommerce/products")
 @Produces (MediaType.APPLICATION_JSON)
 @Consumes (MediaType.APPLICATION_JSON)
 public class ProductService extends WebShopService
 {
+    private static final int IMPORT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+
     @Context
     private UriInfo uriInfo;
 
@@ -37,73 +47,190 @@ public class ProductService extends WebShopService
     //  Skapa en ny produkt – detta ska returnera en länk till den skapade
     // produkten i Location-headern
     @POST
-    public Response createProduct (final Product inProduct)
+    public void createProduct (@Suspended final AsyncResponse asyncResponse, final Product inProduct)
+    {
+        async(asyncResponse, () ->
+        {
+            Product product = shopService.addProduct(inProduct);
+            final URI location = uriInfo.getAbsolutePathBuilder().path("" + product.id).build();
+            return Response.created(location).build();
+        });
+    }
+
+    //  Skapa många produkter på en gång, svarar med antalet skapade produkter
+    @POST
+    @Path ("batch")
+    public void createProducts (@Suspended final AsyncResponse asyncResponse, final InputStream entityStream)
     {
-        Product product = shopService.addProduct(inProduct);
-        final URI location = uriInfo.getAbsolutePathBuilder().path("" + product.id).build();
-        return Response.created(location).build();
+        async(asyncResponse, () ->
+        {
+            // Read as a stream and written in batches, each batch is committed on its own
+            final List<Product> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            final int[] added = {0};
+            try
+            {
+                ProductListMapper.readProducts(entityStream, product ->
+                {
+                    batch.add(product);
+                    if (batch.size() == IMPORT_BATCH_SIZE)
+                    {
+                        added[0] += shopService.addProducts(batch).size();
+                        batch.clear();
+                    }
+                });
+            } catch (final JsonParseException exception)
+            {
+                return Response.status(Status.BAD_REQUEST)
+                        .entity(exception.getMessage() + ". " + added[0] + " products were added before the error.").build();
+            }
+            if (!batch.isEmpty())
+            {
+                added[0] += shopService.addProducts(batch).size();
+            }
+            return Response.ok(Integer.toString(added[0])).build();
+        });
     }
 
     //  Hämta alla produkter
+    // Without after and limit the whole catalog is listed, otherwise one page with a Link header to the next
     @GET
-    public Response getProducts ()
+    public void getProducts (@Suspended final AsyncResponse asyncResponse, @QueryParam ("after") final String after, @QueryParam ("limit") final String limit)
     {
-        ArrayList<Product> products = (ArrayList<Product>) shopService.getAllProducts();
-
-        // GenericEntity is created for ProductListMapper generic handling
-        return Response.ok(new GenericEntity<ArrayList<Product>>(products)
+        async(asyncResponse, () ->
         {
-        }).build();
+            if (after == null && limit == null)
+            {
+                // Only an ETag, a removed product does not make the catalog any newer
+                final EntityTag eTag = new EntityTag(Long.toHexString(shopService.getProductsVersion()));
+                final Response.ResponseBuilder notModified = request.evaluatePreconditions(eTag);
+                if (notModified != null)
+                {
+                    return notModified.build();
+                }
+
+                // Streamed from the repository to the client one product at a time, the catalog is never held as a list
+                final StreamingOutput products = entityStream -> ProductListMapper.writeProducts(shopService::forEachProduct, entityStream);
+                return Response.ok(products).tag(eTag).build();
+            }
+
+            final int afterInt, limitInt;
+            try
+            {
+                afterInt = after == null ? 0 : Integer.parseInt(after);
+                limitInt = limit == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limit);
+            } catch (NumberFormatException e)
+            {
+                return Response.status(Status.BAD_REQUEST).entity("after and limit must be parsable to integers.").build();
+            }
+            if (limitInt < 1 || limitInt > MAX_PAGE_SIZE)
+            {
+                return Response.status(Status.BAD_REQUEST).entity("limit must be between 1 and " + MAX_PAGE_SIZE + ".").build();
+            }
+
+            // One product more than asked for tells whether there is a next page without another query
+            final List<Product> page = shopService.getProductsAfter(afterInt, limitInt + 1);
+            final boolean hasNext = page.size() > limitInt;
+            if (hasNext)
+            {
+                page.remove(limitInt);
+            }
+            final EntityTag eTag = pageTag(page, hasNext);
+            final Response.ResponseBuilder notModified = request.evaluatePreconditions(eTag);
+            if (notModified != null)
+            {
+                return notModified.build();
+            }
+
+            final StreamingOutput products = entityStream -> ProductListMapper.writeProducts(page::forEach, entityStream);
+            final Response.ResponseBuilder response = Response.ok(products).tag(eTag);
+            if (hasNext)
+            {
+                final URI next = uriInfo.getRequestUriBuilder()
+                        .replaceQueryParam("after", page.get(limitInt - 1).id)
+                        .replaceQueryParam("limit", limitInt)
+                        .build();
+                response.link(next, "next");
+            }
+            return response.build();
+        });
     }
 
     //  Hämta en produkt med ett visst id
     @GET
     @Path ("{productId}")
-    public Response getProduct (@PathParam ("productId") final String productId)
+    public void getProduct (@Suspended final AsyncResponse asyncResponse, @PathParam ("productId") final String productId)
     {
-        try
+        async(asyncResponse, () ->
         {
-            int productIdInt = Integer.parseInt(productId);
-            Product product = shopService.getProduct(productIdInt);
+            try
+            {
+                int productIdInt = Integer.parseInt(productId);
+                Product product = shopService.getProduct(productIdInt);
 
-            return Response.ok(product).build();
-        } catch (NumberFormatException e)
-        {
-            return Response.status(Status.BAD_REQUEST).entity("Product id must be parsable to an integer.").build();
-        }
+                return okWithVersion(product, product.version);
+            } catch (NumberFormatException e)
+            {
+                return Response.status(Status.BAD_REQUEST).entity("Product id must be parsable to an integer.").build();
+            }
+        });
     }
 
     //  Uppdatera en produkt
     @PUT
     @Path ("{productId}")
-    public Response putProduct (@PathParam ("productId") final String productId, Product inProduct)
+    public void putProduct (@Suspended final AsyncResponse asyncResponse, @PathParam ("productId") final String productId, @HeaderParam ("If-Match") final String ifMatch, Product inProduct)
     {
-        try
+        async(asyncResponse, () ->
         {
-            int productIdInt = Integer.parseInt(productId);
-            Product product = new Product(productIdInt, inProduct.getQuantity(), inProduct.price, inProduct.title, inProduct.category, inProduct.manufacturer, inProduct.description, inProduct.image);
+            try
+            {
+                int productIdInt = Integer.parseInt(productId);
+                long version;
+                try
+                {
+                    version = ifMatchVersion(ifMatch);
+                } catch (IllegalArgumentException e)
+                {
+                    return Response.status(Status.BAD_REQUEST).entity("If-Match must be an ETag from this service.").build();
+                }
+                Product product = new Product(productIdInt, inProduct.getQuantity(), inProduct.price, inProduct.title, inProduct.category, inProduct.manufacturer, inProduct.description, inProduct.image, version);
 
-            shopService.updateProduct(product);
-            return Response.status(Status.NO_CONTENT).build();
-        } catch (NumberFormatException e)
-        {
-            return Response.status(Status.BAD_REQUEST).entity("Product id must be parsable to an integer.").build();
-        }
+                shopService.updateProduct(product);
+                return Response.status(Status.NO_CONTENT).build();
+            } catch (NumberFormatException e)
+            {
+                return Response.status(Status.BAD_REQUEST).entity("Product id must be parsable to an integer.").build();
+            }
+        });
     }
 
     //  Ta bort en produkt (eller sätta den som inaktiv)
     @DELETE
     @Path ("{productId}")
-    public Response deleteProduct (@PathParam ("productId") final String productId)
+    public void deleteProduct (@Suspended final AsyncResponse asyncResponse, @PathParam ("productId") final String productId)
     {
-        try
+        async(asyncResponse, () ->
         {
-            int productIdInt = Integer.parseInt(productId);
-            shopService.removeProduct(productIdInt);
-            return Response.noContent().build();
-        } catch (NumberFormatException e)
+            try
+            {
+                int productIdInt = Integer.parseInt(productId);
+                shopService.removeProduct(productIdInt);
+                return Response.noContent().build();
+            } catch (NumberFormatException e)
+            {
+                return Response.status(Status.BAD_REQUEST).entity("Product id must be parsable to an integer.").build();
+            }
+        });
+    }
+
+    // Changes when a product on the page changes, comes or goes, or when the page gets a next page
+    private static EntityTag pageTag (final List<Product> page, final boolean hasNext)
+    {
+        long tag = hasNext ? 1 : 0;
+        for (Product product : page)
         {
-            return Response.status(Status.BAD_REQUEST).entity("Product id must be parsable to an integer.").build();
+            tag = 31 * (31 * tag + product.id) + product.version;
         }
+        return new EntityTag(Long.toHexString(tag));
     }
-}
\ No newline at end of file
+}
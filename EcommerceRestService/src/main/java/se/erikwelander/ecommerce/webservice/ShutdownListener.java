@@ -0,0 +1,31 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        ShutdownListener.java
+// Encoding:	UTF-8
+//
+// Purpose:     Shuts down the shop service when the container stops the
+//              application, so the cached carts are written back and the
+//              worker threads and database connections do not outlive it.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.webservice;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+public final class ShutdownListener implements ServletContextListener
+{
+    @Override
+    public void contextInitialized (final ServletContextEvent event)
+    {
+    }
+
+    @Override
+    public void contextDestroyed (final ServletContextEvent event)
+    {
+        WebShopService.shutdown();
+    }
+}
@@ -14,23 +14,150 @@
 package se.erikwelander.ecommerce.webservice;
 
 import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.repository.UnitOfWork;
+import se.erikwelander.ecommerce.repository.cache.CachingCustomerRepository;
+import se.erikwelander.ecommerce.repository.cache.CachingProductRepository;
+import se.erikwelander.ecommerce.repository.sql.SQLConnector;
 import se.erikwelander.ecommerce.repository.sql.SQLCustomerRepository;
 import se.erikwelander.ecommerce.repository.sql.SQLOrderRepository;
 import se.erikwelander.ecommerce.repository.sql.SQLProductRepository;
+import se.erikwelander.ecommerce.repository.sql.SQLUnitOfWork;
 import se.erikwelander.ecommerce.service.ShopService;
 
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 public abstract class WebShopService
 {
+    private static final Logger logger = Logger.getLogger(WebShopService.class.getName());
+
+    // The catalog is read far more often than it changes
+    private static final int PRODUCT_CACHE_SIZE = 10000;
+    private static final long PRODUCT_CACHE_TTL_MILLIS = 30 * 1000;
+    // Active shoppers' carts are kept in memory and written back in batches
+    private static final int CUSTOMER_CACHE_SIZE = 10000;
+    private static final long CUSTOMER_CACHE_FLUSH_INTERVAL_MILLIS = 5 * 1000;
+    // Requests run on their own bounded pool, overridable with -Decommerce.workers and friends.
+    // More workers than database connections only moves the queue into the connection pool.
+    // -Decommerce.workers.virtual=true gives every request a virtual thread on Java 21 and later,
+    // ecommerce.workers + ecommerce.workers.queue is then the number of requests let in at a time.
+    private static final boolean WORKER_VIRTUAL_THREADS = Boolean.getBoolean("ecommerce.workers.virtual");
+    private static final int WORKER_THREADS = Integer.getInteger("ecommerce.workers", 32);
+    private static final int WORKER_QUEUE_LIMIT = Integer.getInteger("ecommerce.workers.queue", 256);
+    private static final int WORKER_RETRY_AFTER_SECONDS = Integer.getInteger("ecommerce.workers.retryAfterSeconds", 1);
+    // How long a stopping container waits for the requests in progress
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 30 * 1000;
+
     static ShopService shopService;
+    static CachingProductRepository productCache;
+    static CachingCustomerRepository customerCache;
+    static WorkerPool workerPool;
+    // Set by shutdown, the container may still hand requests to the stopped application
+    private static boolean stopped;
+
+    @Context
+    Request request;
 
     WebShopService () throws RepositoryException
     {
+        start();
+    }
+
+    // Builds the one set of caches, workers and service every resource shares, under the same lock as shutdown
+    // so two first requests can not each build one and a stopped application is not started again
+    private static synchronized void start () throws RepositoryException
+    {
+        if (stopped)
+        {
+            throw new WebApplicationException(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity("The web shop is shutting down.")
+                    .build());
+        }
         if (shopService == null)
         {
+            // One unit of work for all, the caches drop what an order changed when the service commits it
+            final UnitOfWork unitOfWork = new SQLUnitOfWork();
+            productCache = new CachingProductRepository(new SQLProductRepository(), unitOfWork, PRODUCT_CACHE_SIZE, PRODUCT_CACHE_TTL_MILLIS);
+            customerCache = new CachingCustomerRepository(new SQLCustomerRepository(), unitOfWork,
+                    CUSTOMER_CACHE_SIZE, CUSTOMER_CACHE_FLUSH_INTERVAL_MILLIS);
+            workerPool = new WorkerPool(WORKER_VIRTUAL_THREADS, WORKER_THREADS, WORKER_QUEUE_LIMIT, WORKER_RETRY_AFTER_SECONDS);
             shopService = new ShopService(
-                    new SQLCustomerRepository(),
-                    new SQLProductRepository(),
-                    new SQLOrderRepository());
+                    customerCache,
+                    productCache,
+                    new SQLOrderRepository(),
+                    unitOfWork);
+        }
+    }
+
+    // Called by ShutdownListener when the container stops. The requests in progress are answered first, then the
+    // cached carts are written back while there still are connections to write them with.
+    static synchronized void shutdown ()
+    {
+        if (stopped)
+        {
+            return;
+        }
+        stopped = true;
+        if (shopService == null)
+        {
+            return;
+        }
+        if (!workerPool.shutdown(SHUTDOWN_TIMEOUT_MILLIS))
+        {
+            logger.warning("Requests were still in progress after " + SHUTDOWN_TIMEOUT_MILLIS + " ms, shutting down anyway");
+        }
+        try
+        {
+            customerCache.close();
+        } catch (final RepositoryException exception)
+        {
+            logger.log(Level.SEVERE, "Could not write back the cached shopping carts", exception);
+        }
+        shopService.close();
+        SQLConnector.shutdown();
+    }
+
+    // Answers the suspended request from the worker pool, the container's thread returns at once
+    void async (final AsyncResponse asyncResponse, final Callable<Response> handler)
+    {
+        workerPool.submit(asyncResponse, handler);
+    }
+
+    // The entity with its version as a strong ETag and as Last-Modified. A client that already has
+    // this version gets a 304 and the entity is never serialized.
+    Response okWithVersion (final Object entity, final long version)
+    {
+        final EntityTag eTag = new EntityTag(Long.toString(version));
+        final Date lastModified = new Date(version);
+        final Response.ResponseBuilder notModified = request.evaluatePreconditions(lastModified, eTag);
+        if (notModified != null)
+        {
+            return notModified.build();
+        }
+        return Response.ok(entity).tag(eTag).lastModified(lastModified).build();
+    }
+
+    // The version an If-Match header asks the update to be made against, the ETag of okWithVersion.
+    // No header or * updates whatever is stored. Weak or unknown tags throw IllegalArgumentException.
+    static long ifMatchVersion (final String ifMatch)
+    {
+        if (ifMatch == null || ifMatch.trim().equals("*"))
+        {
+            return 0;
+        }
+        final EntityTag eTag = EntityTag.valueOf(ifMatch.trim());
+        if (eTag.isWeak())
+        {
+            throw new IllegalArgumentException("Weak ETag: " + ifMatch);
         }
+        return Long.parseLong(eTag.getValue());
     }
 }
@@ -0,0 +1,172 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        WorkerPool.java
+// Encoding:	UTF-8
+//
+// Purpose:     Runs the services' suspended requests off the container's
+//              threads, so requests blocking on the database do not hold
+//              them. Either a fixed number of platform threads or, when the
+//              JDK has them, one virtual thread per request.
+//              At most threads + queueLimit requests are let in at a time,
+//              the rest are answered with SERVICE UNAVAILABLE and a
+//              Retry-After header, as is every request after shutdown.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.webservice;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+final class WorkerPool
+{
+    private static final Logger logger = Logger.getLogger(WorkerPool.class.getName());
+
+    // Null when every request gets a virtual thread of its own
+    private final ThreadPoolExecutor platformExecutor;
+    private final Executor executor;
+    private final Semaphore admitted;
+    private final int admittedLimit;
+    private final int retryAfterSeconds;
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile boolean shutDown;
+
+    WorkerPool (final boolean virtualThreads, final int threads, final int queueLimit, final int retryAfterSeconds)
+    {
+        if (threads < 1 || queueLimit < 1 || retryAfterSeconds < 0)
+        {
+            throw new IllegalArgumentException("WorkerPool needs at least one thread and one queue slot, got "
+                    + threads + " threads, " + queueLimit + " queue slots and retry after " + retryAfterSeconds + " seconds");
+        }
+        this.retryAfterSeconds = retryAfterSeconds;
+        admittedLimit = threads + queueLimit;
+        admitted = new Semaphore(admittedLimit);
+
+        final ThreadFactory virtualThreadFactory = virtualThreads ? virtualThreadFactory() : null;
+        if (virtualThreadFactory != null)
+        {
+            // Virtual threads are cheap and not meant to be pooled, the semaphore is the only limit
+            platformExecutor = null;
+            executor = runnable -> virtualThreadFactory.newThread(runnable).start();
+        }
+        else
+        {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            // Daemon threads, like the cache flusher, nothing here has to finish before the container stops.
+            // The queue is bounded by the semaphore.
+            platformExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    runnable ->
+                    {
+                        final Thread thread = new Thread(runnable, "ecommerce-worker-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor = platformExecutor;
+        }
+    }
+
+    boolean isVirtual ()
+    {
+        return platformExecutor == null;
+    }
+
+    // Resumes the request with the response of the handler, or with what it threw so the exception mappers
+    // answer it as they would have on the container's thread
+    void submit (final AsyncResponse asyncResponse, final Callable<Response> handler)
+    {
+        if (shutDown || !admitted.tryAcquire())
+        {
+            rejected.incrementAndGet();
+            asyncResponse.resume(Response.status(Status.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds)
+                    .entity("Too many requests in progress, try again later.")
+                    .build());
+            return;
+        }
+        executor.execute(() ->
+        {
+            // Streamed responses read the database while they are written, so the slot is held until resume returns
+            try
+            {
+                asyncResponse.resume(handler.call());
+            } catch (final Throwable throwable)
+            {
+                asyncResponse.resume(throwable);
+            } finally
+            {
+                admitted.release();
+            }
+        });
+    }
+
+    // Requests on a thread. With virtual threads every admitted request has one, so nothing is ever queued.
+    int getActiveCount ()
+    {
+        return platformExecutor == null ? admittedLimit - admitted.availablePermits() : platformExecutor.getActiveCount();
+    }
+
+    int getQueuedCount ()
+    {
+        return platformExecutor == null ? 0 : platformExecutor.getQueue().size();
+    }
+
+    long getRejectedCount ()
+    {
+        return rejected.get();
+    }
+
+    // Turns away new requests and waits up to timeoutMillis for the admitted ones to be answered, so nothing
+    // they write is lost when the container stops. Returns whether they all were.
+    boolean shutdown (final long timeoutMillis)
+    {
+        shutDown = true;
+        boolean answered;
+        try
+        {
+            answered = admitted.tryAcquire(admittedLimit, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+            answered = false;
+        }
+        if (platformExecutor != null)
+        {
+            platformExecutor.shutdown();
+        }
+        return answered;
+    }
+
+    // Thread.ofVirtual().name("ecommerce-virtual-worker-", 1).factory(), looked up by reflection since the
+    // sources are built for Java 8. Null on a JDK without virtual threads, the caller falls back to platform threads.
+    private static ThreadFactory virtualThreadFactory ()
+    {
+        try
+        {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "ecommerce-virtual-worker-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (final ReflectiveOperationException | RuntimeException exception)
+        {
+            logger.log(Level.WARNING, "Virtual threads are not available on Java " + System.getProperty("java.version")
+                    + ", using platform threads: " + exception);
+            return null;
+        }
+    }
+}
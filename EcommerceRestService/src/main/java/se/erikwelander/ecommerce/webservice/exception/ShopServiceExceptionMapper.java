@@ -2,7 +2,8 @@
 // Name:        ShopServiceExceptionMapper.java
 // Encoding:	UTF-8
 //
-// Purpose:     Maps exceptions to BAD REQUEST responses.
+// Purpose:     Maps exceptions to BAD REQUEST responses, or PRECONDITION FAILED
+//              when an If-Match version was out of date.
 //
 // Author:      Erik Welander (mail@erikwelander.se)
 // Modified:    2016-06-21
@@ -12,6 +13,7 @@
 package se.erikwelander.ecommerce.webservice.exception;
 
 import se.erikwelander.ecommerce.exception.ShopServiceException;
+import se.erikwelander.ecommerce.exception.VersionConflictException;
 
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -24,6 +26,10 @@ public final class ShopServiceExceptionMapper implements ExceptionMapper<ShopSer
     @Override
     public Response toResponse (ShopServiceException e)
     {
+        if (e.getCause() instanceof VersionConflictException)
+        {
+            return Response.status(Status.PRECONDITION_FAILED).entity(e.getMessage()).build();
+        }
         return Response.status(Status.BAD_REQUEST).entity("This is from MAPPER: " + e.getMessage()).build();
     }
 }
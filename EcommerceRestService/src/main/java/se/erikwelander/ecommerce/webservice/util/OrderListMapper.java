@@ -84,20 +84,9 @@ public final class OrderListMapper implements MessageBodyWriter<ArrayList<Order>
             return orderListJson;
         }
 
-        // TODO refactor this to use existing OrderAdapter in OrderMapper
         private JsonObject serializeOrder (Order order)
         {
-            final JsonObject orderJson = new JsonObject();
-            final JsonArray productIdsJsonArray = new JsonArray();
-
-            orderJson.add("id", new JsonPrimitive(order.id));
-            orderJson.add("username", new JsonPrimitive(order.customerUserName));
-            for (int productId : order.getAllProductIDs())
-            {
-                productIdsJsonArray.add(new JsonPrimitive(productId));
-            }
-            orderJson.add("productIds", productIdsJsonArray);
-            return orderJson;
+            return OrderMapper.OrderAdapter.toJson(order);
         }
     }
 }
\ No newline at end of file
@@ -14,6 +14,7 @@ package se.erikwelander.ecommerce.webservice.util;
 import com.google.gson.*;
 import com.google.gson.stream.JsonWriter;
 import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.model.OrderLines;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
@@ -27,6 +28,9 @@ import java.io.*;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 @Provider
 @Produces (MediaType.APPLICATION_JSON)
@@ -84,17 +88,35 @@ public final class OrderMapper implements MessageBodyWriter<Order>, MessageBodyR
     {
         @Override
         public JsonElement serialize (Order order, Type typeOfSrc, JsonSerializationContext context)
+        {
+            return toJson(order);
+        }
+
+        // productIds has one id per unit like before, lines has the quantities and prices
+        static JsonObject toJson (final Order order)
         {
             final JsonObject orderJson = new JsonObject();
             final JsonArray productIdsJsonArray = new JsonArray();
+            final JsonArray linesJsonArray = new JsonArray();
 
             orderJson.add("id", new JsonPrimitive(order.id));
             orderJson.add("username", new JsonPrimitive(order.customerUserName));
-            for (int productId : order.getAllProductIDs())
+            for (int line = 0; line < order.getLineCount(); line++)
             {
-                productIdsJsonArray.add(new JsonPrimitive(productId));
+                final JsonPrimitive productIdJson = new JsonPrimitive(order.getLineProductId(line));
+                for (int unit = 0; unit < order.getLineQuantity(line); unit++)
+                {
+                    productIdsJsonArray.add(productIdJson);
+                }
+
+                final JsonObject lineJson = new JsonObject();
+                lineJson.add("productId", productIdJson);
+                lineJson.add("quantity", new JsonPrimitive(order.getLineQuantity(line)));
+                lineJson.add("unitPrice", new JsonPrimitive(order.getLineUnitPrice(line)));
+                linesJsonArray.add(lineJson);
             }
             orderJson.add("productIds", productIdsJsonArray);
+            orderJson.add("lines", linesJsonArray);
             return orderJson;
         }
 
@@ -103,23 +125,43 @@ public final class OrderMapper implements MessageBodyWriter<Order>, MessageBodyR
                 throws JsonParseException
         {
             final JsonObject productJson = json.getAsJsonObject();
-            final ArrayList<Integer> productIds = new ArrayList<Integer>();
 
             final int orderId = productJson.get("id").getAsInt();
             final String username = productJson.get("username").getAsString();
-            if (productJson.get("productIds").isJsonArray())
+            // Lines keep the prices, clients that only know productIds still work
+            if (productJson.has("lines") && productJson.get("lines").isJsonArray())
+            {
+                // Clients may repeat a product, its lines become one with the first line's price
+                final Map<Integer, Integer> quantities = new LinkedHashMap<>();
+                final Map<Integer, Double> unitPrices = new HashMap<>();
+                for (JsonElement jsonElement : productJson.get("lines").getAsJsonArray())
+                {
+                    final JsonObject lineJson = jsonElement.getAsJsonObject();
+                    final int productId = lineJson.get("productId").getAsInt();
+                    quantities.merge(productId, lineJson.get("quantity").getAsInt(), Integer::sum);
+                    unitPrices.putIfAbsent(productId, lineJson.has("unitPrice") ? lineJson.get("unitPrice").getAsDouble() : 0);
+                }
+                final OrderLines orderLines = new OrderLines(quantities.size());
+                for (Map.Entry<Integer, Integer> quantity : quantities.entrySet())
+                {
+                    orderLines.append(quantity.getKey(), quantity.getValue(), unitPrices.get(quantity.getKey()));
+                }
+                return new Order(orderId, username, orderLines);
+            }
+            else if (productJson.has("productIds") && productJson.get("productIds").isJsonArray())
             {
+                final ArrayList<Integer> productIds = new ArrayList<>();
                 JsonArray productIdsJsonArray = productJson.get("productIds").getAsJsonArray();
                 for (JsonElement jsonElement : productIdsJsonArray)
                 {
                     productIds.add(jsonElement.getAsInt());
                 }
+                return new Order(orderId, username, productIds);
             }
             else
             {
                 throw new JsonParseException("Incorrect Json format, productIds array missing");
             }
-            return new Order(orderId, username, productIds);
         }
     }
 }
@@ -11,9 +11,12 @@
 /////////////////////////////////////////////////////////////////////////////
 package se.erikwelander.ecommerce.webservice.util;
 
-import com.google.gson.*;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import se.erikwelander.ecommerce.model.Product;
 
 import javax.ws.rs.Consumes;
@@ -21,13 +24,16 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.ext.MessageBodyReader;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 import java.io.*;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 @Provider
 @Produces (MediaType.APPLICATION_JSON)
@@ -35,15 +41,15 @@ import java.util.ArrayList;
 public final class ProductListMapper implements MessageBodyWriter<ArrayList<Product>>,
         MessageBodyReader<ArrayList<Product>>
 {
-    private Gson gson;
-    private Type productListType = new TypeToken<ArrayList<Product>>()
+    // Calls the consumer once for every product to write
+    public interface ProductSource
     {
-    }.getType();
+        void forEach (Consumer<Product> consumer);
+    }
 
-    public ProductListMapper ()
+    private Type productListType = new TypeToken<ArrayList<Product>>()
     {
-        gson = new GsonBuilder().registerTypeAdapter(productListType, new ProductListAdapter()).create();
-    }
+    }.getType();
 
     // MessageBodyWriter
     @Override
@@ -64,13 +70,47 @@ public final class ProductListMapper implements MessageBodyWriter<ArrayList<Prod
                          MediaType mediaType,
                          MultivaluedMap<String, Object> httpHeaders,
                          OutputStream entityStream) throws IOException, WebApplicationException
+    {
+        writeProducts(productList::forEach, entityStream);
+    }
+
+    // Every product is written as soon as the source hands it over, nothing is collected first
+    public static void writeProducts (final ProductSource products, final OutputStream entityStream) throws IOException
     {
         try (final JsonWriter writer = new JsonWriter(new OutputStreamWriter(entityStream)))
         {
-            gson.toJson(productList, productListType, writer);
+            writer.beginObject();
+            products.forEach(product ->
+            {
+                try
+                {
+                    writeProduct(writer, product);
+                } catch (final IOException exception)
+                {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+            writer.endObject();
+        } catch (final UncheckedIOException exception)
+        {
+            throw exception.getCause();
         }
     }
 
+    private static void writeProduct (final JsonWriter writer, final Product product) throws IOException
+    {
+        writer.name("" + product.id).beginObject();
+        writer.name("id").value(product.id);
+        writer.name("title").value(product.title);
+        writer.name("category").value(product.category);
+        writer.name("manufacturer").value(product.manufacturer);
+        writer.name("description").value(product.description);
+        writer.name("image").value(product.image);
+        writer.name("price").value(product.price);
+        writer.name("quantity").value(product.getQuantity());
+        writer.endObject();
+    }
+
     @Override
     public boolean isReadable (Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
     {
@@ -83,60 +123,105 @@ public final class ProductListMapper implements MessageBodyWriter<ArrayList<Prod
                                         MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException,
             WebApplicationException
     {
-        final ArrayList<Product> productArrayList = gson.fromJson(new InputStreamReader(entityStream), productListType);
+        final ArrayList<Product> productArrayList = new ArrayList<>();
+        try
+        {
+            readProducts(entityStream, productArrayList::add);
+        } catch (final JsonParseException exception)
+        {
+            throw new WebApplicationException(exception.getMessage(), Status.BAD_REQUEST);
+        }
         return productArrayList;
     }
 
-    private static final class ProductListAdapter implements JsonSerializer<ArrayList<Product>>,
-            JsonDeserializer<ArrayList<Product>>
+    // Accepts the object written by writeProducts, keyed by id, as well as a plain array.
+    // Every product is handed to the consumer as soon as it has been read, nothing is collected first
+    public static void readProducts (final InputStream entityStream, final Consumer<Product> consumer) throws IOException
     {
-        @Override
-        public JsonElement serialize (ArrayList<Product> productList, Type typeOfSrc, JsonSerializationContext context)
+        final JsonReader reader = new JsonReader(new InputStreamReader(entityStream, StandardCharsets.UTF_8));
+        try
         {
-            final JsonObject productListJson = new JsonObject();
-
-            for (Product product : productList)
+            if (reader.peek() == JsonToken.BEGIN_ARRAY)
             {
-                final JsonObject productJson = new JsonObject();
-                productJson.add("id", new JsonPrimitive(product.id));
-                productJson.add("title", new JsonPrimitive(product.title));
-                productJson.add("category", new JsonPrimitive(product.category));
-                productJson.add("manufacturer", new JsonPrimitive(product.manufacturer));
-                productJson.add("description", new JsonPrimitive(product.description));
-                productJson.add("image", new JsonPrimitive(product.image));
-                productJson.add("price", new JsonPrimitive(product.price));
-                productJson.add("quantity", new JsonPrimitive(product.getQuantity()));
-
-                productListJson.add("" + product.id, productJson);
+                reader.beginArray();
+                while (reader.hasNext())
+                {
+                    consumer.accept(readProduct(reader));
+                }
+                reader.endArray();
+            } else
+            {
+                reader.beginObject();
+                while (reader.hasNext())
+                {
+                    reader.nextName();
+                    consumer.accept(readProduct(reader));
+                }
+                reader.endObject();
             }
-            return productListJson;
+        } catch (final IllegalStateException | NumberFormatException | MalformedJsonException | EOFException exception)
+        {
+            throw new JsonParseException("Malformed product list: " + exception.getMessage(), exception);
         }
+    }
 
-        @Override
-        public ArrayList<Product> deserialize (JsonElement json, Type typeOfT, JsonDeserializationContext context)
-                throws JsonParseException
+    private static Product readProduct (final JsonReader reader) throws IOException
+    {
+        // A product to be created has no id yet
+        int id = -1;
+        Integer quantity = null;
+        Double price = null;
+        String title = null, category = null, manufacturer = null, description = null, image = null;
+
+        reader.beginObject();
+        while (reader.hasNext())
         {
-            final JsonObject productListJson = json.getAsJsonObject();
-            final ArrayList<Product> products = new ArrayList<>();
-
-            // TODO This looks weird, refactor?
-            final int NUMBER_OF_PRODUCT_PARAMS = 8;
-
-            for (int i = 1; i < NUMBER_OF_PRODUCT_PARAMS; ++i)
+            switch (reader.nextName())
             {
-                JsonObject productJson = (JsonObject) productListJson.get(String.valueOf(i));
-
-                final int id = productJson.get("id").getAsInt();
-                final int quantity = productJson.get("quantity").getAsInt();
-                final double price = productJson.get("price").getAsDouble();
-                final String title = productJson.get("title").getAsString();
-                final String category = productJson.get("category").getAsString();
-                final String manufacturer = productJson.get("manufacturer").getAsString();
-                final String description = productJson.get("description").getAsString();
-                final String image = productJson.get("image").getAsString();
-                products.add(new Product(id, quantity, price, title, category, manufacturer, description, image));
+                case "id":
+                    id = reader.nextInt();
+                    break;
+                case "quantity":
+                    quantity = reader.nextInt();
+                    break;
+                case "price":
+                    price = reader.nextDouble();
+                    break;
+                case "title":
+                    title = reader.nextString();
+                    break;
+                case "category":
+                    category = reader.nextString();
+                    break;
+                case "manufacturer":
+                    manufacturer = reader.nextString();
+                    break;
+                case "description":
+                    description = reader.nextString();
+                    break;
+                case "image":
+                    image = nextStringOrNull(reader);
+                    break;
+                default:
+                    reader.skipValue();
             }
-            return products;
         }
+        reader.endObject();
+
+        if (quantity == null || price == null || title == null || category == null || manufacturer == null || description == null)
+        {
+            throw new JsonParseException("Product " + id + " is missing a field, quantity, price, title, category, manufacturer and description are required");
+        }
+        return new Product(id, quantity, price, title, category, manufacturer, description, image);
+    }
+
+    private static String nextStringOrNull (final JsonReader reader) throws IOException
+    {
+        if (reader.peek() == JsonToken.NULL)
+        {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,155 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        WorkerPoolBenchmark.java
+// Encoding:	UTF-8
+//
+// Purpose:     Compares the WorkerPool on platform threads with the one on
+//              virtual threads at 1000 and 10000 concurrent clients. Every
+//              request blocks as long as a database round trip would. The
+//              virtual threads also run one round blocking inside
+//              synchronized at 1000 clients, to show what pinning their
+//              carriers costs.
+//              Virtual threads need Java 21 or later, run it explicitly with
+//              mvn test -Dtest=WorkerPoolBenchmark
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.webservice;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.memory.InMemoryCustomerRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
+import se.erikwelander.ecommerce.service.ShopService;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WorkerPoolBenchmark
+{
+    private static final int[] CLIENT_COUNTS = {1000, 10000};
+    private static final int REQUESTS_PER_CLIENT = 10;
+    // Tomcat's default maxThreads, what the connector would have had for blocking requests
+    private static final int PLATFORM_THREADS = 200;
+    private static final long DATABASE_ROUND_TRIP_MILLIS = 10;
+    private static final long TIMEOUT_MINUTES = 10;
+
+    @Test
+    public void platformVersusVirtualThreads () throws Exception
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+
+        final Callable<Response> roundTrip = () ->
+        {
+            Thread.sleep(DATABASE_ROUND_TRIP_MILLIS);
+            return Response.ok(shopService.getProduct(tomato.id)).build();
+        };
+        // Blocking inside synchronized pins the virtual thread to its carrier. Every request locks its own thread,
+        // so only the carriers run out, the requests do not wait for each other. A new Object() would be optimized away.
+        final Callable<Response> pinnedRoundTrip = () ->
+        {
+            synchronized (Thread.currentThread())
+            {
+                return roundTrip.call();
+            }
+        };
+
+        System.out.println(String.format("%7s | %-22s | %10s %9s %9s %9s %8s", "clients", "threads", "req/s", "p50 ms", "p99 ms", "max ms", "peak thr"));
+        for (final int clientCount : CLIENT_COUNTS)
+        {
+            run(clientCount, REQUESTS_PER_CLIENT, "platform", new WorkerPool(false, PLATFORM_THREADS, clientCount, 1), roundTrip);
+            final WorkerPool virtualPool = new WorkerPool(true, PLATFORM_THREADS, clientCount, 1);
+            if (!virtualPool.isVirtual())
+            {
+                System.out.println(String.format("%7d | %-22s |", clientCount, "virtual: needs Java 21"));
+                continue;
+            }
+            run(clientCount, REQUESTS_PER_CLIENT, "virtual", virtualPool, roundTrip);
+            // Only as many round trips at a time as there are carriers, one request per client is slow enough
+            if (clientCount == CLIENT_COUNTS[0])
+            {
+                run(clientCount, 1, "virtual, pinned", new WorkerPool(true, PLATFORM_THREADS, clientCount, 1), pinnedRoundTrip);
+            }
+        }
+    }
+
+    // Every client sends its next request as soon as the previous one is answered
+    private static void run (final int clientCount, final int requestsPerClient, final String threads, final WorkerPool workerPool, final Callable<Response> handler) throws Exception
+    {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        final int requestCount = clientCount * requestsPerClient;
+        final long[] latencyNanos = new long[requestCount];
+        final AtomicInteger answered = new AtomicInteger(), notOk = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(requestCount);
+
+        threadMXBean.resetPeakThreadCount();
+        final long start = System.nanoTime();
+        for (int client = 0; client < clientCount; client++)
+        {
+            send(workerPool, handler, requestsPerClient, latencyNanos, answered, notOk, done);
+        }
+        assertTrue("Timed out", done.await(TIMEOUT_MINUTES, TimeUnit.MINUTES));
+        final long elapsedNanos = System.nanoTime() - start;
+        assertTrue(workerPool.shutdown(TimeUnit.MINUTES.toMillis(TIMEOUT_MINUTES)));
+
+        assertEquals(0, notOk.get());
+        assertEquals(0, workerPool.getRejectedCount());
+        Arrays.sort(latencyNanos);
+        System.out.println(String.format("%7d | %-22s | %10.0f %9.1f %9.1f %9.1f %8d", clientCount, threads,
+                requestCount / (elapsedNanos / 1e9),
+                latencyNanos[requestCount / 2] / 1e6,
+                latencyNanos[requestCount * 99 / 100] / 1e6,
+                latencyNanos[requestCount - 1] / 1e6,
+                threadMXBean.getPeakThreadCount()));
+    }
+
+    private static void send (final WorkerPool workerPool, final Callable<Response> handler, final int requestsLeft, final long[] latencyNanos,
+                              final AtomicInteger answered, final AtomicInteger notOk, final CountDownLatch done)
+    {
+        final long sent = System.nanoTime();
+        workerPool.submit(asyncResponse(result ->
+        {
+            latencyNanos[answered.getAndIncrement()] = System.nanoTime() - sent;
+            if (!(result instanceof Response) || ((Response) result).getStatus() != Response.Status.OK.getStatusCode())
+            {
+                notOk.incrementAndGet();
+            }
+            done.countDown();
+            if (requestsLeft > 1)
+            {
+                send(workerPool, handler, requestsLeft - 1, latencyNanos, answered, notOk, done);
+            }
+        }), handler);
+    }
+
+    // Only resume is used by WorkerPool
+    private static AsyncResponse asyncResponse (final Consumer<Object> onResume)
+    {
+        return (AsyncResponse) Proxy.newProxyInstance(AsyncResponse.class.getClassLoader(), new Class<?>[]{AsyncResponse.class},
+                (proxy, method, args) ->
+                {
+                    if (method.getName().equals("resume"))
+                    {
+                        onResume.accept(args[0]);
+                        return true;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -12,7 +12,7 @@
 /////////////////////////////////////////////////////////////////////////////
 package se.erikwelander.ecommerce.exception;
 
-public final class RepositoryException extends Exception
+public class RepositoryException extends Exception
 {
     private static final long serialVersionUID = 1L;
 
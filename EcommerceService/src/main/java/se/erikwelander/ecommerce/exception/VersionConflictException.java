@@ -0,0 +1,23 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        VersionConflictException.java
+// Encoding:	UTF-8
+//
+// Purpose:     Thrown by a repository when an update was made against a
+//              version that is no longer the stored one.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.exception;
+
+public final class VersionConflictException extends RepositoryException
+{
+    private static final long serialVersionUID = 1L;
+
+    public VersionConflictException (final String message)
+    {
+        super(message);
+    }
+}
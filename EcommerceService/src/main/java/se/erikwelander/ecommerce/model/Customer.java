@@ -24,6 +24,9 @@ public final class Customer
             lastName,
             address,
             phoneNumber;
+    // Milliseconds since the epoch of the last update, set by the repository like Product.version.
+    // Raised by updateCustomer, the shopping cart operations of the repository leave it alone.
+    public final long version;
     private final ShoppingCart shoppingCart = new ShoppingCart();
 
     public Customer
@@ -36,6 +39,21 @@ public final class Customer
                     final String address,
                     final String phoneNumber
             )
+    {
+        this(userName, password, email, firstName, lastName, address, phoneNumber, 0);
+    }
+
+    public Customer
+            (
+                    final String userName,
+                    final String password,
+                    final String email,
+                    final String firstName,
+                    final String lastName,
+                    final String address,
+                    final String phoneNumber,
+                    final long version
+            )
     {
         this.userName = userName;
         this.password = password;
@@ -44,6 +62,7 @@ public final class Customer
         this.lastName = lastName;
         this.address = address;
         this.phoneNumber = phoneNumber;
+        this.version = version;
     }
 
     public void addToShoppingCart (final int productId)
@@ -51,17 +70,37 @@ public final class Customer
         shoppingCart.add(productId);
     }
 
+    public void addToShoppingCart (final int productId, final int quantity)
+    {
+        shoppingCart.add(productId, quantity);
+    }
+
     public void removeFromShoppingCart (final int productId) throws ModelException
     {
         shoppingCart.remove(productId);
     }
 
+    public void removeAllFromShoppingCart (final int productId) throws ModelException
+    {
+        shoppingCart.removeAll(productId);
+    }
+
     public ArrayList<Integer> getAllShoppingCartItems ()
     {
         ArrayList<Integer> shoppingCartItems = shoppingCart.getAll();
         return shoppingCartItems;
     }
 
+    public int getShoppingCartQuantity (final int productId)
+    {
+        return shoppingCart.getQuantity(productId);
+    }
+
+    public int[] getShoppingCartProductIds ()
+    {
+        return shoppingCart.getProductIds();
+    }
+
     public void emptyShoppingCart ()
     {
         shoppingCart.empty();
@@ -0,0 +1,209 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        IntIntMap.java
+// Encoding:	UTF-8
+//
+// Purpose:     Map from int keys to int counts without boxing.
+//              A key with the count 0 is not in the map. Entries are kept
+//              in the order their keys were first added.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.model;
+
+import java.util.Arrays;
+
+final class IntIntMap
+{
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Entries in insertion order, a removed entry keeps its place with the count 0 until the next rebuild
+    private int[] keys = new int[INITIAL_CAPACITY],
+            counts = new int[INITIAL_CAPACITY];
+    // Open addressing table holding entry index + 1, 0 marks a free slot. Twice the entry capacity keeps probes short
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int used, size;
+
+    int size ()
+    {
+        return size;
+    }
+
+    int get (final int key)
+    {
+        final int entry = slots[findSlot(key)] - 1;
+        return entry < 0 ? 0 : counts[entry];
+    }
+
+    // Adds amount to the count of key and returns the new count, a count that drops to 0 or below removes the key
+    int add (final int key, final int amount)
+    {
+        int slot = findSlot(key);
+        final int entry = slots[slot] - 1;
+        if (entry >= 0)
+        {
+            final int count = counts[entry] + amount;
+            if (count > 0)
+            {
+                counts[entry] = count;
+                return count;
+            }
+            removeSlot(slot);
+            return 0;
+        }
+        if (amount <= 0)
+        {
+            return 0;
+        }
+        if (used == keys.length)
+        {
+            rebuild();
+            slot = findSlot(key);
+        }
+        keys[used] = key;
+        counts[used] = amount;
+        slots[slot] = ++used;
+        size++;
+        return amount;
+    }
+
+    // Removes key and returns the count it had
+    int remove (final int key)
+    {
+        final int slot = findSlot(key);
+        final int entry = slots[slot] - 1;
+        if (entry < 0)
+        {
+            return 0;
+        }
+        final int count = counts[entry];
+        removeSlot(slot);
+        return count;
+    }
+
+    void clear ()
+    {
+        Arrays.fill(slots, 0);
+        used = 0;
+        size = 0;
+    }
+
+    // Iterate with index from 0 to limit and skip entries where countAt is 0
+    int limit ()
+    {
+        return used;
+    }
+
+    int keyAt (final int index)
+    {
+        return keys[index];
+    }
+
+    int countAt (final int index)
+    {
+        return counts[index];
+    }
+
+    @Override
+    public boolean equals (final Object other)
+    {
+        if (other == this)
+        {
+            return true;
+        }
+        else if (other instanceof IntIntMap)
+        {
+            final IntIntMap otherMap = (IntIntMap) other;
+            if (size != otherMap.size)
+            {
+                return false;
+            }
+            for (int index = 0; index < used; index++)
+            {
+                if (counts[index] != 0 && otherMap.get(keys[index]) != counts[index])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        int hash = 0;
+        for (int index = 0; index < used; index++)
+        {
+            if (counts[index] != 0)
+            {
+                hash += keys[index] ^ counts[index];
+            }
+        }
+        return hash;
+    }
+
+    // The slot holding key, or the free slot where it would go
+    private int findSlot (final int key)
+    {
+        final int mask = slots.length - 1;
+        int slot = hash(key) & mask;
+        while (slots[slot] != 0 && keys[slots[slot] - 1] != key)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void removeSlot (int slot)
+    {
+        counts[slots[slot] - 1] = 0;
+        size--;
+
+        // Shift later entries of the probe run back so lookups never stop at the hole
+        final int mask = slots.length - 1;
+        int next = (slot + 1) & mask;
+        while (slots[next] != 0)
+        {
+            final int home = hash(keys[slots[next] - 1]) & mask;
+            if (((next - home) & mask) >= ((next - slot) & mask))
+            {
+                slots[slot] = slots[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[slot] = 0;
+    }
+
+    // Drops removed entries and grows when more than half of the entries are in use
+    private void rebuild ()
+    {
+        final int capacity = size > keys.length / 2 ? keys.length * 2 : keys.length;
+        final int[] oldKeys = keys,
+                oldCounts = counts;
+        final int oldUsed = used;
+        keys = new int[capacity];
+        counts = new int[capacity];
+        slots = new int[capacity * 2];
+        used = 0;
+        for (int index = 0; index < oldUsed; index++)
+        {
+            if (oldCounts[index] != 0)
+            {
+                keys[used] = oldKeys[index];
+                counts[used] = oldCounts[index];
+                slots[findSlot(oldKeys[index])] = ++used;
+            }
+        }
+    }
+
+    private static int hash (final int key)
+    {
+        final int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
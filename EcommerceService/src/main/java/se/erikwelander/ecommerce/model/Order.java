@@ -11,17 +11,20 @@
 /////////////////////////////////////////////////////////////////////////////
 package se.erikwelander.ecommerce.model;
 
-import java.sql.Date;
-import java.text.SimpleDateFormat;
+import java.time.LocalDate;
 import java.util.ArrayList;
 
 public final class Order
 {
+    private static final long NOT_SHIPPED = Long.MIN_VALUE;
+
     public final int id;
     public final String customerUserName;
-    public final SimpleDateFormat sqlDateFormat = new SimpleDateFormat("yyyy-MM-dd");
-    private final ArrayList<Integer> productIDs;
-    private Date dateCreated, dateShipped = null;
+    private final OrderLines lines;
+    // Milliseconds since the epoch of the last change, set by the repository like Product.version
+    public final long version;
+    // Days since 1970-01-01, compared as numbers
+    private final long createdEpochDay, shippedEpochDay;
 
     public Order (
             final int id,
@@ -29,48 +32,122 @@ public final class Order
             final ArrayList<Integer> productIDs
     )
     {
-        this.id = id;
-        this.customerUserName = customerUserName;
-        this.productIDs = new ArrayList<>(productIDs);
-        this.dateCreated = new Date(System.currentTimeMillis());
+        this(id, customerUserName, OrderLines.fromProductIds(productIDs));
     }
 
     public Order (
             final int id,
             final String customerUserName,
             final ArrayList<Integer> productIDs,
-            final Date dateCreated,
-            final Date dateShipped
+            final LocalDate dateCreated,
+            final LocalDate dateShipped
+    )
+    {
+        this(id, customerUserName, OrderLines.fromProductIds(productIDs), dateCreated, dateShipped);
+    }
+
+    // The order takes the lines over without copying them, they must not be changed afterwards
+    public Order (
+            final int id,
+            final String customerUserName,
+            final OrderLines lines
+    )
+    {
+        this(id, customerUserName, lines, LocalDate.now(), null);
+    }
+
+    public Order (
+            final int id,
+            final String customerUserName,
+            final OrderLines lines,
+            final LocalDate dateCreated,
+            final LocalDate dateShipped
+    )
+    {
+        this(id, customerUserName, lines, dateCreated, dateShipped, 0);
+    }
+
+    public Order (
+            final int id,
+            final String customerUserName,
+            final OrderLines lines,
+            final LocalDate dateCreated,
+            final LocalDate dateShipped,
+            final long version
     )
     {
         this.id = id;
         this.customerUserName = customerUserName;
-        this.productIDs = new ArrayList<>(productIDs);
-        this.dateCreated = dateCreated;
-        this.dateShipped = dateShipped;
+        this.lines = lines;
+        this.createdEpochDay = dateCreated.toEpochDay();
+        this.shippedEpochDay = dateShipped == null ? NOT_SHIPPED : dateShipped.toEpochDay();
+        this.version = version;
     }
 
-    public final Date getDateCreated ()
+    // The same order expecting another version, the lines are shared
+    public final Order withVersion (final long version)
     {
-        return this.dateCreated;
+        return new Order(id, customerUserName, lines, getDateCreated(), getDateShipped(), version);
     }
 
-    public final Date getDateShipped ()
+    public final LocalDate getDateCreated ()
     {
-        return this.dateShipped;
+        return LocalDate.ofEpochDay(createdEpochDay);
+    }
+
+    // Null when the order has not been shipped
+    public final LocalDate getDateShipped ()
+    {
+        return isShipped() ? LocalDate.ofEpochDay(shippedEpochDay) : null;
+    }
+
+    public final long getCreatedEpochDay ()
+    {
+        return createdEpochDay;
     }
 
     public final boolean isShipped ()
     {
-        if (null != dateShipped)
-        {
-            return true;
-        }
-        return false;
+        return shippedEpochDay != NOT_SHIPPED;
+    }
+
+    public final int getLineCount ()
+    {
+        return lines.size();
+    }
+
+    public final int getLineProductId (final int line)
+    {
+        return lines.getProductId(line);
+    }
+
+    public final int getLineQuantity (final int line)
+    {
+        return lines.getQuantity(line);
     }
 
+    public final double getLineUnitPrice (final int line)
+    {
+        return lines.getUnitPrice(line);
+    }
+
+    public final int getItemCount ()
+    {
+        return lines.getItemCount();
+    }
+
+    // One ID per unit, a new list every call. Prefer walking the lines, they do not box.
     public final ArrayList<Integer> getAllProductIDs ()
     {
+        final ArrayList<Integer> productIDs = new ArrayList<>(lines.getItemCount());
+        for (int line = 0; line < lines.size(); line++)
+        {
+            final Integer productId = lines.getProductId(line);
+            for (int unit = 0; unit < lines.getQuantity(line); unit++)
+            {
+                productIDs.add(productId);
+            }
+        }
         return productIDs;
     }
 
@@ -84,28 +161,10 @@ public final class Order
         else if (other instanceof Order)
         {
             final Order otherOrder = (Order) other;
-            String myDateShipped, otherDateShipped;
-            if (null == this.getDateShipped())
-            {
-                myDateShipped = "";
-            }
-            else
-            {
-                myDateShipped = sqlDateFormat.format(this.getDateShipped()).toString();
-            }
-            if (null == otherOrder.getDateShipped())
-            {
-                otherDateShipped = "";
-            }
-            else
-            {
-                otherDateShipped = sqlDateFormat.format(otherOrder.getDateShipped()).toString();
-            }
-
             if (this.id == otherOrder.id
                     && this.customerUserName.equals(otherOrder.customerUserName)
-                    && this.productIDs.equals(otherOrder.getAllProductIDs())
-                    && myDateShipped.equals(otherDateShipped)
+                    && this.lines.sameItems(otherOrder.lines)
+                    && this.shippedEpochDay == otherOrder.shippedEpochDay
                     )
             {
                 return true;
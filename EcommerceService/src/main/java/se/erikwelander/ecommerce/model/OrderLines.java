@@ -0,0 +1,132 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        OrderLines.java
+// Encoding:	UTF-8
+//
+// Purpose:     The line items of an Order, one line per product with its
+//              quantity and the unit price it was ordered at.
+//              Kept in primitive arrays and read by line index so walking
+//              the lines never allocates.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.model;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class OrderLines
+{
+    private static final int DEFAULT_CAPACITY = 4;
+
+    private int[] productIds;
+    private int[] quantities;
+    private double[] unitPrices;
+    private int size;
+
+    public OrderLines ()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public OrderLines (final int capacity)
+    {
+        final int initialCapacity = Math.max(capacity, 1);
+        productIds = new int[initialCapacity];
+        quantities = new int[initialCapacity];
+        unitPrices = new double[initialCapacity];
+    }
+
+    // One unit per id, ids that occur more than once become one line in the order they first occur
+    public static OrderLines fromProductIds (final List<Integer> productIds)
+    {
+        final Map<Integer, Integer> quantities = new LinkedHashMap<>();
+        for (Integer productId : productIds)
+        {
+            quantities.merge(productId, 1, Integer::sum);
+        }
+        final OrderLines lines = new OrderLines(quantities.size());
+        for (Map.Entry<Integer, Integer> quantity : quantities.entrySet())
+        {
+            lines.append(quantity.getKey(), quantity.getValue(), 0);
+        }
+        return lines;
+    }
+
+    // Adds a line as it is. The caller makes sure every product has one line only, fromProductIds merges them.
+    public void append (final int productId, final int quantity, final double unitPrice)
+    {
+        if (size == productIds.length)
+        {
+            final int capacity = size * 2;
+            productIds = Arrays.copyOf(productIds, capacity);
+            quantities = Arrays.copyOf(quantities, capacity);
+            unitPrices = Arrays.copyOf(unitPrices, capacity);
+        }
+        productIds[size] = productId;
+        quantities[size] = quantity;
+        unitPrices[size] = unitPrice;
+        size++;
+    }
+
+    public int size ()
+    {
+        return size;
+    }
+
+    public int getProductId (final int line)
+    {
+        return productIds[checkLine(line)];
+    }
+
+    public int getQuantity (final int line)
+    {
+        return quantities[checkLine(line)];
+    }
+
+    public double getUnitPrice (final int line)
+    {
+        return unitPrices[checkLine(line)];
+    }
+
+    // Units over all lines
+    public int getItemCount ()
+    {
+        int itemCount = 0;
+        for (int line = 0; line < size; line++)
+        {
+            itemCount += quantities[line];
+        }
+        return itemCount;
+    }
+
+    // Same products in the same quantities and order, prices are not compared
+    boolean sameItems (final OrderLines other)
+    {
+        if (size != other.size)
+        {
+            return false;
+        }
+        for (int line = 0; line < size; line++)
+        {
+            if (productIds[line] != other.productIds[line] || quantities[line] != other.quantities[line])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int checkLine (final int line)
+    {
+        if (line >= size)
+        {
+            throw new IndexOutOfBoundsException("Line " + line + " of " + size);
+        }
+        return line;
+    }
+}
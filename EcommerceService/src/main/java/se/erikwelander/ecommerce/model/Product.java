@@ -16,6 +16,9 @@ public final class Product
     public final int id;
     public final double price;
     public final String title, category, manufacturer, description, image;
+    // Milliseconds since the epoch of the last change, set by the repository. It goes up by at least one
+    // on every change, so it tells two versions apart even when they were made within the same millisecond.
+    public final long version;
     private int quantity;
 
     public Product (
@@ -28,14 +31,7 @@ public final class Product
             final String image
     )
     {
-        this.id = -1;
-        this.quantity = quantity;
-        this.price = price;
-        this.title = title;
-        this.category = category;
-        this.manufacturer = manufacturer;
-        this.description = description;
-        this.image = image;
+        this(-1, quantity, price, title, category, manufacturer, description, image, 0);
     }
 
     public Product (
@@ -48,6 +44,21 @@ public final class Product
             final String description,
             final String image
     )
+    {
+        this(id, quantity, price, title, category, manufacturer, description, image, 0);
+    }
+
+    public Product (
+            final int id,
+            final int quantity,
+            final double price,
+            final String title,
+            final String category,
+            final String manufacturer,
+            final String description,
+            final String image,
+            final long version
+    )
     {
         this.id = id;
         this.quantity = quantity;
@@ -57,6 +68,7 @@ public final class Product
         this.manufacturer = manufacturer;
         this.description = description;
         this.image = image;
+        this.version = version;
     }
 
 
@@ -67,14 +79,7 @@ public final class Product
 
     public void increaseDecreaseQuantity (final int amount)
     {
-        if (amount < 0)
-        {
-            this.quantity -= amount;
-        }
-        else
-        {
-            this.quantity += amount;
-        }
+        this.quantity += amount;
     }
 
     @Override
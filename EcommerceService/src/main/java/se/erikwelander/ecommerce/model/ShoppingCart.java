@@ -3,7 +3,7 @@
 // Encoding:	UTF-8
 //
 // Purpose:     Contains and manages a Customers shopping cart.
-//              Products are represented as Integer ID values.
+//              Products are represented as ID values with a quantity each.
 //
 // Author:      Erik Welander (mail@erikwelander.se)
 // Modified:    2016-06-21
@@ -15,11 +15,10 @@ package se.erikwelander.ecommerce.model;
 import se.erikwelander.ecommerce.exception.ModelException;
 
 import java.util.ArrayList;
-import java.util.Collections;
 
 public final class ShoppingCart
 {
-    private final ArrayList<Integer> productIDS = new ArrayList<>();
+    private final IntIntMap productQuantities = new IntIntMap();
 
     public ShoppingCart ()
     {
@@ -27,14 +26,19 @@ public final class ShoppingCart
 
     public void add (final int productId)
     {
-        productIDS.add(productId);
+        productQuantities.add(productId, 1);
+    }
+
+    public void add (final int productId, final int quantity)
+    {
+        productQuantities.add(productId, quantity);
     }
 
     public void remove (final int productId) throws ModelException
     {
-        if (productIDS.contains(productId))
+        if (productQuantities.get(productId) > 0)
         {
-            productIDS.remove(productId);
+            productQuantities.add(productId, -1);
         }
         else
         {
@@ -44,20 +48,49 @@ public final class ShoppingCart
 
     public void removeAll (final int productId) throws ModelException
     {
-        if (!productIDS.removeAll(Collections.singleton(productId)))
+        if (productQuantities.remove(productId) == 0)
         {
             throw new ModelException("Cannot remove product with ID: " + productId + ": ID does not exist!");
         }
     }
 
+    public int getQuantity (final int productId)
+    {
+        return productQuantities.get(productId);
+    }
+
+    // Every product in the cart once, in the order they were first added
+    public int[] getProductIds ()
+    {
+        final int[] productIds = new int[productQuantities.size()];
+        for (int index = 0, found = 0; index < productQuantities.limit(); index++)
+        {
+            if (productQuantities.countAt(index) != 0)
+            {
+                productIds[found++] = productQuantities.keyAt(index);
+            }
+        }
+        return productIds;
+    }
+
+    // The cart as one ID per unit, a new list every call so changing it does not change the cart
     public ArrayList<Integer> getAll ()
     {
+        final ArrayList<Integer> productIDS = new ArrayList<>();
+        for (int index = 0; index < productQuantities.limit(); index++)
+        {
+            final Integer productId = productQuantities.keyAt(index);
+            for (int quantity = productQuantities.countAt(index); quantity > 0; quantity--)
+            {
+                productIDS.add(productId);
+            }
+        }
         return productIDS;
     }
 
     public void empty ()
     {
-        productIDS.clear();
+        productQuantities.clear();
     }
 
     @Override
@@ -70,7 +103,7 @@ public final class ShoppingCart
         else if (other instanceof ShoppingCart)
         {
             final ShoppingCart otherCart = (ShoppingCart) other;
-            if (this.getAll().equals(otherCart.getAll()))
+            if (this.productQuantities.equals(otherCart.productQuantities))
             {
                 return true;
             }
@@ -24,7 +24,29 @@ public interface CustomerRepository
 
     List<Customer> getAllCustomers () throws RepositoryException;
 
+    // Throws VersionConflictException when the customer has been changed since customer.version, 0 updates whatever is stored
     void updateCustomer (final Customer customer) throws RepositoryException;
 
+    // Writes the shopping cart of the customer over the stored one, the details and the version are left alone
+    void replaceShoppingCart (final Customer customer) throws RepositoryException;
+
     void removeCustomer (final String userName) throws RepositoryException;
+
+    // Takes every unit of the product out of every shopping cart that has it
+    void removeProductFromAllCarts (final int productId) throws RepositoryException;
+
+    // Cart changes touch only the changed product instead of rewriting the whole customer
+    void addToShoppingCart (final String userName, final int productId, final int quantity) throws RepositoryException;
+
+    // Takes every unit of the product out of the shopping cart
+    void removeFromShoppingCart (final String userName, final int productId) throws RepositoryException;
+
+    // Sets the quantity of each product in the shopping cart to the quantity at the same index, 0 takes it out.
+    // Only the rows of these products are written, the rest of the cart is left alone.
+    void setShoppingCartQuantities (final String userName, final int[] productIds, final int[] quantities) throws RepositoryException;
+
+    void emptyShoppingCart (final String userName) throws RepositoryException;
+
+    // Writes changes to the customer that have only been kept in memory. Must not be called inside a unit of work.
+    void flush (final String userName) throws RepositoryException;
 }
@@ -28,5 +28,10 @@ public interface OrderRepository
 
     int getHighestOrderId () throws RepositoryException;
 
+    // Reserves count ids that are never handed out again, even after their orders are removed.
+    // Returns the first, the others follow it.
+    int reserveOrderIds (final int count) throws RepositoryException;
+
+    // Throws VersionConflictException when the order has been changed since order.version, 0 updates whatever is stored
     void updateOrder (final Order order) throws RepositoryException;
 }
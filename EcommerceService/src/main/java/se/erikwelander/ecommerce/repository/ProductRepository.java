@@ -15,20 +15,47 @@ import se.erikwelander.ecommerce.exception.RepositoryException;
 import se.erikwelander.ecommerce.model.Product;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface ProductRepository
 {
     void addProduct (final Product product) throws RepositoryException;
 
+    // Adds all products in as few round trips as the repository can. Run it in a unit of work to keep none when one fails.
+    void addProducts (final List<Product> products) throws RepositoryException;
+
     Product getProduct (final int productId) throws RepositoryException;
 
     List<Product> getAllproducts () throws RepositoryException;
 
+    // Hands every product to the consumer as it is read, without building a list first.
+    // What the consumer throws is passed on to the caller.
+    void forEachProduct (final Consumer<Product> consumer) throws RepositoryException;
+
+    // Up to limit products with an id above afterProductId, in id order. Start with 0 and continue after
+    // the last id of the previous page, each page costs the same however many products come before it.
+    List<Product> getProductsAfter (final int afterProductId, final int limit) throws RepositoryException;
+
+    // A counter every add, change and removal of a product raises, so a client can tell whether its copy
+    // of the whole catalog is still current without reading it. Never goes down, reading it reads one row.
+    long getProductsVersion () throws RepositoryException;
+
     int getHighestProductId () throws RepositoryException;
 
+    // Reserves count ids that are never handed out again, even after their products are removed.
+    // Returns the first, the others follow it.
+    int reserveProductIds (final int count) throws RepositoryException;
+
+    // Throws VersionConflictException when the product has been changed since product.version, 0 updates whatever is stored
     void updateProduct (final Product product) throws RepositoryException;
 
-    void productsUpdateQuantity (final List<Integer> productIDs, final int quantityChange) throws RepositoryException;
+    // Changes the stock by quantityChange once for every id in the list and returns the ids
+    // that did not have enough stock. Run it in a unit of work to undo the others when that happens.
+    List<Integer> productsUpdateQuantity (final List<Integer> productIDs, final int quantityChange) throws RepositoryException;
+
+    // Changes the stock of every product by the quantity change at the same index, like productsUpdateQuantity
+    // but without one list entry per unit
+    List<Integer> productsUpdateQuantities (final int[] productIds, final int[] quantityChanges) throws RepositoryException;
 
     void removeProduct (final int productId) throws RepositoryException;
 }
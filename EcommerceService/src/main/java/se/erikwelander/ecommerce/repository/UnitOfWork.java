@@ -0,0 +1,38 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        UnitOfWork.java
+// Encoding:	UTF-8
+//
+// Purpose:     Groups writes to several repositories so they are
+//              committed or rolled back together.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.repository;
+
+import se.erikwelander.ecommerce.exception.RepositoryException;
+
+public interface UnitOfWork
+{
+    // Repository calls made by the current thread after begin are part of the unit of work
+    void begin () throws RepositoryException;
+
+    void commit () throws RepositoryException;
+
+    void rollback () throws RepositoryException;
+
+    // Runs the action once the unit of work of the current thread is committed, or right away when none is running.
+    // For caches that must not drop what they hold before the change is visible. Rolling back drops the action.
+    void afterCommit (final Runnable action);
+
+    // Undoes a write of the current unit of work when it is rolled back, for repositories that apply their writes
+    // immediately. The undos run latest first. A unit of work that rolls back the writes itself ignores them.
+    void onRollback (final Undo undo);
+
+    interface Undo
+    {
+        void run () throws RepositoryException;
+    }
+}
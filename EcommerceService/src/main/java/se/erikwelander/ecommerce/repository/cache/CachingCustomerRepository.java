@@ -0,0 +1,582 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        CachingCustomerRepository.java
+// Encoding:	UTF-8
+//
+// Purpose:     Write-behind cache in front of another CustomerRepository.
+//              Customers are kept in a bounded LRU map and shopping cart
+//              changes are only made in memory. Changed customers are written
+//              back together in one unit of work, periodically and before an
+//              order takes their cart, only the cart lines that changed.
+//              Other changes are written through.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.repository.cache;
+
+import se.erikwelander.ecommerce.exception.ModelException;
+import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.model.Customer;
+import se.erikwelander.ecommerce.repository.CustomerRepository;
+import se.erikwelander.ecommerce.repository.UnitOfWork;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class CachingCustomerRepository implements CustomerRepository
+{
+    private static final Logger logger = Logger.getLogger(CachingCustomerRepository.class.getName());
+
+    private final CustomerRepository customerRepository;
+    private final UnitOfWork unitOfWork;
+    private final int maxSize;
+    private final AtomicLong hits = new AtomicLong(),
+            misses = new AtomicLong(),
+            evictions = new AtomicLong(),
+            flushedCustomers = new AtomicLong();
+
+    // Held while writing to customerRepository, so a flush never writes a cart over a newer write or a removed customer
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Everything below is guarded by this
+    private final LinkedHashMap<String, CachedCustomer> customers = new LinkedHashMap<String, CachedCustomer>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry (final Map.Entry<String, CachedCustomer> eldest)
+        {
+            // A customer with unwritten changes is left alone until it has been flushed
+            if (size() > maxSize && !eldest.getValue().isDirty())
+            {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+    // Raised by every write to customerRepository, a load that started before a write is not cached
+    private long generation;
+
+    private final ScheduledExecutorService flusher;
+
+    public CachingCustomerRepository (final CustomerRepository customerRepository,
+                                      final UnitOfWork unitOfWork,
+                                      final int maxSize,
+                                      final long flushIntervalMillis)
+    {
+        this.customerRepository = customerRepository;
+        this.unitOfWork = unitOfWork;
+        this.maxSize = maxSize;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            final Thread thread = new Thread(runnable, "customer-cache-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void addCustomer (final Customer customer) throws RepositoryException
+    {
+        writeLock.lock();
+        try
+        {
+            customerRepository.addCustomer(customer);
+            // The repository gave the customer its version, the next read loads it from there
+            invalidate(customer.userName);
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Customer getCustomer (final String userName) throws RepositoryException
+    {
+        synchronized (this)
+        {
+            final CachedCustomer cached = customers.get(userName);
+            if (cached != null)
+            {
+                hits.incrementAndGet();
+                return copy(cached.customer);
+            }
+        }
+        return copy(load(userName).customer);
+    }
+
+    // Unwritten changes are flushed first so the list is complete
+    @Override
+    public List<Customer> getAllCustomers () throws RepositoryException
+    {
+        flush();
+        return customerRepository.getAllCustomers();
+    }
+
+    @Override
+    public void updateCustomer (final Customer customer) throws RepositoryException
+    {
+        writeLock.lock();
+        try
+        {
+            customerRepository.updateCustomer(customer);
+            // Dropped rather than replaced for the same reason as in addCustomer
+            invalidate(customer.userName);
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void replaceShoppingCart (final Customer customer) throws RepositoryException
+    {
+        writeLock.lock();
+        try
+        {
+            customerRepository.replaceShoppingCart(customer);
+        } finally
+        {
+            invalidate(customer.userName);
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeCustomer (final String userName) throws RepositoryException
+    {
+        writeLock.lock();
+        try
+        {
+            customerRepository.removeCustomer(userName);
+        } finally
+        {
+            invalidate(userName);
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeProductFromAllCarts (final int productId) throws RepositoryException
+    {
+        writeLock.lock();
+        try
+        {
+            customerRepository.removeProductFromAllCarts(productId);
+            synchronized (this)
+            {
+                generation++;
+                for (CachedCustomer cached : customers.values())
+                {
+                    if (cached.customer.getShoppingCartQuantity(productId) > 0)
+                    {
+                        cached.customer.removeAllFromShoppingCart(productId);
+                    }
+                }
+            }
+        } catch (final ModelException exception)
+        {
+            throw new RepositoryException("Could not remove product from cached shopping carts: " + exception.getMessage(), exception);
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void addToShoppingCart (final String userName, final int productId, final int quantity) throws RepositoryException
+    {
+        changeShoppingCart(userName, customer ->
+        {
+            customer.addToShoppingCart(productId, quantity);
+            return true;
+        }, productId);
+    }
+
+    @Override
+    public void removeFromShoppingCart (final String userName, final int productId) throws RepositoryException
+    {
+        changeShoppingCart(userName, customer ->
+        {
+            if (customer.getShoppingCartQuantity(productId) == 0)
+            {
+                return false;
+            }
+            customer.removeAllFromShoppingCart(productId);
+            return true;
+        }, productId);
+    }
+
+    @Override
+    public void setShoppingCartQuantities (final String userName, final int[] productIds, final int[] quantities) throws RepositoryException
+    {
+        changeShoppingCart(userName, customer ->
+        {
+            for (int i = 0; i < productIds.length; i++)
+            {
+                customer.addToShoppingCart(productIds[i], quantities[i] - customer.getShoppingCartQuantity(productIds[i]));
+            }
+            return true;
+        }, productIds);
+    }
+
+    // Called as part of an order, so it is written through and the customer is dropped from the cache when the
+    // order is committed. ShopService flushes the customer before the order, so until then the cached cart is
+    // the stored one, and it stays that way if the order is rolled back.
+    @Override
+    public void emptyShoppingCart (final String userName) throws RepositoryException
+    {
+        writeLock.lock();
+        try
+        {
+            customerRepository.emptyShoppingCart(userName);
+        } finally
+        {
+            invalidate(userName);
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush (final String userName) throws RepositoryException
+    {
+        flushWhere(userName);
+    }
+
+    // Writes every changed customer in one unit of work
+    public void flush () throws RepositoryException
+    {
+        flushWhere(null);
+    }
+
+    // Flushes one customer, or every customer when userName is null
+    private void flushWhere (final String userName) throws RepositoryException
+    {
+        final List<CachedCustomer> dirtyCustomers = new ArrayList<>();
+        final List<CartChanges> cartChanges = new ArrayList<>();
+        final List<Long> versions = new ArrayList<>();
+        writeLock.lock();
+        try
+        {
+            synchronized (this)
+            {
+                for (CachedCustomer cached : userName == null ? customers.values() : Collections.singleton(customers.get(userName)))
+                {
+                    if (cached != null && cached.isDirty())
+                    {
+                        dirtyCustomers.add(cached);
+                        cartChanges.add(new CartChanges(cached));
+                        versions.add(cached.version);
+                    }
+                }
+            }
+            if (dirtyCustomers.isEmpty())
+            {
+                return;
+            }
+
+            unitOfWork.begin();
+            try
+            {
+                // Only the cart lines that changed, so a flush never overwrites or conflicts with an update of the
+                // details and a change of one line in a long cart writes one row
+                for (CartChanges changes : cartChanges)
+                {
+                    customerRepository.setShoppingCartQuantities(changes.userName, changes.productIds, changes.quantities);
+                }
+            } catch (final Throwable exception)
+            {
+                rollback(exception);
+                keepChanges(dirtyCustomers, cartChanges);
+                throw exception;
+            }
+            try
+            {
+                unitOfWork.commit();
+            } catch (final Throwable exception)
+            {
+                keepChanges(dirtyCustomers, cartChanges);
+                throw exception;
+            }
+
+            synchronized (this)
+            {
+                generation++;
+                for (int i = 0; i < dirtyCustomers.size(); i++)
+                {
+                    final CachedCustomer cached = dirtyCustomers.get(i);
+                    cached.flushedVersion = Math.max(cached.flushedVersion, versions.get(i));
+                }
+                // Customers that were kept only because they were dirty can go now, eldest first
+                final Iterator<CachedCustomer> iterator = customers.values().iterator();
+                while (customers.size() > maxSize && iterator.hasNext())
+                {
+                    if (!iterator.next().isDirty())
+                    {
+                        iterator.remove();
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+            flushedCustomers.addAndGet(dirtyCustomers.size());
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    // Flushes and stops the periodic flush
+    public void close () throws RepositoryException
+    {
+        flusher.shutdown();
+        flush();
+    }
+
+    // For changes made behind the back of the cache, like truncating the tables. Unwritten changes are lost.
+    public void invalidateAll ()
+    {
+        writeLock.lock();
+        try
+        {
+            synchronized (this)
+            {
+                generation++;
+                customers.clear();
+            }
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    public long getHits ()
+    {
+        return hits.get();
+    }
+
+    public long getMisses ()
+    {
+        return misses.get();
+    }
+
+    public double getHitRatio ()
+    {
+        final long hitCount = hits.get(), requestCount = hitCount + misses.get();
+        return requestCount == 0 ? 0 : (double) hitCount / requestCount;
+    }
+
+    public long getEvictions ()
+    {
+        return evictions.get();
+    }
+
+    // Customers written back by flushes so far
+    public long getFlushedCustomers ()
+    {
+        return flushedCustomers.get();
+    }
+
+    public synchronized int getDirtyCount ()
+    {
+        int dirtyCount = 0;
+        for (CachedCustomer cached : customers.values())
+        {
+            if (cached.isDirty())
+            {
+                dirtyCount++;
+            }
+        }
+        return dirtyCount;
+    }
+
+    public synchronized int size ()
+    {
+        return customers.size();
+    }
+
+    // Drops the customer once the unit of work the write is part of is committed. A load meanwhile still reads the
+    // old customer, which is what is stored until then, and does not outlive the commit.
+    private void invalidate (final String userName)
+    {
+        unitOfWork.afterCommit(() ->
+        {
+            synchronized (this)
+            {
+                generation++;
+                customers.remove(userName);
+            }
+        });
+    }
+
+    // Loads the customer and caches it unless someone else cached it or wrote to the repository meanwhile
+    private CachedCustomer load (final String userName) throws RepositoryException
+    {
+        final long loadGeneration;
+        synchronized (this)
+        {
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+
+        final CachedCustomer loaded = new CachedCustomer(copy(customerRepository.getCustomer(userName)));
+        synchronized (this)
+        {
+            final CachedCustomer cached = customers.get(userName);
+            if (cached != null)
+            {
+                return cached;
+            }
+            if (generation == loadGeneration)
+            {
+                customers.put(userName, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    // Applies a change of the products to the cached customer, loading it first if needed.
+    // The change returns whether it changed anything.
+    private void changeShoppingCart (final String userName, final ShoppingCartChange change, final int... productIds) throws RepositoryException
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                final CachedCustomer cached = customers.get(userName);
+                if (cached != null)
+                {
+                    try
+                    {
+                        if (change.apply(cached.customer))
+                        {
+                            cached.version++;
+                            for (int productId : productIds)
+                            {
+                                cached.changedProductIds.add(productId);
+                            }
+                        }
+                    } catch (final ModelException exception)
+                    {
+                        throw new RepositoryException("Could not change shopping cart: " + exception.getMessage(), exception);
+                    }
+                    return;
+                }
+            }
+            // Goes around again if the customer could not be cached or was evicted before the lock was taken
+            load(userName);
+        }
+    }
+
+    // Puts back what a failed flush took, the customers stay dirty and the next flush writes these lines again
+    private synchronized void keepChanges (final List<CachedCustomer> dirtyCustomers, final List<CartChanges> cartChanges)
+    {
+        for (int i = 0; i < dirtyCustomers.size(); i++)
+        {
+            for (int productId : cartChanges.get(i).productIds)
+            {
+                dirtyCustomers.get(i).changedProductIds.add(productId);
+            }
+        }
+    }
+
+    private void rollback (final Throwable cause)
+    {
+        try
+        {
+            unitOfWork.rollback();
+        } catch (final RepositoryException exception)
+        {
+            cause.addSuppressed(exception);
+        }
+    }
+
+    private void flushQuietly ()
+    {
+        try
+        {
+            flush();
+        } catch (final Throwable exception)
+        {
+            logger.log(Level.WARNING, "Could not flush customer cache: " + exception.getMessage(), exception);
+        }
+    }
+
+    private static Customer copy (final Customer customer)
+    {
+        final Customer copy = new Customer(customer.userName,
+                customer.password,
+                customer.email,
+                customer.firstName,
+                customer.lastName,
+                customer.address,
+                customer.phoneNumber,
+                customer.version);
+        for (int productId : customer.getShoppingCartProductIds())
+        {
+            copy.addToShoppingCart(productId, customer.getShoppingCartQuantity(productId));
+        }
+        return copy;
+    }
+
+    private interface ShoppingCartChange
+    {
+        boolean apply (final Customer customer) throws ModelException;
+    }
+
+    private static final class CachedCustomer
+    {
+        final Customer customer;
+        // Raised by every change made only in memory, the customer is dirty until a flush has written that version
+        long version, flushedVersion;
+        // Products whose cart line has changed since the last flush took them
+        final Set<Integer> changedProductIds = new HashSet<>();
+
+        CachedCustomer (final Customer customer)
+        {
+            this.customer = customer;
+        }
+
+        boolean isDirty ()
+        {
+            return version != flushedVersion;
+        }
+    }
+
+    // The changed cart lines of a customer as a flush writes them. Taking them clears them from the cached customer.
+    // Must be created while holding the cache's lock.
+    private static final class CartChanges
+    {
+        final String userName;
+        final int[] productIds, quantities;
+
+        CartChanges (final CachedCustomer cached)
+        {
+            userName = cached.customer.userName;
+            productIds = new int[cached.changedProductIds.size()];
+            quantities = new int[productIds.length];
+            int i = 0;
+            for (int productId : cached.changedProductIds)
+            {
+                productIds[i] = productId;
+                quantities[i++] = cached.customer.getShoppingCartQuantity(productId);
+            }
+            cached.changedProductIds.clear();
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        CachingProductRepository.java
+// Encoding:	UTF-8
+//
+// Purpose:     Read-through cache in front of another ProductRepository.
+//              Products are kept for a limited time in a bounded LRU map,
+//              every write through the cache drops what it changed once the
+//              write has been committed.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.repository.cache;
+
+import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.ProductRepository;
+import se.erikwelander.ecommerce.repository.UnitOfWork;
+import se.erikwelander.ecommerce.repository.memory.InMemoryUnitOfWork;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class CachingProductRepository implements ProductRepository
+{
+    private final ProductRepository productRepository;
+    private final UnitOfWork unitOfWork;
+    private final int maxSize;
+    private final long timeToLiveNanos;
+    private final AtomicLong hits = new AtomicLong(),
+            misses = new AtomicLong(),
+            evictions = new AtomicLong(),
+            expirations = new AtomicLong();
+
+    // Everything below is guarded by this
+    private final LinkedHashMap<Integer, CacheEntry<Product>> products = new LinkedHashMap<Integer, CacheEntry<Product>>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry (final Map.Entry<Integer, CacheEntry<Product>> eldest)
+        {
+            if (size() > maxSize)
+            {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+    private CacheEntry<List<Product>> allProducts;
+    // The catalog version read before allProducts was loaded
+    private long allProductsVersion;
+    // Raised by every write, a load that started before a write is not cached since it may have read the old value
+    private long generation;
+
+    // For repositories that apply their writes immediately, like the memory repositories
+    public CachingProductRepository (final ProductRepository productRepository, final int maxSize, final long timeToLiveMillis)
+    {
+        this(productRepository, new InMemoryUnitOfWork(), maxSize, timeToLiveMillis);
+    }
+
+    // The unit of work the writes run in, the cache drops what they changed when it is committed
+    public CachingProductRepository (final ProductRepository productRepository,
+                                     final UnitOfWork unitOfWork,
+                                     final int maxSize,
+                                     final long timeToLiveMillis)
+    {
+        this.productRepository = productRepository;
+        this.unitOfWork = unitOfWork;
+        this.maxSize = maxSize;
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+    }
+
+    @Override
+    public void addProduct (final Product product) throws RepositoryException
+    {
+        try
+        {
+            productRepository.addProduct(product);
+        } finally
+        {
+            invalidate(product.id);
+        }
+    }
+
+    @Override
+    public void addProducts (final List<Product> products) throws RepositoryException
+    {
+        try
+        {
+            productRepository.addProducts(products);
+        } finally
+        {
+            // New products only change the cached list, there is nothing cached under their ids
+            invalidateAllProducts();
+        }
+    }
+
+    @Override
+    public Product getProduct (final int productId) throws RepositoryException
+    {
+        final long loadGeneration;
+        synchronized (this)
+        {
+            final CacheEntry<Product> cached = products.get(productId);
+            if (cached != null)
+            {
+                if (!cached.isExpired())
+                {
+                    hits.incrementAndGet();
+                    return copy(cached.value);
+                }
+                products.remove(productId);
+                expirations.incrementAndGet();
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+
+        // Loaded without holding the lock so a slow query does not block the hits
+        final Product product = productRepository.getProduct(productId);
+        synchronized (this)
+        {
+            if (generation == loadGeneration)
+            {
+                products.put(productId, new CacheEntry<>(copy(product)));
+            }
+        }
+        return product;
+    }
+
+    @Override
+    public List<Product> getAllproducts () throws RepositoryException
+    {
+        final long loadGeneration;
+        synchronized (this)
+        {
+            if (allProducts != null)
+            {
+                if (!allProducts.isExpired())
+                {
+                    hits.incrementAndGet();
+                    return copyAll(allProducts.value);
+                }
+                allProducts = null;
+                expirations.incrementAndGet();
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+
+        // Read first, so a write between the two reads leaves an older version with newer products and a client
+        // holding them reads them again once the version moves, never an old list with the new version
+        final long loadedVersion = productRepository.getProductsVersion();
+        final List<Product> loaded = productRepository.getAllproducts();
+        synchronized (this)
+        {
+            if (generation == loadGeneration)
+            {
+                allProducts = new CacheEntry<>(copyAll(loaded));
+                allProductsVersion = loadedVersion;
+            }
+        }
+        return loaded;
+    }
+
+    // Uses the cached product list when there is one, otherwise streams from the repository
+    // without caching anything so one listing of a large catalog does not push out the hot products
+    @Override
+    public void forEachProduct (final Consumer<Product> consumer) throws RepositoryException
+    {
+        final List<Product> cachedProducts;
+        synchronized (this)
+        {
+            cachedProducts = allProducts != null && !allProducts.isExpired() ? allProducts.value : null;
+        }
+        if (cachedProducts == null)
+        {
+            misses.incrementAndGet();
+            productRepository.forEachProduct(consumer);
+            return;
+        }
+
+        hits.incrementAndGet();
+        for (Product product : cachedProducts)
+        {
+            consumer.accept(copy(product));
+        }
+    }
+
+    // Pages are not cached, each is a cheap ranged read and caching them all would push out the hot products
+    @Override
+    public List<Product> getProductsAfter (final int afterProductId, final int limit) throws RepositoryException
+    {
+        return productRepository.getProductsAfter(afterProductId, limit);
+    }
+
+    // The version of the cached product list when there is one, so it matches what forEachProduct hands out
+    @Override
+    public long getProductsVersion () throws RepositoryException
+    {
+        synchronized (this)
+        {
+            if (allProducts != null && !allProducts.isExpired())
+            {
+                return allProductsVersion;
+            }
+        }
+        return productRepository.getProductsVersion();
+    }
+
+    @Override
+    public int getHighestProductId () throws RepositoryException
+    {
+        return productRepository.getHighestProductId();
+    }
+
+    @Override
+    public int reserveProductIds (final int count) throws RepositoryException
+    {
+        return productRepository.reserveProductIds(count);
+    }
+
+    @Override
+    public void updateProduct (final Product product) throws RepositoryException
+    {
+        try
+        {
+            productRepository.updateProduct(product);
+        } finally
+        {
+            invalidate(product.id);
+        }
+    }
+
+    // A reader between this write and its commit still sees the old stock, which is dropped at the commit.
+    // Until then it is what the database holds, so stock holds never count units that were just sold.
+    @Override
+    public List<Integer> productsUpdateQuantity (final List<Integer> productIDs, final int quantityChange) throws RepositoryException
+    {
+        try
+        {
+            return productRepository.productsUpdateQuantity(productIDs, quantityChange);
+        } finally
+        {
+            unitOfWork.afterCommit(() ->
+            {
+                synchronized (this)
+                {
+                    generation++;
+                    allProducts = null;
+                    for (int productId : productIDs)
+                    {
+                        products.remove(productId);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public List<Integer> productsUpdateQuantities (final int[] productIds, final int[] quantityChanges) throws RepositoryException
+    {
+        try
+        {
+            return productRepository.productsUpdateQuantities(productIds, quantityChanges);
+        } finally
+        {
+            unitOfWork.afterCommit(() ->
+            {
+                synchronized (this)
+                {
+                    generation++;
+                    allProducts = null;
+                    for (int productId : productIds)
+                    {
+                        products.remove(productId);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void removeProduct (final int productId) throws RepositoryException
+    {
+        try
+        {
+            productRepository.removeProduct(productId);
+        } finally
+        {
+            invalidate(productId);
+        }
+    }
+
+    // For changes made behind the back of the cache, like truncating the tables
+    public synchronized void invalidateAll ()
+    {
+        generation++;
+        allProducts = null;
+        products.clear();
+    }
+
+    public long getHits ()
+    {
+        return hits.get();
+    }
+
+    public long getMisses ()
+    {
+        return misses.get();
+    }
+
+    public double getHitRatio ()
+    {
+        final long hitCount = hits.get(), requestCount = hitCount + misses.get();
+        return requestCount == 0 ? 0 : (double) hitCount / requestCount;
+    }
+
+    // Entries dropped because the cache was full
+    public long getEvictions ()
+    {
+        return evictions.get();
+    }
+
+    // Entries dropped because they were older than the time to live
+    public long getExpirations ()
+    {
+        return expirations.get();
+    }
+
+    public synchronized int size ()
+    {
+        return products.size();
+    }
+
+    private void invalidate (final int productId)
+    {
+        unitOfWork.afterCommit(() ->
+        {
+            synchronized (this)
+            {
+                generation++;
+                allProducts = null;
+                products.remove(productId);
+            }
+        });
+    }
+
+    private void invalidateAllProducts ()
+    {
+        unitOfWork.afterCommit(() ->
+        {
+            synchronized (this)
+            {
+                generation++;
+                allProducts = null;
+            }
+        });
+    }
+
+    // Product quantity can be changed by the caller, so the cache never hands out its own objects
+    private static Product copy (final Product product)
+    {
+        return new Product(product.id,
+                product.getQuantity(),
+                product.price,
+                product.title,
+                product.category,
+                product.manufacturer,
+                product.description,
+                product.image,
+                product.version);
+    }
+
+    private static List<Product> copyAll (final List<Product> products)
+    {
+        final List<Product> copies = new ArrayList<>(products.size());
+        for (Product product : products)
+        {
+            copies.add(copy(product));
+        }
+        return copies;
+    }
+
+    private final class CacheEntry<T>
+    {
+        final T value;
+        final long expiresAt = System.nanoTime() + timeToLiveNanos;
+
+        CacheEntry (final T value)
+        {
+            this.value = value;
+        }
+
+        boolean isExpired ()
+        {
+            return System.nanoTime() - expiresAt >= 0;
+        }
+    }
+}
@@ -12,35 +12,37 @@
 package se.erikwelander.ecommerce.repository.memory;
 
 import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.exception.VersionConflictException;
 import se.erikwelander.ecommerce.model.Customer;
 import se.erikwelander.ecommerce.repository.CustomerRepository;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class InMemoryCustomerRepository implements CustomerRepository
 {
-    private HashMap<String, Customer> customers = new HashMap<>();
+    // A stored customer is never changed, cart changes replace it with a changed copy so readers never see half a change
+    private final ConcurrentHashMap<String, Customer> customers = new ConcurrentHashMap<>();
 
     @Override
     public void addCustomer (final Customer customer) throws RepositoryException
     {
-        if (customers.containsKey(customer.userName))
+        if (customers.putIfAbsent(customer.userName, withVersion(customer, Versions.next(0))) != null)
         {
             throw new RepositoryException("Could not add customer: Customer already exists");
         }
-        customers.put(customer.userName, customer);
     }
 
     @Override
     public Customer getCustomer (final String userName) throws RepositoryException
     {
-        if (customers.containsKey(userName))
+        final Customer customer = customers.get(userName);
+        if (customer == null)
         {
-            return customers.get(userName);
+            throw new RepositoryException("Could not get customer: Customer does not exist");
         }
-        throw new RepositoryException("Could not get customer: Customer does not exist");
+        return customer;
     }
 
     @Override
@@ -52,26 +54,164 @@ public class InMemoryCustomerRepository implements CustomerRepository
     @Override
     public void updateCustomer (final Customer customer) throws RepositoryException
     {
-        if (customers.containsKey(customer.userName))
+        final boolean[] conflict = {false};
+        final Customer updated = customers.computeIfPresent(customer.userName, (key, stored) ->
         {
-            customers.replace(customer.userName, customer);
-        }
-        else
+            conflict[0] = customer.version != 0 && customer.version != stored.version;
+            return conflict[0] ? stored : withVersion(customer, Versions.next(stored.version));
+        });
+        if (updated == null)
         {
             throw new RepositoryException("Could not update customer: Customer does not exist");
         }
+        if (conflict[0])
+        {
+            throw new VersionConflictException("Customer " + customer.userName + " has been changed since version " + customer.version);
+        }
     }
 
     @Override
-    public void removeCustomer (final String userName) throws RepositoryException
+    public void replaceShoppingCart (final Customer customer) throws RepositoryException
     {
-        if (customers.containsKey(userName))
+        final Customer replaced = customers.computeIfPresent(customer.userName, (key, stored) ->
         {
-            customers.remove(userName);
+            final Customer copy = new Customer(stored.userName,
+                    stored.password,
+                    stored.email,
+                    stored.firstName,
+                    stored.lastName,
+                    stored.address,
+                    stored.phoneNumber,
+                    stored.version);
+            for (int productId : customer.getShoppingCartProductIds())
+            {
+                copy.addToShoppingCart(productId, customer.getShoppingCartQuantity(productId));
+            }
+            return copy;
+        });
+        if (replaced == null)
+        {
+            throw new RepositoryException("Could not get customer: Customer does not exist");
         }
-        else
+    }
+
+    @Override
+    public void removeCustomer (final String userName) throws RepositoryException
+    {
+        if (customers.remove(userName) == null)
         {
             throw new RepositoryException("Could not remove customer: Customer does not exist.");
         }
     }
+
+    @Override
+    public void removeProductFromAllCarts (final int productId) throws RepositoryException
+    {
+        for (String userName : customers.keySet())
+        {
+            customers.computeIfPresent(userName, (key, customer) ->
+                    customer.getShoppingCartQuantity(productId) > 0 ? copyWithQuantity(customer, productId, 0) : customer);
+        }
+    }
+
+    @Override
+    public void addToShoppingCart (final String userName, final int productId, final int quantity) throws RepositoryException
+    {
+        final Customer changed = customers.computeIfPresent(userName, (key, customer) ->
+                copyWithQuantity(customer, productId, customer.getShoppingCartQuantity(productId) + quantity));
+        if (changed == null)
+        {
+            throw new RepositoryException("Could not get customer: Customer does not exist");
+        }
+    }
+
+    @Override
+    public void removeFromShoppingCart (final String userName, final int productId) throws RepositoryException
+    {
+        if (customers.computeIfPresent(userName, (key, customer) -> copyWithQuantity(customer, productId, 0)) == null)
+        {
+            throw new RepositoryException("Could not get customer: Customer does not exist");
+        }
+    }
+
+    @Override
+    public void setShoppingCartQuantities (final String userName, final int[] productIds, final int[] quantities) throws RepositoryException
+    {
+        final Customer changed = customers.computeIfPresent(userName, (key, customer) ->
+        {
+            final Customer copy = withVersion(customer, customer.version);
+            for (int i = 0; i < productIds.length; i++)
+            {
+                copy.addToShoppingCart(productIds[i], quantities[i] - copy.getShoppingCartQuantity(productIds[i]));
+            }
+            return copy;
+        });
+        if (changed == null)
+        {
+            throw new RepositoryException("Could not get customer: Customer does not exist");
+        }
+    }
+
+    @Override
+    public void emptyShoppingCart (final String userName) throws RepositoryException
+    {
+        final Customer emptied = customers.computeIfPresent(userName, (key, customer) -> new Customer(customer.userName,
+                customer.password,
+                customer.email,
+                customer.firstName,
+                customer.lastName,
+                customer.address,
+                customer.phoneNumber,
+                customer.version));
+        if (emptied == null)
+        {
+            throw new RepositoryException("Could not get customer: Customer does not exist");
+        }
+    }
+
+    @Override
+    public void flush (final String userName)
+    {
+        // Every change is made immediately
+    }
+
+    // The customer with a new quantity of one product in the cart, 0 takes it out. The cart keeps its order.
+    private static Customer copyWithQuantity (final Customer customer, final int changedProductId, final int quantity)
+    {
+        final Customer copy = new Customer(customer.userName,
+                customer.password,
+                customer.email,
+                customer.firstName,
+                customer.lastName,
+                customer.address,
+                customer.phoneNumber,
+                customer.version);
+        for (int productId : customer.getShoppingCartProductIds())
+        {
+            copy.addToShoppingCart(productId, productId == changedProductId ? quantity : customer.getShoppingCartQuantity(productId));
+        }
+        if (customer.getShoppingCartQuantity(changedProductId) == 0)
+        {
+            copy.addToShoppingCart(changedProductId, quantity);
+        }
+        return copy;
+    }
+
+    // The customer and its cart with a new version
+    private static Customer withVersion (final Customer customer, final long version)
+    {
+        final Customer copy = new Customer(customer.userName,
+                customer.password,
+                customer.email,
+                customer.firstName,
+                customer.lastName,
+                customer.address,
+                customer.phoneNumber,
+                version);
+        for (int productId : customer.getShoppingCartProductIds())
+        {
+            copy.addToShoppingCart(productId, customer.getShoppingCartQuantity(productId));
+        }
+        return copy;
+    }
 }
@@ -12,59 +12,73 @@
 package se.erikwelander.ecommerce.repository.memory;
 
 import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.exception.VersionConflictException;
 import se.erikwelander.ecommerce.model.Order;
 import se.erikwelander.ecommerce.repository.OrderRepository;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class InMemoryOrderRepository implements OrderRepository
 {
-    private HashMap<Integer, Order> orders = new HashMap<>();
+    private final ConcurrentHashMap<Integer, Order> orders = new ConcurrentHashMap<>();
+    // Order ids of every customer, in id order. Sets are only changed inside compute so an emptied set is never reused.
+    private final ConcurrentHashMap<String, Set<Integer>> orderIdsByCustomer = new ConcurrentHashMap<>();
+    // Highest id ever added or reserved, it does not go down when orders are removed
+    private final AtomicInteger highestOrderId = new AtomicInteger();
 
     @Override
     public void addOrder (final Order order) throws RepositoryException
     {
-        if (this.orders.containsKey(order.id))
+        if (this.orders.putIfAbsent(order.id, order.withVersion(Versions.next(0))) != null)
         {
             throw new RepositoryException("Could not add order: Order already exists in repository.");
         }
-        this.orders.put(order.id, order);
+        highestOrderId.accumulateAndGet(order.id, Math::max);
+        index(order);
     }
 
     @Override
     public Order getOrder (final int orderId) throws RepositoryException
     {
-        if (orders.containsKey(orderId))
+        final Order order = orders.get(orderId);
+        if (order == null)
         {
-            return orders.get(orderId);
+            throw new RepositoryException("Cannot get order: Order does not exist in repository.");
         }
-        throw new RepositoryException("Cannot get order: Order does not exist in repository.");
+        return order;
     }
 
     @Override
     public void removeOrder (final int orderId) throws RepositoryException
     {
-        if (orders.containsKey(orderId))
-        {
-            orders.remove(orderId);
-        }
-        else
+        final Order removedOrder = orders.remove(orderId);
+        if (removedOrder == null)
         {
             throw new RepositoryException("Could not remove order: Order does not exist in repository:");
         }
+        unindex(removedOrder);
     }
 
     @Override
     public List<Order> getAllOrders (final String customerUsername) throws RepositoryException
     {
         ArrayList<Order> orderList = new ArrayList<>();
-        for (Order order : orders.values())
+        final Set<Integer> orderIds = orderIdsByCustomer.get(customerUsername);
+        if (orderIds != null)
         {
-            if (order.customerUserName.equals(customerUsername))
+            for (int orderId : orderIds)
             {
-                orderList.add(order);
+                // The index can be a moment behind a concurrent remove or update
+                final Order order = orders.get(orderId);
+                if (order != null && order.customerUserName.equals(customerUsername))
+                {
+                    orderList.add(order);
+                }
             }
         }
         if (orderList.isEmpty())
@@ -77,19 +91,56 @@ public class InMemoryOrderRepository implements OrderRepository
     @Override
     public int getHighestOrderId () throws RepositoryException
     {
-        return orders.size();
+        return highestOrderId.get();
+    }
+
+    @Override
+    public int reserveOrderIds (final int count) throws RepositoryException
+    {
+        return highestOrderId.getAndAdd(count) + 1;
     }
 
     @Override
     public void updateOrder (final Order order) throws RepositoryException
     {
-        if (orders.containsKey(order.id))
+        final Order[] replaced = new Order[1];
+        orders.computeIfPresent(order.id, (key, stored) ->
         {
-            orders.replace(order.id, order);
-        }
-        else
+            replaced[0] = stored;
+            return order.version != 0 && order.version != stored.version ? stored : order.withVersion(Versions.next(stored.version));
+        });
+        final Order replacedOrder = replaced[0];
+        if (replacedOrder == null)
         {
             throw new RepositoryException("No order with this ID exists in repository");
         }
+        if (order.version != 0 && order.version != replacedOrder.version)
+        {
+            throw new VersionConflictException("Order " + order.id + " has been changed since version " + order.version);
+        }
+        if (!replacedOrder.customerUserName.equals(order.customerUserName))
+        {
+            unindex(replacedOrder);
+            index(order);
+        }
+    }
+
+    private void index (final Order order)
+    {
+        orderIdsByCustomer.compute(order.customerUserName, (customerUsername, orderIds) ->
+        {
+            final Set<Integer> customerOrderIds = orderIds == null ? new ConcurrentSkipListSet<>() : orderIds;
+            customerOrderIds.add(order.id);
+            return customerOrderIds;
+        });
+    }
+
+    private void unindex (final Order order)
+    {
+        orderIdsByCustomer.computeIfPresent(order.customerUserName, (customerUsername, orderIds) ->
+        {
+            orderIds.remove(order.id);
+            return orderIds.isEmpty() ? null : orderIds;
+        });
     }
 }
@@ -12,35 +12,70 @@
 package se.erikwelander.ecommerce.repository.memory;
 
 import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.exception.VersionConflictException;
 import se.erikwelander.ecommerce.model.Product;
 import se.erikwelander.ecommerce.repository.ProductRepository;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class InMemoryProductRepository implements ProductRepository
 {
-    private HashMap<Integer, Product> products = new HashMap<>();
+    // Stock changes replace the stored product with a changed copy so readers never see half a change.
+    // Sorted by id so a page starts with a lookup instead of a scan over the products before it.
+    private final ConcurrentSkipListMap<Integer, Product> products = new ConcurrentSkipListMap<>();
+    // Highest id ever added or reserved, it does not go down when products are removed
+    private final AtomicInteger highestProductId = new AtomicInteger();
+    // Raised by every write, see ProductRepository.getProductsVersion
+    private final AtomicLong productsVersion = new AtomicLong();
 
     @Override
     public void addProduct (final Product product) throws RepositoryException
     {
-        if (products.containsKey(product.id))
+        if (products.putIfAbsent(product.id, withVersion(product, product.getQuantity(), Versions.next(0))) != null)
         {
             throw new RepositoryException("Cannot get add: Product with id " + product.id + " already exist in repository");
         }
-        products.put(product.id, product);
+        highestProductId.accumulateAndGet(product.id, Math::max);
+        productsVersion.incrementAndGet();
+    }
+
+    @Override
+    public void addProducts (final List<Product> products) throws RepositoryException
+    {
+        // There is nothing to roll back in memory, so a duplicate takes out the products added before it
+        for (int index = 0; index < products.size(); index++)
+        {
+            try
+            {
+                addProduct(products.get(index));
+            } catch (final RepositoryException exception)
+            {
+                for (int added = 0; added < index; added++)
+                {
+                    this.products.remove(products.get(added).id);
+                }
+                productsVersion.incrementAndGet();
+                throw exception;
+            }
+        }
     }
 
     @Override
     public Product getProduct (final int productId) throws RepositoryException
     {
-        if (products.containsKey(productId))
+        final Product product = products.get(productId);
+        if (product == null)
         {
-            return products.get(productId);
+            throw new RepositoryException("Cannot get product: product with id " + productId + " does not exist in repository");
         }
-        throw new RepositoryException("Cannot get product: product with id " + productId + " does not exist in repository");
+        return product;
     }
 
     @Override
@@ -49,30 +84,152 @@ public class InMemoryProductRepository implements ProductRepository
         return new ArrayList<Product>(products.values());
     }
 
+    @Override
+    public void forEachProduct (final Consumer<Product> consumer) throws RepositoryException
+    {
+        // The iterator does not copy the map and is not disturbed by concurrent writes
+        for (Product product : products.values())
+        {
+            consumer.accept(product);
+        }
+    }
+
+    @Override
+    public List<Product> getProductsAfter (final int afterProductId, final int limit) throws RepositoryException
+    {
+        final List<Product> productList = new ArrayList<>(limit);
+        for (Product product : products.tailMap(afterProductId, false).values())
+        {
+            if (productList.size() == limit)
+            {
+                break;
+            }
+            productList.add(product);
+        }
+        return productList;
+    }
+
+    @Override
+    public long getProductsVersion () throws RepositoryException
+    {
+        return productsVersion.get();
+    }
+
     @Override
     public int getHighestProductId () throws RepositoryException
     {
-        return this.products.size();
+        return highestProductId.get();
+    }
+
+    @Override
+    public int reserveProductIds (final int count) throws RepositoryException
+    {
+        return highestProductId.getAndAdd(count) + 1;
     }
 
     @Override
     public void updateProduct (final Product product) throws RepositoryException
     {
-        this.products.replace(product.id, product);
+        final boolean[] conflict = {product.version != 0};
+        this.products.computeIfPresent(product.id, (key, stored) ->
+        {
+            conflict[0] = product.version != 0 && product.version != stored.version;
+            return conflict[0] ? stored : withVersion(product, product.getQuantity(), Versions.next(stored.version));
+        });
+        if (conflict[0])
+        {
+            throw new VersionConflictException("Product " + product.id + " has been changed since version " + product.version + " or does not exist");
+        }
+        productsVersion.incrementAndGet();
     }
 
     @Override
-    public void productsUpdateQuantity (List<Integer> productIDs, int quantityChange) throws RepositoryException
+    public List<Integer> productsUpdateQuantity (List<Integer> productIDs, int quantityChange) throws RepositoryException
     {
+        final TreeMap<Integer, Integer> quantityChanges = new TreeMap<>();
         for (int productId : productIDs)
         {
-            this.products.get(productId).increaseDecreaseQuantity(quantityChange);
+            quantityChanges.merge(productId, quantityChange, Integer::sum);
+        }
+        return updateQuantities(quantityChanges);
+    }
+
+    @Override
+    public List<Integer> productsUpdateQuantities (final int[] productIds, final int[] quantityChanges) throws RepositoryException
+    {
+        final TreeMap<Integer, Integer> productQuantityChanges = new TreeMap<>();
+        for (int i = 0; i < productIds.length; i++)
+        {
+            productQuantityChanges.merge(productIds[i], quantityChanges[i], Integer::sum);
+        }
+        return updateQuantities(productQuantityChanges);
+    }
+
+    private List<Integer> updateQuantities (final TreeMap<Integer, Integer> quantityChanges)
+    {
+        // Each product changes atomically on its own. There is nothing to roll back in memory,
+        // so when one product fails the ones already changed are changed back and none is kept.
+        final List<Integer> failedProductIDs = new ArrayList<>();
+        final Map<Integer, Integer> appliedChanges = new TreeMap<>();
+        for (Map.Entry<Integer, Integer> productQuantityChange : quantityChanges.entrySet())
+        {
+            final int productId = productQuantityChange.getKey(), change = productQuantityChange.getValue();
+            while (true)
+            {
+                final Product product = products.get(productId);
+                if (product == null || product.getQuantity() + change < 0)
+                {
+                    failedProductIDs.add(productId);
+                    break;
+                }
+                // Only replaced if nobody changed the product since it was read, otherwise read it again
+                if (products.replace(productId, product, withQuantity(product, product.getQuantity() + change)))
+                {
+                    appliedChanges.put(productId, change);
+                    break;
+                }
+            }
+        }
+        if (!failedProductIDs.isEmpty())
+        {
+            for (Map.Entry<Integer, Integer> appliedChange : appliedChanges.entrySet())
+            {
+                products.computeIfPresent(appliedChange.getKey(), (key, product) ->
+                        withQuantity(product, product.getQuantity() - appliedChange.getValue()));
+            }
         }
+        // Also when changed back, the products have new versions
+        if (!appliedChanges.isEmpty())
+        {
+            productsVersion.incrementAndGet();
+        }
+        return failedProductIDs;
     }
 
     @Override
     public void removeProduct (int productId) throws RepositoryException
     {
-        this.products.remove(productId);
+        if (this.products.remove(productId) != null)
+        {
+            productsVersion.incrementAndGet();
+        }
+    }
+
+    private static Product withQuantity (final Product product, final int quantity)
+    {
+        return withVersion(product, quantity, Versions.next(product.version));
+    }
+
+    private static Product withVersion (final Product product, final int quantity, final long version)
+    {
+        return new Product(product.id,
+                quantity,
+                product.price,
+                product.title,
+                product.category,
+                product.manufacturer,
+                product.description,
+                product.image,
+                version);
     }
 }
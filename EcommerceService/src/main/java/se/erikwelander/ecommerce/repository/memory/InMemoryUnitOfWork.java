@@ -0,0 +1,91 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        InMemoryUnitOfWork.java
+// Encoding:	UTF-8
+//
+// Purpose:     In memory implementation of UnitOfWork.
+//              The memory repositories apply every write immediately,
+//              so there is nothing to commit. Rolling back runs the undos
+//              the writers registered, latest first.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.repository.memory;
+
+import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.repository.UnitOfWork;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+public class InMemoryUnitOfWork implements UnitOfWork
+{
+    // Null while the thread runs no unit of work
+    private final ThreadLocal<Deque<Undo>> undos = new ThreadLocal<>();
+
+    @Override
+    public void begin ()
+    {
+        undos.set(new ArrayDeque<>());
+    }
+
+    @Override
+    public void commit ()
+    {
+        undos.remove();
+    }
+
+    // Every undo runs even when one fails, the first failure is thrown with the others suppressed
+    @Override
+    public void rollback () throws RepositoryException
+    {
+        final Deque<Undo> threadUndos = undos.get();
+        undos.remove();
+        if (threadUndos == null)
+        {
+            return;
+        }
+        RepositoryException failure = null;
+        for (Undo undo : threadUndos)
+        {
+            try
+            {
+                undo.run();
+            } catch (final RepositoryException exception)
+            {
+                if (failure == null)
+                {
+                    failure = exception;
+                }
+                else
+                {
+                    failure.addSuppressed(exception);
+                }
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    // Every write is already visible
+    @Override
+    public void afterCommit (final Runnable action)
+    {
+        action.run();
+    }
+
+    // Outside a unit of work the write is final
+    @Override
+    public void onRollback (final Undo undo)
+    {
+        final Deque<Undo> threadUndos = undos.get();
+        if (threadUndos != null)
+        {
+            threadUndos.push(undo);
+        }
+    }
+}
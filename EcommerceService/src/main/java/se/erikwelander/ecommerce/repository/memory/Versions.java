@@ -0,0 +1,26 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        Versions.java
+// Encoding:	UTF-8
+//
+// Purpose:     Version stamps for the memory repositories, the same as the
+//              SQL repositories write with GREATEST(version + 1, now).
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.repository.memory;
+
+final class Versions
+{
+    private Versions ()
+    {
+    }
+
+    // The current time, or one more than the version it replaces when the clock has not moved past it
+    static long next (final long version)
+    {
+        return Math.max(version + 1, System.currentTimeMillis());
+    }
+}
@@ -19,4 +19,16 @@ public class DBInfo
     public final static String username = "root";
     public final static String password = "lol123";
     public final static String database = "ecommerce";
+
+    // Connection pool shared by all SQL repositories
+    public final static int poolMinSize = 2;
+    public final static int poolMaxSize = 16;
+    public final static long poolIdleTimeoutMillis = 5 * 60 * 1000;
+    public final static long poolAcquireTimeoutMillis = 5 * 1000;
+    public final static long poolLeakThresholdMillis = 60 * 1000;
+    // Also log where a possibly leaked connection was borrowed, costs a stack trace per borrow
+    public final static boolean poolLeakStackTraces = false;
+    public final static int poolValidationTimeoutSeconds = 2;
+    // Prepared statements kept open per pooled connection, 0 disables the cache
+    public final static int poolStatementCacheSize = 64;
 }
@@ -0,0 +1,675 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        SQLConnectionPool.java
+// Encoding:	UTF-8
+//
+// Purpose:     A bounded pool of database connections shared by all SQL repositories.
+//              Connections are validated when borrowed, evicted when idle for too long
+//              and reported if they are kept borrowed for suspiciously long.
+//              Every connection keeps its own LRU cache of prepared statements.
+//              Close it when the application stops, or the connections and
+//              the housekeeper thread outlive it.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.repository.sql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+final class SQLConnectionPool
+{
+    private static final Logger logger = Logger.getLogger(SQLConnectionPool.class.getName());
+    private static final long HOUSEKEEPING_INTERVAL_MILLIS = 10000;
+
+    private final String url, username, password;
+    private final int minSize, maxSize, validationTimeoutSeconds, statementCacheSize;
+    private final long idleTimeoutNanos, acquireTimeoutNanos, leakThresholdNanos;
+    // Filling in a stack trace on every borrow is only worth it while hunting a leak
+    private final boolean leakStackTraces;
+    private final AtomicLong statementCacheHits = new AtomicLong(), statementCacheMisses = new AtomicLong();
+
+    // Everything below is guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition connectionAvailable = lock.newCondition();
+    private final ArrayDeque<PooledConnection> idleConnections = new ArrayDeque<>();
+    private final Set<PooledConnection> borrowedConnections = new HashSet<>();
+    // Idle, borrowed and currently opening connections
+    private int totalConnections;
+    private boolean closed;
+
+    private final ScheduledExecutorService housekeeper;
+
+    SQLConnectionPool (final String url,
+                       final String username,
+                       final String password,
+                       final int minSize,
+                       final int maxSize,
+                       final long idleTimeoutMillis,
+                       final long acquireTimeoutMillis,
+                       final long leakThresholdMillis,
+                       final boolean leakStackTraces,
+                       final int validationTimeoutSeconds,
+                       final int statementCacheSize) throws SQLException
+    {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        this.leakThresholdNanos = TimeUnit.MILLISECONDS.toNanos(leakThresholdMillis);
+        this.leakStackTraces = leakStackTraces;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.statementCacheSize = statementCacheSize;
+
+        // Fail right away if the database can not be reached at all
+        for (int i = 0; i < minSize; i++)
+        {
+            try
+            {
+                idleConnections.push(new PooledConnection(connect()));
+                totalConnections++;
+            } catch (final SQLException exception)
+            {
+                closeAll(idleConnections);
+                throw exception;
+            }
+        }
+
+        housekeeper = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            final Thread thread = new Thread(runnable, "sql-connection-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeeper.scheduleWithFixedDelay(this::houseKeep,
+                HOUSEKEEPING_INTERVAL_MILLIS, HOUSEKEEPING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // The returned connection goes back to the pool when it is closed.
+    Connection borrow () throws SQLException
+    {
+        final long deadline = System.nanoTime() + acquireTimeoutNanos;
+        while (true)
+        {
+            PooledConnection pooledConnection = null;
+            boolean openNew = false;
+
+            lock.lock();
+            try
+            {
+                if (closed)
+                {
+                    throw new SQLException("The database connection pool has been closed");
+                }
+                while (idleConnections.isEmpty() && totalConnections >= maxSize)
+                {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                    {
+                        throw new SQLException("Timed out waiting for a database connection, all " + maxSize + " are in use");
+                    }
+                    connectionAvailable.awaitNanos(remaining);
+                    if (closed)
+                    {
+                        throw new SQLException("The database connection pool has been closed");
+                    }
+                }
+
+                if (!idleConnections.isEmpty())
+                {
+                    pooledConnection = idleConnections.pop();
+                }
+                else
+                {
+                    // Reserve the slot now and open the connection outside the lock
+                    totalConnections++;
+                    openNew = true;
+                }
+            } catch (final InterruptedException exception)
+            {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection", exception);
+            } finally
+            {
+                lock.unlock();
+            }
+
+            if (openNew)
+            {
+                try
+                {
+                    pooledConnection = new PooledConnection(connect());
+                } catch (final SQLException exception)
+                {
+                    discard(null);
+                    throw exception;
+                }
+            }
+            else if (!isValid(pooledConnection))
+            {
+                // The server dropped it, throw it away and try again
+                discard(pooledConnection);
+                continue;
+            }
+
+            return lend(pooledConnection);
+        }
+    }
+
+    // Stops the housekeeper and closes the idle connections. Borrowed connections are closed
+    // when they are given back, borrowing after this fails.
+    void close ()
+    {
+        final List<PooledConnection> idle;
+        lock.lock();
+        try
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            idle = new ArrayList<>(idleConnections);
+            idleConnections.clear();
+            totalConnections -= idle.size();
+            connectionAvailable.signalAll();
+        } finally
+        {
+            lock.unlock();
+        }
+        housekeeper.shutdownNow();
+        closeAll(idle);
+    }
+
+    int getTotalConnections ()
+    {
+        lock.lock();
+        try
+        {
+            return totalConnections;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    int getIdleConnections ()
+    {
+        lock.lock();
+        try
+        {
+            return idleConnections.size();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    long getStatementCacheHits ()
+    {
+        return statementCacheHits.get();
+    }
+
+    long getStatementCacheMisses ()
+    {
+        return statementCacheMisses.get();
+    }
+
+    private Connection connect () throws SQLException
+    {
+        try
+        {
+            return DriverManager.getConnection(url, username, password);
+        } catch (final SQLException exception)
+        {
+            throw new SQLException("Could not connect to database: " + exception.getMessage(), exception);
+        }
+    }
+
+    private boolean isValid (final PooledConnection pooledConnection)
+    {
+        try
+        {
+            return pooledConnection.physicalConnection.isValid(validationTimeoutSeconds);
+        } catch (final SQLException exception)
+        {
+            return false;
+        }
+    }
+
+    private Connection lend (final PooledConnection pooledConnection)
+    {
+        pooledConnection.borrowedAt = System.nanoTime();
+        pooledConnection.leakReported = false;
+        pooledConnection.borrowedBy = Thread.currentThread().getName();
+        pooledConnection.borrowedFrom = leakThresholdNanos > 0 && leakStackTraces ? new Exception("Connection borrowed here") : null;
+
+        lock.lock();
+        try
+        {
+            borrowedConnections.add(pooledConnection);
+        } finally
+        {
+            lock.unlock();
+        }
+
+        return newHandle(pooledConnection, true);
+    }
+
+    // Another handle on a connection that is already borrowed, for code that runs inside
+    // the borrower's transaction. Closing it only closes the statements it handed out.
+    Connection share (final Connection connection)
+    {
+        final ConnectionHandle connectionHandle = (ConnectionHandle) Proxy.getInvocationHandler(connection);
+        return newHandle(connectionHandle.pooledConnection, false);
+    }
+
+    private Connection newHandle (final PooledConnection pooledConnection, final boolean owner)
+    {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new ConnectionHandle(pooledConnection, owner));
+    }
+
+    private void release (final PooledConnection pooledConnection)
+    {
+        boolean reusable;
+        try
+        {
+            // Never hand out a connection with someone else's transaction still open
+            final Connection physicalConnection = pooledConnection.physicalConnection;
+            if (!physicalConnection.getAutoCommit())
+            {
+                physicalConnection.rollback();
+                physicalConnection.setAutoCommit(true);
+            }
+            reusable = !physicalConnection.isClosed();
+        } catch (final SQLException exception)
+        {
+            reusable = false;
+        }
+
+        lock.lock();
+        try
+        {
+            borrowedConnections.remove(pooledConnection);
+            if (reusable && !closed)
+            {
+                pooledConnection.lastUsed = System.nanoTime();
+                idleConnections.push(pooledConnection);
+                connectionAvailable.signal();
+                return;
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+        discard(pooledConnection);
+    }
+
+    // Gives up the slot of a connection that is no longer usable
+    private void discard (final PooledConnection pooledConnection)
+    {
+        lock.lock();
+        try
+        {
+            totalConnections--;
+            connectionAvailable.signal();
+        } finally
+        {
+            lock.unlock();
+        }
+        if (pooledConnection != null)
+        {
+            closeQuietly(pooledConnection);
+        }
+    }
+
+    private void houseKeep ()
+    {
+        final List<PooledConnection> evicted = new ArrayList<>();
+        int missing;
+
+        lock.lock();
+        try
+        {
+            // The least recently used connections are at the tail of the deque
+            final long now = System.nanoTime();
+            while (totalConnections > minSize
+                    && !idleConnections.isEmpty()
+                    && now - idleConnections.peekLast().lastUsed > idleTimeoutNanos)
+            {
+                evicted.add(idleConnections.removeLast());
+                totalConnections--;
+            }
+
+            if (leakThresholdNanos > 0)
+            {
+                for (PooledConnection pooledConnection : borrowedConnections)
+                {
+                    if (!pooledConnection.leakReported && now - pooledConnection.borrowedAt > leakThresholdNanos)
+                    {
+                        pooledConnection.leakReported = true;
+                        logger.log(Level.WARNING, "Database connection has been borrowed by " + pooledConnection.borrowedBy + " for more than "
+                                + TimeUnit.NANOSECONDS.toMillis(leakThresholdNanos) + " ms, possible leak", pooledConnection.borrowedFrom);
+                    }
+                }
+            }
+
+            missing = Math.max(0, minSize - totalConnections);
+            totalConnections += missing;
+        } finally
+        {
+            lock.unlock();
+        }
+
+        closeAll(evicted);
+
+        for (int i = 0; i < missing; i++)
+        {
+            try
+            {
+                final PooledConnection pooledConnection = new PooledConnection(connect());
+                pooledConnection.lastUsed = System.nanoTime();
+                lock.lock();
+                try
+                {
+                    if (!closed)
+                    {
+                        idleConnections.push(pooledConnection);
+                        connectionAvailable.signal();
+                        continue;
+                    }
+                } finally
+                {
+                    lock.unlock();
+                }
+                discard(pooledConnection);
+            } catch (final SQLException exception)
+            {
+                logger.log(Level.WARNING, "Could not refill database connection pool: " + exception.getMessage());
+                // Give back the slots we reserved but could not fill, the next round will try again
+                for (int j = i; j < missing; j++)
+                {
+                    discard(null);
+                }
+                break;
+            }
+        }
+    }
+
+    private static void closeAll (final Iterable<PooledConnection> pooledConnections)
+    {
+        final Iterator<PooledConnection> iterator = pooledConnections.iterator();
+        while (iterator.hasNext())
+        {
+            closeQuietly(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    private static void closeQuietly (final PooledConnection pooledConnection)
+    {
+        try
+        {
+            pooledConnection.physicalConnection.close();
+        } catch (final SQLException exception)
+        {
+            // Nothing more we can do about a connection that will not close
+        }
+    }
+
+    private static Object invokePhysical (final Object target, final Method method, final Object[] args) throws Throwable
+    {
+        try
+        {
+            return method.invoke(target, args);
+        } catch (final InvocationTargetException exception)
+        {
+            throw exception.getCause();
+        }
+    }
+
+    private final class PooledConnection
+    {
+        private final Connection physicalConnection;
+        private long lastUsed = System.nanoTime(), borrowedAt;
+        private String borrowedBy;
+        // Only set when leak stack traces are on
+        private Exception borrowedFrom;
+        private boolean leakReported;
+
+        // Only touched by the thread that has borrowed the connection, so no locking is needed
+        private final LinkedHashMap<String, CachedStatement> statementCache = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry (final Map.Entry<String, CachedStatement> eldest)
+            {
+                // A statement that is in use is left alone until the next insert
+                if (size() > statementCacheSize && !eldest.getValue().inUse)
+                {
+                    eldest.getValue().closeQuietly();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private PooledConnection (final Connection physicalConnection)
+        {
+            this.physicalConnection = physicalConnection;
+        }
+
+        private CachedStatement prepareStatement (final String sqlQuery) throws SQLException
+        {
+            CachedStatement cachedStatement = statementCache.get(sqlQuery);
+            if (cachedStatement != null && !cachedStatement.inUse)
+            {
+                statementCacheHits.incrementAndGet();
+            }
+            else
+            {
+                statementCacheMisses.incrementAndGet();
+                final boolean cacheable = cachedStatement == null && statementCacheSize > 0;
+                cachedStatement = new CachedStatement(physicalConnection.prepareStatement(sqlQuery), cacheable);
+                if (cacheable)
+                {
+                    statementCache.put(sqlQuery, cachedStatement);
+                }
+            }
+            cachedStatement.inUse = true;
+            return cachedStatement;
+        }
+
+        private void giveBack (final CachedStatement cachedStatement)
+        {
+            if (!cachedStatement.cached)
+            {
+                cachedStatement.closeQuietly();
+                return;
+            }
+            try
+            {
+                final ResultSet resultSet = cachedStatement.physicalStatement.getResultSet();
+                if (resultSet != null)
+                {
+                    resultSet.close();
+                }
+                cachedStatement.physicalStatement.clearParameters();
+                cachedStatement.physicalStatement.clearBatch();
+                cachedStatement.inUse = false;
+            } catch (final SQLException exception)
+            {
+                // Do not keep a statement around that we could not reset
+                statementCache.values().remove(cachedStatement);
+                cachedStatement.closeQuietly();
+            }
+        }
+    }
+
+    private static final class CachedStatement
+    {
+        private final PreparedStatement physicalStatement;
+        // Statements prepared while the cached one for the same query is busy are closed after use
+        private final boolean cached;
+        private boolean inUse;
+
+        private CachedStatement (final PreparedStatement physicalStatement, final boolean cached)
+        {
+            this.physicalStatement = physicalStatement;
+            this.cached = cached;
+        }
+
+        private void closeQuietly ()
+        {
+            try
+            {
+                physicalStatement.close();
+            } catch (final SQLException exception)
+            {
+                // Closing the connection will clean it up
+            }
+        }
+    }
+
+    // What the repositories actually get, closing it returns the connection to the pool
+    private final class ConnectionHandle implements InvocationHandler
+    {
+        private final PooledConnection pooledConnection;
+        private final boolean owner;
+        private final List<StatementHandle> openStatements = new ArrayList<>();
+        private boolean closed = false;
+
+        private ConnectionHandle (final PooledConnection pooledConnection, final boolean owner)
+        {
+            this.pooledConnection = pooledConnection;
+            this.owner = owner;
+        }
+
+        @Override
+        public Object invoke (final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            switch (method.getName())
+            {
+                case "close":
+                    if (!closed)
+                    {
+                        // Like a real connection, closing it closes every statement it handed out
+                        for (StatementHandle statementHandle : new ArrayList<>(openStatements))
+                        {
+                            statementHandle.close();
+                        }
+                        closed = true;
+                        if (owner)
+                        {
+                            release(pooledConnection);
+                        }
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooledConnection.physicalConnection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooledConnection.physicalConnection;
+            }
+
+            if (closed)
+            {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            if (method.getName().equals("prepareStatement") && args.length == 1)
+            {
+                final StatementHandle statementHandle = new StatementHandle(this, (Connection) proxy, pooledConnection.prepareStatement((String) args[0]));
+                openStatements.add(statementHandle);
+                return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                        new Class<?>[]{PreparedStatement.class},
+                        statementHandle);
+            }
+            return invokePhysical(pooledConnection.physicalConnection, method, args);
+        }
+    }
+
+    // What the repositories get from prepareStatement, closing it returns the statement to the cache
+    private static final class StatementHandle implements InvocationHandler
+    {
+        private final ConnectionHandle connectionHandle;
+        private final Connection connection;
+        private final CachedStatement cachedStatement;
+        private boolean closed = false;
+
+        private StatementHandle (final ConnectionHandle connectionHandle, final Connection connection, final CachedStatement cachedStatement)
+        {
+            this.connectionHandle = connectionHandle;
+            this.connection = connection;
+            this.cachedStatement = cachedStatement;
+        }
+
+        private void close ()
+        {
+            if (!closed)
+            {
+                closed = true;
+                connectionHandle.openStatements.remove(this);
+                connectionHandle.pooledConnection.giveBack(cachedStatement);
+            }
+        }
+
+        @Override
+        public Object invoke (final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            switch (method.getName())
+            {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getConnection":
+                    return connection;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached " + cachedStatement.physicalStatement;
+            }
+
+            if (closed)
+            {
+                throw new SQLException("Statement has already been closed");
+            }
+            return invokePhysical(cachedStatement.physicalStatement, method, args);
+        }
+    }
+}
@@ -12,26 +12,85 @@
 package se.erikwelander.ecommerce.repository.sql;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class SQLConnector
 {
-    private final String sqlDriver = "com.mysql.jdbc.Driver";
-    private Connection sqlConnection;
-    private Statement sqlStatement;
+    private static final String sqlDriver = "com.mysql.jdbc.Driver";
+    private static volatile SQLConnectionPool connectionPool;
+    // A lock rather than synchronized, opening the first connections must not pin a virtual thread's carrier
+    private static final ReentrantLock connectionPoolLock = new ReentrantLock();
+    // Connection of the transaction running on the current thread, if any
+    private static final ThreadLocal<Connection> transactionConnection = new ThreadLocal<>();
+    // Run when that transaction has been committed
+    private static final ThreadLocal<List<Runnable>> afterCommitActions = new ThreadLocal<>();
+
+    private final SQLConnectionPool sqlConnectionPool;
 
     public SQLConnector () throws SQLException
     {
-        loadDriver();
-        connect();
+        sqlConnectionPool = getConnectionPool();
+    }
+
+    // All connectors share one pool, it is created by the first repository that needs it
+    private static SQLConnectionPool getConnectionPool () throws SQLException
+    {
+        final SQLConnectionPool existingPool = connectionPool;
+        if (existingPool != null)
+        {
+            return existingPool;
+        }
+        connectionPoolLock.lock();
+        try
+        {
+            if (connectionPool != null)
+            {
+                return connectionPool;
+            }
+            loadDriver();
+            connectionPool = new SQLConnectionPool("jdbc:mysql://" + DBInfo.host + ":" + DBInfo.port + "/"
+                    + DBInfo.database + "?characterEncoding=" + DBInfo.encoding
+                    // Server side statements are only parsed once, the pool keeps them open
+                    + "&useServerPrepStmts=true"
+                    // Lets the driver send a batch of inserts as one multi-row insert
+                    + "&rewriteBatchedStatements=true",
+                    DBInfo.username,
+                    DBInfo.password,
+                    DBInfo.poolMinSize,
+                    DBInfo.poolMaxSize,
+                    DBInfo.poolIdleTimeoutMillis,
+                    DBInfo.poolAcquireTimeoutMillis,
+                    DBInfo.poolLeakThresholdMillis,
+                    DBInfo.poolLeakStackTraces,
+                    DBInfo.poolValidationTimeoutSeconds,
+                    DBInfo.poolStatementCacheSize);
+            return connectionPool;
+        } finally
+        {
+            connectionPoolLock.unlock();
+        }
     }
 
-    @Override
-    protected void finalize () throws SQLException
+    // Closes the shared pool, for when the application stops. A connector created afterwards opens a new one.
+    public static void shutdown ()
     {
-        disconnect();
+        connectionPoolLock.lock();
+        try
+        {
+            if (connectionPool != null)
+            {
+                connectionPool.close();
+                connectionPool = null;
+            }
+        } finally
+        {
+            connectionPoolLock.unlock();
+        }
     }
 
-    private void loadDriver () throws SQLException
+    private static void loadDriver () throws SQLException
     {
         // Checks if the sqlDriver is available
         try
@@ -43,32 +102,116 @@ public class SQLConnector
         }
     }
 
-    private void connect () throws SQLException
+    // Borrows a connection from the pool, close it to give it back.
+    // Inside a transaction every caller on the thread gets the transaction's connection.
+    public final Connection getConnection () throws SQLException
+    {
+        final Connection connection = transactionConnection.get();
+        if (connection != null)
+        {
+            return sqlConnectionPool.share(connection);
+        }
+        return getOwnConnection();
+    }
+
+    // Borrows a connection of its own even inside a transaction,
+    // for writes that must be kept when the transaction is rolled back.
+    public final Connection getOwnConnection () throws SQLException
     {
         try
         {
-            sqlConnection = DriverManager.getConnection("jdbc:mysql://" + DBInfo.host + ":" + DBInfo.port + "/"
-                    + DBInfo.database + "?characterEncoding=" + DBInfo.encoding, DBInfo.username, DBInfo.password);
-            sqlStatement = sqlConnection.createStatement();
+            return sqlConnectionPool.borrow();
         } catch (final SQLException exception)
         {
-            throw new SQLException("Could not connect to database: " + exception.getMessage());
+            throw new SQLException("Could not get database connection: " + exception.getMessage(), exception);
         }
     }
 
-    private void disconnect () throws SQLException
+    public final void beginTransaction () throws SQLException
     {
+        if (transactionConnection.get() != null)
+        {
+            throw new SQLException("A transaction is already running on this thread");
+        }
+        final Connection connection = getConnection();
         try
         {
-            sqlStatement.close();
-            sqlConnection.close();
+            connection.setAutoCommit(false);
+        } catch (final SQLException exception)
+        {
+            connection.close();
+            throw new SQLException("Could not begin transaction: " + exception.getMessage(), exception);
+        }
+        transactionConnection.set(connection);
+    }
+
+    // The after commit actions also run when the commit fails, nobody knows what the database kept then
+    public final void commitTransaction () throws SQLException
+    {
+        try (final Connection connection = endTransaction())
+        {
+            connection.commit();
+        } catch (final SQLException exception)
+        {
+            throw new SQLException("Could not commit transaction: " + exception.getMessage(), exception);
+        } finally
+        {
+            final List<Runnable> actions = afterCommitActions.get();
+            afterCommitActions.remove();
+            if (actions != null)
+            {
+                for (Runnable action : actions)
+                {
+                    action.run();
+                }
+            }
+        }
+    }
+
+    public final void rollbackTransaction () throws SQLException
+    {
+        afterCommitActions.remove();
+        try (final Connection connection = endTransaction())
+        {
+            connection.rollback();
         } catch (final SQLException exception)
         {
-            throw new SQLException("Could not disconnect from database: " + exception.getMessage());
+            throw new SQLException("Could not roll back transaction: " + exception.getMessage(), exception);
+        }
+    }
+
+    // Runs the action when the transaction on the current thread is committed, or right away outside a transaction
+    public final void afterCommit (final Runnable action)
+    {
+        if (transactionConnection.get() == null)
+        {
+            action.run();
+            return;
+        }
+        List<Runnable> actions = afterCommitActions.get();
+        if (actions == null)
+        {
+            actions = new ArrayList<>();
+            afterCommitActions.set(actions);
         }
+        actions.add(action);
     }
 
-    public final PreparedStatement prepareStatement (final String sqlQuery) throws SQLException
+    // Unbinds the transaction from the thread, closing the connection hands it back to the pool
+    private static Connection endTransaction () throws SQLException
+    {
+        final Connection connection = transactionConnection.get();
+        if (connection == null)
+        {
+            throw new SQLException("No transaction is running on this thread");
+        }
+        transactionConnection.remove();
+        return connection;
+    }
+
+    // Statements are cached per pooled connection by their SQL text.
+    // Closing the statement, or the connection it came from, puts it back in the cache.
+    public final PreparedStatement prepareStatement (final Connection sqlConnection, final String sqlQuery) throws SQLException
     {
         try
         {
@@ -80,17 +223,40 @@ public class SQLConnector
         }
     }
 
-    public void queryUpdate (final PreparedStatement preparedStatement) throws SQLException
+    public long getStatementCacheHits ()
+    {
+        return sqlConnectionPool.getStatementCacheHits();
+    }
+
+    public long getStatementCacheMisses ()
+    {
+        return sqlConnectionPool.getStatementCacheMisses();
+    }
+
+    // Returns the number of rows the statement matched
+    public int queryUpdate (final PreparedStatement preparedStatement) throws SQLException
     {
         try
         {
-            preparedStatement.executeUpdate();
+            return preparedStatement.executeUpdate();
         } catch (final SQLException exception)
         {
             throw new SQLException("Error performing queryUpdate: " + exception.getMessage());
         }
     }
 
+    // Executes everything added with addBatch in as few round trips as the driver can manage
+    public final int[] queryBatch (final PreparedStatement preparedStatement) throws SQLException
+    {
+        try
+        {
+            return preparedStatement.executeBatch();
+        } catch (final SQLException exception)
+        {
+            throw new SQLException("Error performing queryBatch: " + exception.getMessage());
+        }
+    }
+
     public final ResultSet queryResult (final PreparedStatement preparedStatement) throws SQLException
     {
         try
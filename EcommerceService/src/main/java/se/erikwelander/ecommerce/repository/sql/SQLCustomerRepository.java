@@ -12,21 +12,67 @@
 package se.erikwelander.ecommerce.repository.sql;
 
 import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.exception.VersionConflictException;
 import se.erikwelander.ecommerce.model.Customer;
 import se.erikwelander.ecommerce.repository.CustomerRepository;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SQLCustomerRepository implements CustomerRepository
 {
     private final SQLConnector sqlConnector;
-    private final String dbCustomer = "customer",
+    private static final String dbCustomer = "customer",
             dbCustomerItems = "customer_cart";
 
+    // Built once so the statement cache sees the exact same SQL text every time
+    private static final String sqlAddCustomer = "INSERT INTO " + DBInfo.database + "." + dbCustomer + " "
+            + "(user_name, password, email, first_name, last_name, address, phone, version) "
+            + "VALUES(?,?,?,?,?,?,?,?);",
+            sqlAddCustomerItem = "INSERT INTO " + DBInfo.database + "." + dbCustomerItems + " "
+                    + "(user_name, id_item, quantity) "
+                    + "VALUES(?,?,?);",
+            sqlGetCustomer = "SELECT * FROM " + DBInfo.database + "." + dbCustomer + " "
+                    + "WHERE user_name = ?;",
+            sqlGetCustomerItems = "SELECT id_item, quantity FROM " + DBInfo.database + "." + dbCustomerItems + " "
+                    + "WHERE user_name = ? "
+                    + "ORDER BY id_cart_item;",
+            sqlGetAllCustomers = "SELECT * FROM " + DBInfo.database + "." + dbCustomer + ";",
+            sqlGetAllCustomerItems = "SELECT user_name, id_item, quantity FROM " + DBInfo.database + "." + dbCustomerItems + " "
+                    + "ORDER BY id_cart_item;",
+            sqlUpdateCustomer = "UPDATE " + DBInfo.database + "." + dbCustomer + " SET "
+                    + "password = ?, "
+                    + "email = ?, "
+                    + "first_name = ?, "
+                    + "last_name = ?, "
+                    + "address = ?, "
+                    + "phone = ?, "
+                    + "version = GREATEST(version + 1, ?) "
+                    + "WHERE user_name = ? AND (? = 0 OR version = ?);",
+            sqlRemoveCustomer = "DELETE FROM " + DBInfo.database + "." + dbCustomer + " "
+                    + "WHERE user_name = ?;",
+            sqlRemoveCustomerItems = "DELETE FROM " + DBInfo.database + "." + dbCustomerItems + " "
+                    + "WHERE user_name = ?;",
+            sqlRemoveProductFromCarts = "DELETE FROM " + DBInfo.database + "." + dbCustomerItems + " "
+                    + "WHERE id_item = ?;",
+            // Only inserts for customers that exist, a second add of the same product just raises the quantity
+            sqlAddToShoppingCart = "INSERT INTO " + DBInfo.database + "." + dbCustomerItems + " "
+                    + "(user_name, id_item, quantity) "
+                    + "SELECT user_name, ?, ? FROM " + DBInfo.database + "." + dbCustomer + " WHERE user_name = ? "
+                    + "ON DUPLICATE KEY UPDATE quantity = quantity + ?;",
+            sqlSetShoppingCartQuantity = "INSERT INTO " + DBInfo.database + "." + dbCustomerItems + " "
+                    + "(user_name, id_item, quantity) "
+                    + "SELECT user_name, ?, ? FROM " + DBInfo.database + "." + dbCustomer + " WHERE user_name = ? "
+                    + "ON DUPLICATE KEY UPDATE quantity = ?;",
+            sqlRemoveFromShoppingCart = "DELETE FROM " + DBInfo.database + "." + dbCustomerItems + " "
+                    + "WHERE user_name = ? AND id_item = ?;";
+
     public SQLCustomerRepository () throws RepositoryException
     {
         try
@@ -41,119 +87,111 @@ public class SQLCustomerRepository implements CustomerRepository
     @Override
     public void addCustomer (final Customer customer) throws RepositoryException
     {
-        try
-        {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("INSERT INTO " + DBInfo.database + "." + dbCustomer + " ");
-            sqlQuery.append("(user_name, password, email, first_name, last_name, address, phone) ");
-            sqlQuery.append("VALUES(?,?,?,?,?,?,?);");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setString(1, customer.userName);
-            preparedStatement.setString(2, customer.password);
-            preparedStatement.setString(3, customer.email);
-            preparedStatement.setString(4, customer.firstName);
-            preparedStatement.setString(5, customer.lastName);
-            preparedStatement.setString(6, customer.address);
-            preparedStatement.setString(7, customer.phoneNumber);
-
-            sqlConnector.queryUpdate(preparedStatement);
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Could not add Customer to database!", exception);
-        }
-
-        try
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            final ArrayList<Integer> customerShoppingCartItems = customer.getAllShoppingCartItems();
-            final String userName = customer.userName;
-            StringBuilder sqlQuery = new StringBuilder();
-            for (final int itemId : customerShoppingCartItems)
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlAddCustomer))
             {
-                sqlQuery.append("INSERT INTO " + DBInfo.database + "." + dbCustomerItems + " ");
-                sqlQuery.append("(id_item, user_name) ");
-                sqlQuery.append("VALUES(?,?);");
-
-                PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-                preparedStatement.setInt(1, itemId);
-                preparedStatement.setString(2, userName);
+                preparedStatement.setString(1, customer.userName);
+                preparedStatement.setString(2, customer.password);
+                preparedStatement.setString(3, customer.email);
+                preparedStatement.setString(4, customer.firstName);
+                preparedStatement.setString(5, customer.lastName);
+                preparedStatement.setString(6, customer.address);
+                preparedStatement.setString(7, customer.phoneNumber);
+                preparedStatement.setLong(8, System.currentTimeMillis());
 
                 sqlConnector.queryUpdate(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not add Customer to database!", exception);
+            }
 
-                sqlQuery.delete(0, sqlQuery.length());
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlAddCustomerItem))
+            {
+                final String userName = customer.userName;
+                for (int productId : customer.getShoppingCartProductIds())
+                {
+                    preparedStatement.setString(1, userName);
+                    preparedStatement.setInt(2, productId);
+                    preparedStatement.setInt(3, customer.getShoppingCartQuantity(productId));
+                    preparedStatement.addBatch();
+                }
+                sqlConnector.queryBatch(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not add Shopping cart IDs to Customer!" + exception.getMessage(), exception);
             }
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not add Shopping cart IDs to Customer!" + exception.getMessage(), exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
     }
 
     @Override
     public Customer getCustomer (final String userName) throws RepositoryException
     {
-        ResultSet sqlResult;
-        try
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("SELECT * FROM " + DBInfo.database + "." + dbCustomer + " ");
-            sqlQuery.append("WHERE user_name = ?;");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setString(1, userName);
+            ResultSet sqlResult;
+            try
+            {
+                PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetCustomer);
+                preparedStatement.setString(1, userName);
 
-            sqlResult = sqlConnector.queryResult(preparedStatement);
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Failed to retrieve Customer data from database!", exception);
-        }
+                sqlResult = sqlConnector.queryResult(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Failed to retrieve Customer data from database!", exception);
+            }
 
 
-        final Customer customer;
-        try
-        {
-            sqlResult.next();
-            customer = new Customer(sqlResult.getString("user_name"),
-                    sqlResult.getString("password"),
-                    sqlResult.getString("email"),
-                    sqlResult.getString("first_name"),
-                    sqlResult.getString("last_name"),
-                    sqlResult.getString("address"),
-                    sqlResult.getString("phone"));
-            sqlResult.close();
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Failed to construct Customer from SQL result! " + exception.getMessage(), exception);
-        }
-
-        try
-        {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("SELECT id_item FROM " + DBInfo.database + "." + dbCustomerItems + " ");
-            sqlQuery.append("WHERE user_name = ?;");
+            final Customer customer;
+            try
+            {
+                sqlResult.next();
+                customer = new Customer(sqlResult.getString("user_name"),
+                        sqlResult.getString("password"),
+                        sqlResult.getString("email"),
+                        sqlResult.getString("first_name"),
+                        sqlResult.getString("last_name"),
+                        sqlResult.getString("address"),
+                        sqlResult.getString("phone"),
+                        sqlResult.getLong("version"));
+                sqlResult.close();
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Failed to construct Customer from SQL result! " + exception.getMessage(), exception);
+            }
 
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setString(1, userName);
+            try
+            {
+                PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetCustomerItems);
+                preparedStatement.setString(1, userName);
 
-            sqlResult = sqlConnector.queryResult(preparedStatement);
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Failed to retrieve Customer shopping cart data!", exception);
-        }
+                sqlResult = sqlConnector.queryResult(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Failed to retrieve Customer shopping cart data!", exception);
+            }
 
 
-        try
-        {
-            while (sqlResult.next())
+            try
             {
-                customer.addToShoppingCart(sqlResult.getInt("id_item"));
+                while (sqlResult.next())
+                {
+                    customer.addToShoppingCart(sqlResult.getInt("id_item"), sqlResult.getInt("quantity"));
+                }
+                sqlResult.close();
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Failed to parse Shopping cart data!", exception);
             }
-            sqlResult.close();
+
+            return customer;
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Failed to parse Shopping cart data!", exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
-
-        return customer;
     }
 
     /*
@@ -269,33 +307,51 @@ public class SQLCustomerRepository implements CustomerRepository
     @Override
     public List<Customer> getAllCustomers () throws RepositoryException
     {
-        ResultSet sqlResult;
-        try
+        // Two queries no matter how many customers there are, the carts are matched up in memory
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            final String sqlQuery = "SELECT user_name FROM " + DBInfo.database + "." + dbCustomer + ";";
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery);
-
-            sqlResult = sqlConnector.queryResult(preparedStatement);
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Could not fetch all Customers from database!", exception);
-        }
+            final Map<String, Customer> customers = new LinkedHashMap<>();
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetAllCustomers);
+                 final ResultSet sqlResult = sqlConnector.queryResult(preparedStatement))
+            {
+                while (sqlResult.next())
+                {
+                    final Customer customer = new Customer(sqlResult.getString("user_name"),
+                            sqlResult.getString("password"),
+                            sqlResult.getString("email"),
+                            sqlResult.getString("first_name"),
+                            sqlResult.getString("last_name"),
+                            sqlResult.getString("address"),
+                            sqlResult.getString("phone"),
+                            sqlResult.getLong("version"));
+                    customers.put(customer.userName, customer);
+                }
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not fetch all Customers from database!", exception);
+            }
 
-        List<Customer> customerList = new ArrayList<>();
-        try
-        {
-            while (sqlResult.next())
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetAllCustomerItems);
+                 final ResultSet sqlResult = sqlConnector.queryResult(preparedStatement))
             {
-                customerList.add(getCustomer(sqlResult.getString("user_name")));
+                while (sqlResult.next())
+                {
+                    final Customer customer = customers.get(sqlResult.getString("user_name"));
+                    if (customer != null)
+                    {
+                        customer.addToShoppingCart(sqlResult.getInt("id_item"), sqlResult.getInt("quantity"));
+                    }
+                }
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not fetch all Shopping carts from database!", exception);
             }
-            sqlResult.close();
 
+            return new ArrayList<>(customers.values());
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not parse all Customer from database!", exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
-
-        return customerList;
     }
 
     /*
@@ -375,40 +431,54 @@ public class SQLCustomerRepository implements CustomerRepository
     @Override
     public void updateCustomer (final Customer customer) throws RepositoryException
     {
-        try
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("UPDATE " + DBInfo.database + "." + dbCustomer + " SET ");
-            sqlQuery.append("password = ?, ");
-            sqlQuery.append("email = ?, ");
-            sqlQuery.append("first_name = ?, ");
-            sqlQuery.append("last_name = ?, ");
-            sqlQuery.append("address = ?, ");
-            sqlQuery.append("phone = ? ");
-            sqlQuery.append("WHERE user_name = ?;");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setString(1, customer.password);
-            preparedStatement.setString(2, customer.email);
-            preparedStatement.setString(3, customer.firstName);
-            preparedStatement.setString(4, customer.lastName);
-            preparedStatement.setString(5, customer.address);
-            preparedStatement.setString(6, customer.phoneNumber);
-            preparedStatement.setString(7, customer.userName);
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlUpdateCustomer))
+            {
+                preparedStatement.setString(1, customer.password);
+                preparedStatement.setString(2, customer.email);
+                preparedStatement.setString(3, customer.firstName);
+                preparedStatement.setString(4, customer.lastName);
+                preparedStatement.setString(5, customer.address);
+                preparedStatement.setString(6, customer.phoneNumber);
+                preparedStatement.setLong(7, System.currentTimeMillis());
+                preparedStatement.setString(8, customer.userName);
+                preparedStatement.setLong(9, customer.version);
+                preparedStatement.setLong(10, customer.version);
+
+                // Checked before the cart is touched, a conflicting update changes nothing
+                if (sqlConnector.queryUpdate(preparedStatement) == 0 && customer.version != 0)
+                {
+                    throw new VersionConflictException("Customer " + customer.userName + " has been changed since version " + customer.version + " or does not exist");
+                }
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not query Customer update!", exception);
+            }
 
-            sqlConnector.queryUpdate(preparedStatement);
+            writeShoppingCart(connection, customer);
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not query Customer update!", exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
+    }
 
-        try
+    @Override
+    public void replaceShoppingCart (final Customer customer) throws RepositoryException
+    {
+        try (final Connection connection = sqlConnector.getConnection())
+        {
+            writeShoppingCart(connection, customer);
+        } catch (final SQLException exception)
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("DELETE FROM " + DBInfo.database + "." + dbCustomerItems + " ");
-            sqlQuery.append("WHERE user_name = ?;");
+            throw new RepositoryException("Could not get database connection!", exception);
+        }
+    }
 
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
+    private void writeShoppingCart (final Connection connection, final Customer customer) throws RepositoryException
+    {
+        try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRemoveCustomerItems))
+        {
             preparedStatement.setString(1, customer.userName);
 
             sqlConnector.queryUpdate(preparedStatement);
@@ -417,63 +487,173 @@ public class SQLCustomerRepository implements CustomerRepository
             throw new RepositoryException("Could not query Customer items deletion!", exception);
         }
 
-
-        final ArrayList<Integer> customerShoppingCartIDs = customer.getAllShoppingCartItems();
         final String customerUserName = customer.userName;
-        try
+        try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlAddCustomerItem))
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            for (int productId : customerShoppingCartIDs)
+            for (int productId : customer.getShoppingCartProductIds())
             {
-                sqlQuery.append("INSERT INTO " + DBInfo.database + "." + dbCustomerItems + " ");
-                sqlQuery.append("(id_item, user_name) ");
-                sqlQuery.append("VALUES(?,?);");
+                preparedStatement.setString(1, customerUserName);
+                preparedStatement.setInt(2, productId);
+                preparedStatement.setInt(3, customer.getShoppingCartQuantity(productId));
+                preparedStatement.addBatch();
+            }
+            sqlConnector.queryBatch(preparedStatement);
+        } catch (final SQLException exception)
+        {
+            throw new RepositoryException("Could not add Shopping cart IDs to Customer!", exception);
+        }
+    }
 
-                PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-                preparedStatement.setInt(1, productId);
-                preparedStatement.setString(2, customerUserName);
+    @Override
+    public void removeCustomer (final String userName) throws RepositoryException
+    {
+        try (final Connection connection = sqlConnector.getConnection())
+        {
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRemoveCustomer))
+            {
+                preparedStatement.setString(1, userName);
 
                 sqlConnector.queryUpdate(preparedStatement);
-                sqlQuery.delete(0, sqlQuery.length());
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not query removal of Customer!", exception);
+            }
+
+
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRemoveCustomerItems))
+            {
+                preparedStatement.setString(1, userName);
+
+                sqlConnector.queryUpdate(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not query Customer Items deletion!", exception);
             }
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not add Shopping cart IDs to Customer!", exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
     }
 
     @Override
-    public void removeCustomer (final String userName) throws RepositoryException
+    public void removeProductFromAllCarts (final int productId) throws RepositoryException
     {
-        try
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRemoveProductFromCarts))
+        {
+            preparedStatement.setInt(1, productId);
+
+            sqlConnector.queryUpdate(preparedStatement);
+        } catch (final SQLException exception)
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("DELETE FROM " + DBInfo.database + "." + dbCustomer + " ");
-            sqlQuery.append("WHERE user_name = ?;");
+            throw new RepositoryException("Could not query removal of Product from Shopping carts!", exception);
+        }
+    }
+
+    @Override
+    public void addToShoppingCart (final String userName, final int productId, final int quantity) throws RepositoryException
+    {
+        final int updateCount;
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlAddToShoppingCart))
+        {
+            preparedStatement.setInt(1, productId);
+            preparedStatement.setInt(2, quantity);
+            preparedStatement.setString(3, userName);
+            preparedStatement.setInt(4, quantity);
+
+            updateCount = preparedStatement.executeUpdate();
+        } catch (final SQLException exception)
+        {
+            throw new RepositoryException("Could not query Shopping cart addition!", exception);
+        }
+        if (updateCount == 0)
+        {
+            throw new RepositoryException("Could not add to Shopping cart: Customer does not exist");
+        }
+    }
 
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
+    @Override
+    public void removeFromShoppingCart (final String userName, final int productId) throws RepositoryException
+    {
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRemoveFromShoppingCart))
+        {
             preparedStatement.setString(1, userName);
+            preparedStatement.setInt(2, productId);
 
             sqlConnector.queryUpdate(preparedStatement);
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not query removal of Customer!", exception);
+            throw new RepositoryException("Could not query Shopping cart removal!", exception);
         }
+    }
 
-
-        try
+    // One batch of upserts for the products still in the cart and one batch of deletes for the others
+    @Override
+    public void setShoppingCartQuantities (final String userName, final int[] productIds, final int[] quantities) throws RepositoryException
+    {
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("DELETE FROM " + DBInfo.database + "." + dbCustomerItems + " ");
-            sqlQuery.append("WHERE user_name = ?;");
+            try (final PreparedStatement setStatement = sqlConnector.prepareStatement(connection, sqlSetShoppingCartQuantity);
+                 final PreparedStatement removeStatement = sqlConnector.prepareStatement(connection, sqlRemoveFromShoppingCart))
+            {
+                boolean set = false, removed = false;
+                for (int i = 0; i < productIds.length; i++)
+                {
+                    if (quantities[i] > 0)
+                    {
+                        setStatement.setInt(1, productIds[i]);
+                        setStatement.setInt(2, quantities[i]);
+                        setStatement.setString(3, userName);
+                        setStatement.setInt(4, quantities[i]);
+                        setStatement.addBatch();
+                        set = true;
+                    }
+                    else
+                    {
+                        removeStatement.setString(1, userName);
+                        removeStatement.setInt(2, productIds[i]);
+                        removeStatement.addBatch();
+                        removed = true;
+                    }
+                }
+                if (set)
+                {
+                    sqlConnector.queryBatch(setStatement);
+                }
+                if (removed)
+                {
+                    sqlConnector.queryBatch(removeStatement);
+                }
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not query Shopping cart quantities!", exception);
+            }
+        } catch (final SQLException exception)
+        {
+            throw new RepositoryException("Could not get database connection!", exception);
+        }
+    }
 
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
+    @Override
+    public void emptyShoppingCart (final String userName) throws RepositoryException
+    {
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRemoveCustomerItems))
+        {
             preparedStatement.setString(1, userName);
 
             sqlConnector.queryUpdate(preparedStatement);
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not query Customer Items deletion!", exception);
+            throw new RepositoryException("Could not query Shopping cart deletion!", exception);
         }
     }
+
+    @Override
+    public void flush (final String userName)
+    {
+        // Every change is written immediately
+    }
 }
@@ -0,0 +1,100 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        SQLIdAllocation.java
+// Encoding:	UTF-8
+//
+// Purpose:     Reserves blocks of ids for one table from the id_allocation table.
+//              The row of a table is created from its highest id the first
+//              time ids are reserved, so existing databases keep working.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.repository.sql;
+
+import se.erikwelander.ecommerce.exception.RepositoryException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+final class SQLIdAllocation
+{
+    private static final String dbTable = "id_allocation";
+
+    private static final String sqlReserveIds = "UPDATE " + DBInfo.database + "." + dbTable + " SET "
+            + "next_id = next_id + ? "
+            + "WHERE name = ?;",
+            sqlGetNextId = "SELECT next_id FROM " + DBInfo.database + "." + dbTable + " "
+                    + "WHERE name = ?;";
+
+    private final SQLConnector sqlConnector;
+    private final String name;
+    private final String sqlAddAllocation;
+
+    SQLIdAllocation (final SQLConnector sqlConnector, final String idTable, final String idColumn)
+    {
+        this.sqlConnector = sqlConnector;
+        this.name = idTable;
+        // Ignored when another connection added the row first
+        this.sqlAddAllocation = "INSERT IGNORE INTO " + DBInfo.database + "." + dbTable + " "
+                + "(name, next_id) "
+                + "SELECT ?, COALESCE(MAX(" + idColumn + "), 0) + 1 FROM " + DBInfo.database + ".`" + idTable + "`;";
+    }
+
+    // Returns the first of count reserved ids
+    int reserve (final int count) throws RepositoryException
+    {
+        if (count < 1)
+        {
+            throw new RepositoryException("Could not reserve " + name + " ids: Cannot reserve " + count + " ids");
+        }
+
+        // A connection and transaction of its own, rolling back a unit of work must never give ids back
+        try (final Connection connection = sqlConnector.getOwnConnection())
+        {
+            connection.setAutoCommit(false);
+            if (!reserve(connection, count))
+            {
+                try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlAddAllocation))
+                {
+                    preparedStatement.setString(1, name);
+                    sqlConnector.queryUpdate(preparedStatement);
+                }
+                if (!reserve(connection, count))
+                {
+                    throw new RepositoryException("Could not reserve " + name + " ids: No row in " + dbTable);
+                }
+            }
+
+            // The update keeps the row locked, nobody else can have moved it since
+            final int nextId;
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetNextId))
+            {
+                preparedStatement.setString(1, name);
+                try (final ResultSet resultSet = sqlConnector.queryResult(preparedStatement))
+                {
+                    resultSet.next();
+                    nextId = resultSet.getInt(1);
+                }
+            }
+            connection.commit();
+            return nextId - count;
+        } catch (final SQLException exception)
+        {
+            throw new RepositoryException("Could not reserve " + name + " ids!", exception);
+        }
+    }
+
+    private boolean reserve (final Connection connection, final int count) throws SQLException
+    {
+        try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlReserveIds))
+        {
+            preparedStatement.setInt(1, count);
+            preparedStatement.setString(2, name);
+            return preparedStatement.executeUpdate() == 1;
+        }
+    }
+}
@@ -12,23 +12,54 @@
 package se.erikwelander.ecommerce.repository.sql;
 
 import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.exception.VersionConflictException;
 import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.model.OrderLines;
 import se.erikwelander.ecommerce.repository.OrderRepository;
 
+import java.sql.Connection;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.text.SimpleDateFormat;
+import java.sql.Types;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
 
 public class SQLOrderRepository implements OrderRepository
 {
     private final SQLConnector sqlConnector;
-    private final String dbOrder = "order",
+    private static final String dbOrder = "order",
             dbOrderItems = "order_items";
-    private final SimpleDateFormat sqlDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+    // Built once so the statement cache sees the exact same SQL text every time
+    private static final String sqlAddOrder = "INSERT INTO " + DBInfo.database + ".`" + dbOrder + "` "
+            + "(id_order, customer_name, created, shipped, version) "
+            + "VALUES(?,?,?,?,?);",
+            sqlAddOrderItem = "INSERT INTO " + DBInfo.database + "." + dbOrderItems + " "
+                    + "(id_order, id_product, quantity, unit_price) "
+                    + "VALUES(?,?,?,?);",
+            sqlGetOrder = "SELECT customer_name, created, shipped, version FROM " + DBInfo.database + ".`" + dbOrder + "` "
+                    + "WHERE id_order = ?;",
+            sqlGetOrderItems = "SELECT id_product, quantity, unit_price FROM " + DBInfo.database + "." + dbOrderItems + " "
+                    + "WHERE id_order = ?;",
+            sqlRemoveOrder = "DELETE FROM " + DBInfo.database + "." + dbOrder + " "
+                    + "WHERE id_order = ?;",
+            sqlRemoveOrderItems = "DELETE FROM " + DBInfo.database + "." + dbOrderItems + " "
+                    + "WHERE id_order = ?;",
+            sqlGetOrdersWithItems = "SELECT o.id_order, o.customer_name, o.created, o.shipped, o.version, i.id_product, i.quantity, i.unit_price "
+                    + "FROM " + DBInfo.database + ".`" + dbOrder + "` o "
+                    + "LEFT JOIN " + DBInfo.database + "." + dbOrderItems + " i ON i.id_order = o.id_order "
+                    + "WHERE o.customer_name = ? "
+                    + "ORDER BY o.id_order;",
+            sqlGetHighestOrderId = "SELECT MAX(id_order) FROM " + DBInfo.database + ".`" + dbOrder + "` ",
+            sqlUpdateOrder = "UPDATE " + DBInfo.database + ".`" + dbOrder + "` SET "
+                    + "created = ?, "
+                    + "shipped = ?, "
+                    + "version = GREATEST(version + 1, ?) "
+                    + "WHERE id_order = ? AND (? = 0 OR version = ?);";
+    private final SQLIdAllocation idAllocation;
 
     public SQLOrderRepository () throws RepositoryException
     {
@@ -39,195 +70,214 @@ public class SQLOrderRepository implements OrderRepository
         {
             throw new RepositoryException("Could not construct SQLCustomer: Could not construct database object", exception);
         }
+        idAllocation = new SQLIdAllocation(sqlConnector, dbOrder, "id_order");
     }
 
     @Override
     public void addOrder (final Order order) throws RepositoryException
     {
-        try
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("INSERT INTO " + DBInfo.database + ".`" + dbOrder + "` ");
-            sqlQuery.append("(id_order, customer_name, created, shipped) ");
-            sqlQuery.append("VALUES(?,?,?,?);");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setInt(1, order.id);
-            preparedStatement.setString(2, order.customerUserName);
-            preparedStatement.setDate(3, order.getDateCreated());
-            preparedStatement.setDate(4, null);
-
-            sqlConnector.queryUpdate(preparedStatement);
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Could not add Order values to database!", exception);
-        }
-
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlAddOrder))
+            {
+                preparedStatement.setInt(1, order.id);
+                preparedStatement.setString(2, order.customerUserName);
+                preparedStatement.setDate(3, Date.valueOf(order.getDateCreated()));
+                setDateShipped(preparedStatement, 4, order);
+                preparedStatement.setLong(5, System.currentTimeMillis());
 
-        final ArrayList<Integer> orderProductIDs = order.getAllProductIDs();
-        try
-        {
-            StringBuilder sqlQuery = new StringBuilder();
-            final int orderId = order.id;
-            for (int productId : orderProductIDs)
+                sqlConnector.queryUpdate(preparedStatement);
+            } catch (final SQLException exception)
             {
-                sqlQuery.append("INSERT INTO " + DBInfo.database + "." + dbOrderItems + " ");
-                sqlQuery.append("(id_order, id_product) ");
-                sqlQuery.append("VALUES(?,?);");
+                throw new RepositoryException("Could not add Order values to database!", exception);
+            }
 
-                PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-                preparedStatement.setInt(1, orderId);
-                preparedStatement.setInt(2, productId);
 
-                sqlConnector.queryUpdate(preparedStatement);
-                sqlQuery.delete(0, sqlQuery.length());
+            // One row per line, not per unit
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlAddOrderItem))
+            {
+                final int orderId = order.id;
+                for (int line = 0; line < order.getLineCount(); line++)
+                {
+                    preparedStatement.setInt(1, orderId);
+                    preparedStatement.setInt(2, order.getLineProductId(line));
+                    preparedStatement.setInt(3, order.getLineQuantity(line));
+                    preparedStatement.setDouble(4, order.getLineUnitPrice(line));
+                    preparedStatement.addBatch();
+                }
+                sqlConnector.queryBatch(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not add OrderID values to database!", exception);
             }
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not add OrderID values to database!", exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
     }
 
     @Override
     public Order getOrder (final int orderId) throws RepositoryException
     {
-        final String customerUserName;
-        final Date dateOrderCreated;
-        Date dateOrderShipped;
-        ResultSet sqlResult;
-
-        try
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("SELECT customer_name, created, shipped FROM " + DBInfo.database + ".`" + dbOrder + "` ");
-            sqlQuery.append("WHERE id_order = ?;");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setInt(1, orderId);
+            final String customerUserName;
+            final LocalDate dateOrderCreated;
+            LocalDate dateOrderShipped;
+            final long version;
+            ResultSet sqlResult;
 
-            sqlResult = sqlConnector.queryResult(preparedStatement);
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Could not query database for Order info!", exception);
-        }
-
-        try
-        {
-            sqlResult.next();
-            customerUserName = sqlResult.getString("customer_name");
-            dateOrderCreated = sqlResult.getDate("created");
-            dateOrderShipped = sqlResult.getDate("shipped");
-            sqlResult.close();
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Could not parse SQL values!", exception);
-        }
+            try
+            {
+                PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetOrder);
+                preparedStatement.setInt(1, orderId);
 
+                sqlResult = sqlConnector.queryResult(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not query database for Order info!", exception);
+            }
 
-        try
-        {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("SELECT id_product FROM " + DBInfo.database + "." + dbOrderItems + " ");
-            sqlQuery.append("WHERE id_order = ?;");
+            try
+            {
+                sqlResult.next();
+                customerUserName = sqlResult.getString("customer_name");
+                dateOrderCreated = toLocalDate(sqlResult.getDate("created"));
+                dateOrderShipped = toLocalDate(sqlResult.getDate("shipped"));
+                version = sqlResult.getLong("version");
+                sqlResult.close();
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not parse SQL values!", exception);
+            }
 
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setInt(1, orderId);
 
-            sqlResult = sqlConnector.queryResult(preparedStatement);
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Could not query CustomerUserName from Order!", exception);
-        }
+            try
+            {
+                PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetOrderItems);
+                preparedStatement.setInt(1, orderId);
 
-        try
-        {
-            final ArrayList<Integer> productIds = new ArrayList<>();
-            while (sqlResult.next())
+                sqlResult = sqlConnector.queryResult(preparedStatement);
+            } catch (final SQLException exception)
             {
-                productIds.add(sqlResult.getInt(1));
+                throw new RepositoryException("Could not query CustomerUserName from Order!", exception);
             }
-            sqlResult.close();
 
-            return new Order(orderId, customerUserName, productIds, dateOrderCreated, dateOrderShipped);
+            try
+            {
+                final OrderLines orderLines = new OrderLines();
+                while (sqlResult.next())
+                {
+                    orderLines.append(sqlResult.getInt(1), sqlResult.getInt(2), sqlResult.getDouble(3));
+                }
+                sqlResult.close();
+
+                return new Order(orderId, customerUserName, orderLines, dateOrderCreated, dateOrderShipped, version);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not construct Order from database!", exception);
+            }
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not construct Order from database!", exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
     }
 
     @Override
     public void removeOrder (final int orderId) throws RepositoryException
     {
-        ResultSet sqlResult;
-        try
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("DELETE FROM " + DBInfo.database + "." + dbOrderItems + " ");
-            sqlQuery.append("WHERE id_order = ?;");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setInt(1, orderId);
-
-            sqlConnector.queryUpdate(preparedStatement);
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Could not query removal of OrderItems!", exception);
-        }
+            ResultSet sqlResult;
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRemoveOrderItems))
+            {
+                preparedStatement.setInt(1, orderId);
 
-        try
-        {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("DELETE FROM " + DBInfo.database + "." + dbOrder + " ");
-            sqlQuery.append("WHERE id_order = ?;");
+                sqlConnector.queryUpdate(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not query removal of OrderItems!", exception);
+            }
 
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setInt(1, orderId);
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRemoveOrder))
+            {
+                preparedStatement.setInt(1, orderId);
 
-            sqlConnector.queryUpdate(preparedStatement);
+                sqlConnector.queryUpdate(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not query removal of order!", exception);
+            }
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not query removal of order!", exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
     }
 
     @Override
     public List<Order> getAllOrders (final String customerUsername) throws RepositoryException
     {
-        ResultSet sqlResult;
-        try
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("SELECT id_order FROM " + DBInfo.database + ".`" + dbOrder + "` ");
-            sqlQuery.append("WHERE customer_name = ?;");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setString(1, customerUsername);
+            ResultSet sqlResult;
+            try
+            {
+                PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetOrdersWithItems);
+                preparedStatement.setString(1, customerUsername);
 
-            sqlResult = sqlConnector.queryResult(preparedStatement);
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Could not fetch OrderIDs from database!", exception);
-        }
+                sqlResult = sqlConnector.queryResult(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not fetch Orders from database!", exception);
+            }
 
-        List<Integer> customerOrderIDs = new ArrayList<>();
-        try
-        {
-            while (sqlResult.next())
+            try
             {
-                customerOrderIDs.add(sqlResult.getInt("id_order"));
+                // One row per order item, sorted by order, so an order is complete when the next one starts
+                final List<Order> orderList = new ArrayList<>();
+                OrderLines orderLines = null;
+                int orderId = 0;
+                String customerUserName = null;
+                LocalDate dateOrderCreated = null, dateOrderShipped = null;
+                long version = 0;
+                while (sqlResult.next())
+                {
+                    final int rowOrderId = sqlResult.getInt("id_order");
+                    if (orderLines == null || rowOrderId != orderId)
+                    {
+                        if (orderLines != null)
+                        {
+                            orderList.add(new Order(orderId, customerUserName, orderLines, dateOrderCreated, dateOrderShipped, version));
+                        }
+                        orderLines = new OrderLines();
+                        orderId = rowOrderId;
+                        customerUserName = sqlResult.getString("customer_name");
+                        dateOrderCreated = toLocalDate(sqlResult.getDate("created"));
+                        dateOrderShipped = toLocalDate(sqlResult.getDate("shipped"));
+                        version = sqlResult.getLong("version");
+                    }
+
+                    // Orders without items still get one row from the left join, with a null product
+                    final int productId = sqlResult.getInt("id_product");
+                    if (!sqlResult.wasNull())
+                    {
+                        orderLines.append(productId, sqlResult.getInt("quantity"), sqlResult.getDouble("unit_price"));
+                    }
+                }
+                if (orderLines != null)
+                {
+                    orderList.add(new Order(orderId, customerUserName, orderLines, dateOrderCreated, dateOrderShipped, version));
+                }
+                sqlResult.close();
+                return orderList;
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not parse Orders from ResultSet!", exception);
             }
-            sqlResult.close();
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not parse Order IDs from ResultSet!", exception);
-        }
-
-        List<Order> orderList = new ArrayList<>();
-        for (int orderId : customerOrderIDs)
-        {
-            orderList.add(getOrder(orderId));
+            throw new RepositoryException("Could not get database connection!", exception);
         }
-        return orderList;
     }
 
     /*
@@ -314,101 +364,112 @@ public class SQLOrderRepository implements OrderRepository
     @Override
     public int getHighestOrderId () throws RepositoryException
     {
-        ResultSet sqlResult;
-        try
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            final String sqlQuery = "SELECT MAX(id_order) FROM " + DBInfo.database + ".`" + dbOrder + "` ";
+            ResultSet sqlResult;
+            try
+            {
+                PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetHighestOrderId);
 
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery);
+                sqlResult = sqlConnector.queryResult(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not get query MAX(id_order)!", exception);
+            }
 
-            sqlResult = sqlConnector.queryResult(preparedStatement);
+            try
+            {
+                sqlResult.next();
+                final int highestID = sqlResult.getInt(1);
+                sqlResult.close();
+                return highestID;
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not parse MAX(id_order)!", exception);
+            }
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not get query MAX(id_order)!", exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
+    }
 
-        try
-        {
-            sqlResult.next();
-            final int highestID = sqlResult.getInt(1);
-            sqlResult.close();
-            return highestID;
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Could not parse MAX(id_order)!", exception);
-        }
+    @Override
+    public int reserveOrderIds (final int count) throws RepositoryException
+    {
+        return idAllocation.reserve(count);
     }
 
     @Override
     public void updateOrder (final Order order) throws RepositoryException
     {
-
-        final String sqlDateCreated = sqlDateFormat.format(order.getDateCreated());
-        String sqlDateShipped;
-        if (null == order.getDateShipped())
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            sqlDateShipped = sqlDateFormat.format(new Date(0L));
-        }
-        else
-        {
-            sqlDateShipped = sqlDateFormat.format(order.getDateShipped());
-        }
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlUpdateOrder))
+            {
+                preparedStatement.setDate(1, Date.valueOf(order.getDateCreated()));
+                setDateShipped(preparedStatement, 2, order);
+                preparedStatement.setLong(3, System.currentTimeMillis());
+                preparedStatement.setInt(4, order.id);
+                preparedStatement.setLong(5, order.version);
+                preparedStatement.setLong(6, order.version);
+
+                // Checked before the items are touched, a conflicting update changes nothing
+                if (sqlConnector.queryUpdate(preparedStatement) == 0 && order.version != 0)
+                {
+                    throw new VersionConflictException("Order " + order.id + " has been changed since version " + order.version + " or does not exist");
+                }
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not query Order update!", exception);
+            }
 
-        try
-        {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("UPDATE " + DBInfo.database + ".`" + dbOrder + "` SET ");
-            sqlQuery.append("created = ?, ");
-            sqlQuery.append("shipped = ? ");
-            sqlQuery.append("WHERE id_order = ?;");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setString(1, sqlDateCreated);
-            preparedStatement.setString(2, sqlDateShipped);
-            preparedStatement.setInt(3, order.id);
-
-            sqlConnector.queryUpdate(preparedStatement);
-        } catch (final SQLException exception)
-        {
-            throw new RepositoryException("Could not query Order update!", exception);
-        }
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRemoveOrderItems))
+            {
+                preparedStatement.setInt(1, order.id);
 
-        try
-        {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("DELETE FROM " + DBInfo.database + "." + dbOrderItems + " ");
-            sqlQuery.append("WHERE id_order = ?;");
+                sqlConnector.queryUpdate(preparedStatement);
+            } catch (SQLException e)
+            {
+                throw new RepositoryException("Could not delete Order items!", e);
+            }
 
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setInt(1, order.id);
 
-            sqlConnector.queryUpdate(preparedStatement);
-        } catch (SQLException e)
+            try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlAddOrderItem))
+            {
+                for (int line = 0; line < order.getLineCount(); line++)
+                {
+                    preparedStatement.setInt(1, order.id);
+                    preparedStatement.setInt(2, order.getLineProductId(line));
+                    preparedStatement.setInt(3, order.getLineQuantity(line));
+                    preparedStatement.setDouble(4, order.getLineUnitPrice(line));
+                    preparedStatement.addBatch();
+                }
+                sqlConnector.queryBatch(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not add OrderIDs to Order! in database!", exception);
+            }
+        } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not delete Order items!", e);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
+    }
 
+    // DATE columns are read and written as plain days, no formatting and no time zone shifts
+    private static LocalDate toLocalDate (final Date date)
+    {
+        return date == null ? null : date.toLocalDate();
+    }
 
-        final ArrayList<Integer> productIDs = order.getAllProductIDs();
-        try
+    private static void setDateShipped (final PreparedStatement preparedStatement, final int parameterIndex, final Order order) throws SQLException
+    {
+        if (order.isShipped())
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            for (int productId : productIDs)
-            {
-                sqlQuery.append("INSERT INTO " + DBInfo.database + "." + dbOrderItems + " ");
-                sqlQuery.append("(id_order, id_product) ");
-                sqlQuery.append("VALUES(?,?);");
-
-                PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-                preparedStatement.setInt(1, order.id);
-                preparedStatement.setInt(2, productId);
-
-                sqlConnector.queryUpdate(preparedStatement);
-                sqlQuery.delete(0, sqlQuery.length());
-            }
-        } catch (final SQLException exception)
+            preparedStatement.setDate(parameterIndex, Date.valueOf(order.getDateShipped()));
+        }
+        else
         {
-            throw new RepositoryException("Could not add OrderIDs to Order! in database!", exception);
+            preparedStatement.setNull(parameterIndex, Types.DATE);
         }
     }
 }
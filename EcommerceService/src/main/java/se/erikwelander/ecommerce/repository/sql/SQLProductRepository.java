@@ -12,19 +12,60 @@
 package se.erikwelander.ecommerce.repository.sql;
 
 import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.exception.VersionConflictException;
 import se.erikwelander.ecommerce.model.Product;
 import se.erikwelander.ecommerce.repository.ProductRepository;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class SQLProductRepository implements ProductRepository
 {
-    private final String dbTable = "product";
+    private static final Logger logger = Logger.getLogger(SQLProductRepository.class.getName());
+    private static final String dbTable = "product";
+    // One row per table, the row of a table is created by its first write so existing databases keep working
+    private static final String dbVersionTable = "table_version";
+
+    // Built once so the statement cache sees the exact same SQL text every time
+    private static final String sqlAddProduct = "INSERT INTO " + DBInfo.database + "." + dbTable + " "
+            + "(id_product, title, category, manufacturer, description, image, price, quantity, version) "
+            + "VALUES(?,?,?,?,?,?,?,?,?);",
+            sqlGetProduct = "SELECT * FROM " + DBInfo.database + "." + dbTable + " "
+                    + "WHERE id_product = ?;",
+            sqlGetAllProducts = "SELECT * FROM " + DBInfo.database + "." + dbTable + ";",
+            // Separate text so the streaming fetch size set on its cached statement never reaches getAllproducts
+            sqlStreamAllProducts = "SELECT * FROM " + DBInfo.database + "." + dbTable + " ORDER BY id_product;",
+            sqlGetProductsAfter = "SELECT * FROM " + DBInfo.database + "." + dbTable + " WHERE id_product > ? ORDER BY id_product LIMIT ?;",
+            sqlGetProductsVersion = "SELECT version FROM " + DBInfo.database + "." + dbVersionTable + " WHERE name = ?;",
+            sqlRaiseProductsVersion = "INSERT INTO " + DBInfo.database + "." + dbVersionTable + " (name, version) VALUES (?, 1) "
+                    + "ON DUPLICATE KEY UPDATE version = version + 1;",
+            sqlGetHighestProductId = "SELECT MAX(id_product) FROM " + DBInfo.database + "." + dbTable,
+            sqlUpdateProduct = "UPDATE " + DBInfo.database + "." + dbTable + " SET "
+                    + "title = ?, "
+                    + "category = ?, "
+                    + "manufacturer = ?, "
+                    + "description = ?, "
+                    + "image = ?, "
+                    + "price = ?, "
+                    + "quantity = ?, "
+                    + "version = GREATEST(version + 1, ?) "
+                    + "WHERE id_product = ? AND (? = 0 OR version = ?);",
+            sqlUpdateProductQuantity = "UPDATE " + DBInfo.database + "." + dbTable + " SET "
+                    + "quantity = quantity + ?, "
+                    + "version = GREATEST(version + 1, ?) "
+                    + "WHERE id_product = ? AND quantity >= ?;",
+            sqlRemoveProduct = "DELETE FROM " + DBInfo.database + "." + dbTable + " WHERE id_product = ?;";
     private final SQLConnector sqlConnector;
+    private final SQLIdAllocation idAllocation;
 
     public SQLProductRepository () throws RepositoryException
     {
@@ -35,19 +76,15 @@ public class SQLProductRepository implements ProductRepository
         {
             throw new RepositoryException("Could not construct SQLCustomer: Could not construct database object", exception);
         }
+        idAllocation = new SQLIdAllocation(sqlConnector, dbTable, "id_product");
     }
 
     @Override
     public void addProduct (final Product product) throws RepositoryException
     {
-        try
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlAddProduct))
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("INSERT INTO " + DBInfo.database + "." + dbTable + " ");
-            sqlQuery.append("(id_product, title, category, manufacturer, description, image, price, quantity) ");
-            sqlQuery.append("VALUES(?,?,?,?,?,?,?,?);");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
             preparedStatement.setInt(1, product.id);
             preparedStatement.setString(2, product.title);
             preparedStatement.setString(3, product.category);
@@ -56,141 +93,255 @@ public class SQLProductRepository implements ProductRepository
             preparedStatement.setString(6, product.image);
             preparedStatement.setDouble(7, product.price);
             preparedStatement.setInt(8, product.getQuantity());
+            preparedStatement.setLong(9, System.currentTimeMillis());
 
             sqlConnector.queryUpdate(preparedStatement);
         } catch (final SQLException exception)
         {
             throw new RepositoryException("Could not add Product to database!", exception);
         }
+        raiseProductsVersion();
     }
 
     @Override
-    public Product getProduct (final int productId) throws RepositoryException
+    public void addProducts (final List<Product> products) throws RepositoryException
     {
-        ResultSet sqlResult;
-        try
+        final long version = System.currentTimeMillis();
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlAddProduct))
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("SELECT * FROM " + DBInfo.database + "." + dbTable + " ");
-            sqlQuery.append("WHERE id_product = ?;");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-            preparedStatement.setInt(1, productId);
-
-            sqlResult = sqlConnector.queryResult(preparedStatement);
+            for (Product product : products)
+            {
+                preparedStatement.setInt(1, product.id);
+                preparedStatement.setString(2, product.title);
+                preparedStatement.setString(3, product.category);
+                preparedStatement.setString(4, product.manufacturer);
+                preparedStatement.setString(5, product.description);
+                preparedStatement.setString(6, product.image);
+                preparedStatement.setDouble(7, product.price);
+                preparedStatement.setInt(8, product.getQuantity());
+                preparedStatement.setLong(9, version);
+                preparedStatement.addBatch();
+            }
+            sqlConnector.queryBatch(preparedStatement);
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Failed to retrieve Product data from database!", exception);
+            throw new RepositoryException("Could not add Products to database!", exception);
         }
+        raiseProductsVersion();
+    }
 
-        try
+    @Override
+    public Product getProduct (final int productId) throws RepositoryException
+    {
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            sqlResult.next();
-            final Product product = new Product(
-                    productId,
-                    sqlResult.getInt("quantity"),
-                    sqlResult.getDouble("price"),
-                    sqlResult.getString("title"),
-                    sqlResult.getString("category"),
-                    sqlResult.getString("manufacturer"),
-                    sqlResult.getString("description"),
-                    sqlResult.getString("image")
-            );
-            sqlResult.close();
-            return product;
+            ResultSet sqlResult;
+            try
+            {
+                PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetProduct);
+                preparedStatement.setInt(1, productId);
+
+                sqlResult = sqlConnector.queryResult(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Failed to retrieve Product data from database!", exception);
+            }
+
+            try
+            {
+                sqlResult.next();
+                final Product product = readProduct(sqlResult);
+                sqlResult.close();
+                return product;
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Failed to construct Product from database! " + exception.getMessage(), exception);
+            }
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Failed to construct Product from database! " + exception.getMessage(), exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
     }
 
     @Override
     public List<Product> getAllproducts () throws RepositoryException
     {
-        ResultSet sqlResult;
-        try
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            final String sqlQuery = "SELECT * FROM " + DBInfo.database + "." + dbTable + ";";
+            ResultSet sqlResult;
+            try
+            {
+                PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetAllProducts);
 
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery);
+                sqlResult = sqlConnector.queryResult(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not fetch all Products from database!", exception);
+            }
 
-            sqlResult = sqlConnector.queryResult(preparedStatement);
+            try
+            {
+                final List<Product> productList = new ArrayList<>();
+                while (sqlResult.next())
+                {
+                    productList.add(readProduct(sqlResult));
+                }
+                sqlResult.close();
+                return productList;
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not parse Products in database!", exception);
+            }
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not fetch all Products from database!", exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
+    }
 
-        try
+    @Override
+    public void forEachProduct (final Consumer<Product> consumer) throws RepositoryException
+    {
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlStreamAllProducts))
         {
-            final List<Product> productList = new ArrayList<>();
-            while (sqlResult.next())
+            // Makes the MySQL driver hand out rows as they arrive instead of reading the whole result first.
+            // The connection can run nothing else until the result is closed.
+            preparedStatement.setFetchSize(Integer.MIN_VALUE);
+            try (final ResultSet sqlResult = sqlConnector.queryResult(preparedStatement))
             {
-                final Product product = new Product(
-                        sqlResult.getInt("id_product"),
-                        sqlResult.getInt("quantity"),
-                        sqlResult.getDouble("price"),
-                        sqlResult.getString("title"),
-                        sqlResult.getString("category"),
-                        sqlResult.getString("manufacturer"),
-                        sqlResult.getString("description"),
-                        sqlResult.getString("image")
-                );
-                productList.add(product);
+                while (sqlResult.next())
+                {
+                    consumer.accept(readProduct(sqlResult));
+                }
             }
-            sqlResult.close();
-            return productList;
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not parse Products in database!", exception);
+            throw new RepositoryException("Could not stream Products from database!", exception);
         }
     }
 
     @Override
-    public final int getHighestProductId () throws RepositoryException
+    public List<Product> getProductsAfter (final int afterProductId, final int limit) throws RepositoryException
     {
-        ResultSet sqlResult;
-        try
+        // A range scan on the primary key, no rows before the page are read
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetProductsAfter))
         {
-            final String sqlQuery = "SELECT MAX(id_product) FROM " + DBInfo.database + "." + dbTable;
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery);
+            preparedStatement.setInt(1, afterProductId);
+            preparedStatement.setInt(2, limit);
+            try (final ResultSet sqlResult = sqlConnector.queryResult(preparedStatement))
+            {
+                final List<Product> productList = new ArrayList<>(limit);
+                while (sqlResult.next())
+                {
+                    productList.add(readProduct(sqlResult));
+                }
+                return productList;
+            }
+        } catch (final SQLException exception)
+        {
+            throw new RepositoryException("Could not get Products after " + afterProductId + " from database!", exception);
+        }
+    }
 
-            sqlResult = sqlConnector.queryResult(preparedStatement);
+    @Override
+    public long getProductsVersion () throws RepositoryException
+    {
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetProductsVersion))
+        {
+            preparedStatement.setString(1, dbTable);
+            try (final ResultSet sqlResult = sqlConnector.queryResult(preparedStatement))
+            {
+                // No row until the first write
+                return sqlResult.next() ? sqlResult.getLong(1) : 0;
+            }
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not get query MAX Product ID!", exception);
+            throw new RepositoryException("Could not get the version of the Products in database!", exception);
         }
+    }
 
-        try
+    // Raised once the write is committed, on a connection of its own, so concurrent orders do not queue for
+    // the one row until they commit. A reader may get the new products with the old version for that moment,
+    // never the other way around.
+    private void raiseProductsVersion ()
+    {
+        sqlConnector.afterCommit(() ->
+        {
+            try (final Connection connection = sqlConnector.getOwnConnection();
+                 final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRaiseProductsVersion))
+            {
+                preparedStatement.setString(1, dbTable);
+                sqlConnector.queryUpdate(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                logger.log(Level.WARNING, "Could not raise the version of the Products, clients keep their catalog until the next change", exception);
+            }
+        });
+    }
+
+    private static Product readProduct (final ResultSet sqlResult) throws SQLException
+    {
+        return new Product(
+                sqlResult.getInt("id_product"),
+                sqlResult.getInt("quantity"),
+                sqlResult.getDouble("price"),
+                sqlResult.getString("title"),
+                sqlResult.getString("category"),
+                sqlResult.getString("manufacturer"),
+                sqlResult.getString("description"),
+                sqlResult.getString("image"),
+                sqlResult.getLong("version")
+        );
+    }
+
+    @Override
+    public final int getHighestProductId () throws RepositoryException
+    {
+        try (final Connection connection = sqlConnector.getConnection())
         {
-            sqlResult.next();
-            final int highestProductID = sqlResult.getInt(1);
-            sqlResult.close();
-            return highestProductID;
+            ResultSet sqlResult;
+            try
+            {
+                PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlGetHighestProductId);
+
+                sqlResult = sqlConnector.queryResult(preparedStatement);
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not get query MAX Product ID!", exception);
+            }
+
+            try
+            {
+                sqlResult.next();
+                final int highestProductID = sqlResult.getInt(1);
+                sqlResult.close();
+                return highestProductID;
+            } catch (final SQLException exception)
+            {
+                throw new RepositoryException("Could not parse MAX(id_product) Product database!", exception);
+            }
         } catch (final SQLException exception)
         {
-            throw new RepositoryException("Could not parse MAX(id_product) Product database!", exception);
+            throw new RepositoryException("Could not get database connection!", exception);
         }
     }
 
+    @Override
+    public int reserveProductIds (final int count) throws RepositoryException
+    {
+        return idAllocation.reserve(count);
+    }
+
 
     @Override
     public void updateProduct (final Product product) throws RepositoryException
     {
-        try
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlUpdateProduct))
         {
-            StringBuilder sqlQuery = new StringBuilder();
-            sqlQuery.append("UPDATE " + DBInfo.database + "." + dbTable + " SET ");
-            sqlQuery.append("title = ?, ");
-            sqlQuery.append("category = ?, ");
-            sqlQuery.append("manufacturer = ?, ");
-            sqlQuery.append("description = ?, ");
-            sqlQuery.append("image = ?, ");
-            sqlQuery.append("price = ?, ");
-            sqlQuery.append("quantity = ? ");
-            sqlQuery.append("WHERE id_product = ?;");
-
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
             preparedStatement.setString(1, product.title);
             preparedStatement.setString(2, product.category);
             preparedStatement.setString(3, product.manufacturer);
@@ -198,56 +349,98 @@ public class SQLProductRepository implements ProductRepository
             preparedStatement.setString(5, product.image);
             preparedStatement.setDouble(6, product.price);
             preparedStatement.setInt(7, product.getQuantity());
-            preparedStatement.setInt(8, product.id);
+            preparedStatement.setLong(8, System.currentTimeMillis());
+            preparedStatement.setInt(9, product.id);
+            preparedStatement.setLong(10, product.version);
+            preparedStatement.setLong(11, product.version);
 
-            sqlConnector.queryUpdate(preparedStatement);
+            if (sqlConnector.queryUpdate(preparedStatement) == 0)
+            {
+                if (product.version != 0)
+                {
+                    throw new VersionConflictException("Product " + product.id + " has been changed since version " + product.version + " or does not exist");
+                }
+                return;
+            }
         } catch (final SQLException exception)
         {
             throw new RepositoryException("Could not query Product update!", exception);
         }
+        raiseProductsVersion();
     }
 
     @Override
-    public void productsUpdateQuantity (final List<Integer> productIDs, final int quantityChange) throws RepositoryException
+    public List<Integer> productsUpdateQuantity (final List<Integer> productIDs, final int quantityChange) throws RepositoryException
     {
-        Product product[] = new Product[productIDs.size()];
-        for (int i = 0; i < productIDs.size(); i++)
+        final TreeMap<Integer, Integer> quantityChanges = new TreeMap<>();
+        for (int productId : productIDs)
         {
-            product[i] = getProduct(productIDs.get(i));
+            quantityChanges.merge(productId, quantityChange, Integer::sum);
         }
+        return updateQuantities(quantityChanges);
+    }
 
-        StringBuilder sqlQuery = new StringBuilder();
-        for (int i = 0; i < productIDs.size(); i++)
+    @Override
+    public List<Integer> productsUpdateQuantities (final int[] productIds, final int[] quantityChanges) throws RepositoryException
+    {
+        final TreeMap<Integer, Integer> productQuantityChanges = new TreeMap<>();
+        for (int i = 0; i < productIds.length; i++)
         {
-            sqlQuery.append("UPDATE " + DBInfo.database + "." + dbTable + " SET ");
-            sqlQuery.append("quantity = ? ");
-            sqlQuery.append("WHERE id_product = ?;");
+            productQuantityChanges.merge(productIds[i], quantityChanges[i], Integer::sum);
+        }
+        return updateQuantities(productQuantityChanges);
+    }
 
-            try
+    // One update per product, in ascending id order so concurrent checkouts lock the rows in the same order
+    private List<Integer> updateQuantities (final TreeMap<Integer, Integer> quantityChanges) throws RepositoryException
+    {
+        final long version = System.currentTimeMillis();
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlUpdateProductQuantity))
+        {
+            for (Map.Entry<Integer, Integer> productQuantityChange : quantityChanges.entrySet())
             {
-                PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery.toString());
-                preparedStatement.setInt(1, product[i].getQuantity());
-                preparedStatement.setInt(2, product[i].id);
+                // The guard makes the database refuse to sell stock that is not there
+                preparedStatement.setInt(1, productQuantityChange.getValue());
+                preparedStatement.setLong(2, version);
+                preparedStatement.setInt(3, productQuantityChange.getKey());
+                preparedStatement.setInt(4, Math.max(0, -productQuantityChange.getValue()));
+                preparedStatement.addBatch();
+            }
+            final int[] updateCounts = sqlConnector.queryBatch(preparedStatement);
 
-                sqlConnector.queryUpdate(preparedStatement);
-                sqlQuery.delete(0, sqlQuery.length());
-            } catch (final SQLException exception)
+            final List<Integer> failedProductIDs = new ArrayList<>();
+            int i = 0;
+            for (int productId : quantityChanges.keySet())
+            {
+                if (updateCounts[i++] == 0)
+                {
+                    failedProductIDs.add(productId);
+                }
+            }
+            if (failedProductIDs.size() < quantityChanges.size())
             {
-                throw new RepositoryException("Could not query Product quantity update!", exception);
+                raiseProductsVersion();
             }
+            return failedProductIDs;
+        } catch (final SQLException exception)
+        {
+            throw new RepositoryException("Could not query Product quantity update!", exception);
         }
     }
 
     @Override
     public void removeProduct (final int productId) throws RepositoryException
     {
-        try
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlRemoveProduct))
         {
-            final String sqlQuery = "DELETE FROM " + DBInfo.database + "." + dbTable + " WHERE id_product = ?;";
-            PreparedStatement preparedStatement = sqlConnector.prepareStatement(sqlQuery);
             preparedStatement.setInt(1, productId);
 
-            sqlConnector.queryUpdate(preparedStatement);
+            if (sqlConnector.queryUpdate(preparedStatement) > 0)
+            {
+                raiseProductsVersion();
+            }
         } catch (final SQLException exception)
         {
             throw new RepositoryException("Could not query removal of Product!", exception);
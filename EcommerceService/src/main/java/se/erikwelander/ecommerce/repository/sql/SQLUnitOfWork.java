@@ -0,0 +1,83 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        SQLUnitOfWork.java
+// Encoding:	UTF-8
+//
+// Purpose:     SQL implementation of UnitOfWork.
+//              Runs everything between begin and commit as one database
+//              transaction on one connection.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.repository.sql;
+
+import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.repository.UnitOfWork;
+
+import java.sql.SQLException;
+
+public class SQLUnitOfWork implements UnitOfWork
+{
+    private final SQLConnector sqlConnector;
+
+    public SQLUnitOfWork () throws RepositoryException
+    {
+        try
+        {
+            sqlConnector = new SQLConnector();
+        } catch (final SQLException exception)
+        {
+            throw new RepositoryException("Could not construct SQLUnitOfWork: Could not construct database object", exception);
+        }
+    }
+
+    @Override
+    public void begin () throws RepositoryException
+    {
+        try
+        {
+            sqlConnector.beginTransaction();
+        } catch (final SQLException exception)
+        {
+            throw new RepositoryException("Could not begin transaction!", exception);
+        }
+    }
+
+    @Override
+    public void commit () throws RepositoryException
+    {
+        try
+        {
+            sqlConnector.commitTransaction();
+        } catch (final SQLException exception)
+        {
+            throw new RepositoryException("Could not commit transaction!", exception);
+        }
+    }
+
+    @Override
+    public void rollback () throws RepositoryException
+    {
+        try
+        {
+            sqlConnector.rollbackTransaction();
+        } catch (final SQLException exception)
+        {
+            throw new RepositoryException("Could not roll back transaction!", exception);
+        }
+    }
+
+    @Override
+    public void afterCommit (final Runnable action)
+    {
+        sqlConnector.afterCommit(action);
+    }
+
+    // The transaction rolls back the writes
+    @Override
+    public void onRollback (final Undo undo)
+    {
+    }
+}
@@ -0,0 +1,57 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        IdGenerator.java
+// Encoding:	UTF-8
+//
+// Purpose:     Hands out ids from blocks reserved in a repository (hi/lo),
+//              so only one id in every block costs a repository call.
+//              Ids left in the block when the service stops are skipped.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.service;
+
+import se.erikwelander.ecommerce.exception.RepositoryException;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+final class IdGenerator
+{
+    interface IdBlockSource
+    {
+        // Returns the first of count reserved ids
+        int reserve (final int count) throws RepositoryException;
+    }
+
+    private final IdBlockSource idBlockSource;
+    private final int blockSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int nextId;
+    private int blockEnd;
+
+    IdGenerator (final IdBlockSource idBlockSource, final int blockSize)
+    {
+        this.idBlockSource = idBlockSource;
+        this.blockSize = blockSize;
+    }
+
+    int next () throws RepositoryException
+    {
+        lock.lock();
+        try
+        {
+            if (nextId == blockEnd)
+            {
+                final int blockStart = idBlockSource.reserve(blockSize);
+                nextId = blockStart;
+                blockEnd = blockStart + blockSize;
+            }
+            return nextId++;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+}
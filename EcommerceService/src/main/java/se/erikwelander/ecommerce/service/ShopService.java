@@ -19,136 +19,259 @@ import se.erikwelander.ecommerce.exception.RepositoryException;
 import se.erikwelander.ecommerce.exception.ShopServiceException;
 import se.erikwelander.ecommerce.model.Customer;
 import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.model.OrderLines;
 import se.erikwelander.ecommerce.model.Product;
 import se.erikwelander.ecommerce.repository.CustomerRepository;
 import se.erikwelander.ecommerce.repository.OrderRepository;
 import se.erikwelander.ecommerce.repository.ProductRepository;
+import se.erikwelander.ecommerce.repository.UnitOfWork;
+import se.erikwelander.ecommerce.repository.memory.InMemoryUnitOfWork;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class ShopService
 {
+    // Locks are always taken customer first, then products in ascending stripe order
+    private static final int LOCK_STRIPES = 64;
+    // Ids reserved from the repositories at a time
+    private static final int ID_BLOCK_SIZE = 100;
+    // How long a cart holds its stock after the last addition, and how often run out holds are given back
+    private static final long RESERVATION_TTL_MILLIS = 15 * 60 * 1000;
+    private static final long MAX_RESERVATION_SWEEP_INTERVAL_MILLIS = 10 * 1000;
+
     private final CustomerRepository customerRepository;
     private final ProductRepository productRepository;
     private final OrderRepository orderRepository;
+    private final UnitOfWork unitOfWork;
+
+    private final IdGenerator productIdGenerator;
+    private final IdGenerator orderIdGenerator;
 
-    private final AtomicInteger productIDGenerator;
-    private final AtomicInteger orderIDGenerator;
+    private final StripedLock customerLocks = new StripedLock(LOCK_STRIPES);
+    private final StripedLock productLocks = new StripedLock(LOCK_STRIPES);
+    private final StockReservations stockReservations;
 
+    // For repositories that apply their writes immediately, like the memory repositories
     public ShopService (final CustomerRepository customerRepository,
                         final ProductRepository productRepository,
                         final OrderRepository orderRepository)
+    {
+        this(customerRepository, productRepository, orderRepository, new InMemoryUnitOfWork());
+    }
+
+    public ShopService (final CustomerRepository customerRepository,
+                        final ProductRepository productRepository,
+                        final OrderRepository orderRepository,
+                        final UnitOfWork unitOfWork)
+    {
+        this(customerRepository, productRepository, orderRepository, unitOfWork, RESERVATION_TTL_MILLIS);
+    }
+
+    public ShopService (final CustomerRepository customerRepository,
+                        final ProductRepository productRepository,
+                        final OrderRepository orderRepository,
+                        final UnitOfWork unitOfWork,
+                        final long reservationTtlMillis)
     {
         this.customerRepository = customerRepository;
         this.productRepository = productRepository;
         this.orderRepository = orderRepository;
+        this.unitOfWork = unitOfWork;
+
+        productIdGenerator = new IdGenerator(productRepository::reserveProductIds, ID_BLOCK_SIZE);
+        orderIdGenerator = new IdGenerator(orderRepository::reserveOrderIds, ID_BLOCK_SIZE);
+        stockReservations = new StockReservations(reservationTtlMillis, Math.min(reservationTtlMillis, MAX_RESERVATION_SWEEP_INTERVAL_MILLIS));
+    }
+
+    // Stops the background work of the service, for when the application stops
+    public void close ()
+    {
+        stockReservations.close();
+    }
 
+    public Product addProduct (final Product product)
+    {
+        // The product gets a new id that was never used, whatever id it came with
         try
         {
-            productIDGenerator = new AtomicInteger(productRepository.getHighestProductId());
-            orderIDGenerator = new AtomicInteger(orderRepository.getHighestOrderId());
-
-            System.out.println();
+            final Product addProduct = new Product(productIdGenerator.next(),
+                    product.getQuantity(),
+                    product.price,
+                    product.title,
+                    product.category,
+                    product.manufacturer,
+                    product.description,
+                    product.image);
+            productRepository.addProduct(addProduct);
+            return addProduct;
         } catch (final RepositoryException exception)
         {
-            throw new ShopServiceException("Could not instantiate ShopService: " + exception.getMessage(), exception);
+            throw new ShopServiceException("Could not add product: " + exception.getMessage(), exception);
         }
     }
 
-    public synchronized Product addProduct (final Product product)
+    // Adds the products as one batch, all of them or none. Returns them with their new ids.
+    public List<Product> addProducts (final List<Product> products)
     {
         try
         {
-            if (productRepository.getProduct(product.id).equals(product))
+            final List<Product> addProducts = new ArrayList<>(products.size());
+            for (Product product : products)
+            {
+                addProducts.add(new Product(productIdGenerator.next(),
+                        product.getQuantity(),
+                        product.price,
+                        product.title,
+                        product.category,
+                        product.manufacturer,
+                        product.description,
+                        product.image));
+            }
+
+            unitOfWork.begin();
+            try
+            {
+                productRepository.addProducts(addProducts);
+            } catch (final Throwable exception)
             {
-                throw new ShopServiceException("Could not add product: A product with id " + product.id + " already exists!");
+                rollback(exception);
+                throw exception;
             }
+            unitOfWork.commit();
+            return addProducts;
         } catch (final RepositoryException exception)
         {
+            throw new ShopServiceException("Could not add products: " + exception.getMessage(), exception);
         }
+    }
 
-        final Product addProduct = new Product(getNextProductId(),
-                product.getQuantity(),
-                product.price,
-                product.title,
-                product.category,
-                product.manufacturer,
-                product.description,
-                product.image);
+    public Product getProduct (final int productId)
+    {
         try
         {
-            productRepository.addProduct(addProduct);
+            return productRepository.getProduct(productId);
         } catch (final RepositoryException exception)
         {
-            throw new ShopServiceException("Could not add product: " + exception.getMessage(), exception);
+            throw new ShopServiceException("Could not getProduct: " + exception.getMessage(), exception);
         }
-        return addProduct;
     }
 
-    public synchronized Product getProduct (final int productId)
+    public List<Product> getAllProducts ()
     {
         try
         {
-            return productRepository.getProduct(productId);
+            return productRepository.getAllproducts();
         } catch (final RepositoryException exception)
         {
-            throw new ShopServiceException("Could not getProduct: " + exception.getMessage(), exception);
+            throw new ShopServiceException("Could not get products.: " + exception.getMessage(), exception);
         }
     }
 
-    public synchronized List<Product> getAllProducts ()
+    // For catalogs too large to hold as one list, the products reach the consumer as they are read
+    public void forEachProduct (final Consumer<Product> consumer)
     {
         try
         {
-            return productRepository.getAllproducts();
+            productRepository.forEachProduct(consumer);
+        } catch (final RepositoryException exception)
+        {
+            throw new ShopServiceException("Could not get products.: " + exception.getMessage(), exception);
+        }
+    }
+
+    public List<Product> getProductsAfter (final int afterProductId, final int limit)
+    {
+        try
+        {
+            return productRepository.getProductsAfter(afterProductId, limit);
+        } catch (final RepositoryException exception)
+        {
+            throw new ShopServiceException("Could not get products.: " + exception.getMessage(), exception);
+        }
+    }
+
+    public long getProductsVersion ()
+    {
+        try
+        {
+            return productRepository.getProductsVersion();
         } catch (final RepositoryException exception)
         {
             throw new ShopServiceException("Could not get products.: " + exception.getMessage(), exception);
         }
     }
 
-    public synchronized void updateProduct (final Product product)
+    public void updateProduct (final Product product)
     {
+        final Lock productLock = productLocks.get(product.id);
+        productLock.lock();
         try
         {
             productRepository.updateProduct(product);
         } catch (final RepositoryException exception)
         {
             throw new ShopServiceException("Could not updateProduct: " + exception.getMessage(), exception);
+        } finally
+        {
+            productLock.unlock();
         }
     }
 
-    public synchronized void removeProduct (final int productId)
+    public void removeProduct (final int productId)
     {
+        // Remove the product first so no new cart additions can pass the stock check,
+        // then take it out of every cart while no customer can write back a stale cart.
+        final Lock productLock = productLocks.get(productId);
+        productLock.lock();
         try
         {
-            for (Customer customer : customerRepository.getAllCustomers())
-            {
-                customer.removeFromShoppingCart(productId);
-                updateCustomer(customer);
-            }
             productRepository.removeProduct(productId);
-        } catch (final Exception exception)
+            stockReservations.releaseAll(productId);
+        } catch (final RepositoryException exception)
         {
             throw new ShopServiceException("Could not remove product: " + exception.getMessage(), exception);
+        } finally
+        {
+            productLock.unlock();
+        }
+
+        final List<Lock> allCustomerLocks = customerLocks.all();
+        lockAll(allCustomerLocks);
+        try
+        {
+            customerRepository.removeProductFromAllCarts(productId);
+        } catch (final RepositoryException exception)
+        {
+            throw new ShopServiceException("Could not remove product: " + exception.getMessage(), exception);
+        } finally
+        {
+            unlockAll(allCustomerLocks);
         }
     }
 
 
-    public synchronized void addCustomer (final Customer customer)
+    public void addCustomer (final Customer customer)
     {
+        final Lock customerLock = customerLocks.get(customer.userName);
+        customerLock.lock();
         try
         {
             customerRepository.addCustomer(customer);
         } catch (final RepositoryException exception)
         {
             throw new ShopServiceException("Could not add customer: " + exception.getMessage(), exception);
+        } finally
+        {
+            customerLock.unlock();
         }
     }
 
-    public synchronized Customer getCustomer (final String customerUsername)
+    public Customer getCustomer (final String customerUsername)
     {
         try
         {
@@ -159,87 +282,226 @@ public class ShopService
         }
     }
 
-    public synchronized void updateCustomer (final Customer customer)
+    public void updateCustomer (final Customer customer)
     {
+        final Lock customerLock = customerLocks.get(customer.userName);
+        customerLock.lock();
         try
         {
             customerRepository.updateCustomer(customer);
+            // The update replaces the cart, what is no longer in it is no longer held
+            final int[] cartProductIds = customer.getShoppingCartProductIds();
+            stockReservations.releaseAll(customer.userName, cartProductIds);
+            for (int productId : cartProductIds)
+            {
+                final int heldAbove = stockReservations.getHeld(productId, customer.userName) - customer.getShoppingCartQuantity(productId);
+                if (heldAbove > 0)
+                {
+                    stockReservations.release(productId, customer.userName, heldAbove);
+                }
+            }
         } catch (final RepositoryException exception)
         {
             throw new ShopServiceException("Could not update customer: " + exception.getMessage(), exception);
+        } finally
+        {
+            customerLock.unlock();
         }
     }
 
-    public synchronized void addProductToCustomer (final int productId, final String customerUsername, final int amount)
+    public void addProductToCustomer (final int productId, final String customerUsername, final int amount)
     {
+        // The repositories add the amount as a delta, so anything below one would take units out of the cart
+        if (amount < 1)
+        {
+            throw new ShopServiceException("Could not add product to customer: amount must be at least 1, got " + amount);
+        }
+        final Lock customerLock = customerLocks.get(customerUsername);
+        final Lock productLock = productLocks.get(productId);
+        customerLock.lock();
+        productLock.lock();
         try
         {
-            if (productRepository.getProduct(productId).getQuantity() >= amount)
+            // Held before it goes into the cart, so no other cart can get the same units meanwhile
+            if (!stockReservations.hold(productId, customerUsername, amount, productRepository.getProduct(productId).getQuantity()))
             {
-                final Customer customer = customerRepository.getCustomer(customerUsername);
-                for (int i = 0; i < amount; i++)
-                {
-                    customer.addToShoppingCart(productId);
-                }
-                // Make the repository record the changes to customer
-                customerRepository.updateCustomer(customer);
+                throw new ShopServiceException("Could not add product to customer: not enough free stock of product " + productId
+                        + " for " + amount + " more, the rest is sold or held by other carts");
+            }
+            try
+            {
+                customerRepository.addToShoppingCart(customerUsername, productId, amount);
+            } catch (final RepositoryException exception)
+            {
+                // Also what was held for earlier additions, createOrder holds that again
+                stockReservations.release(productId, customerUsername);
+                throw exception;
             }
         } catch (final RepositoryException exception)
         {
             throw new ShopServiceException("Could not add product to customer: " + exception.getMessage(), exception);
+        } finally
+        {
+            productLock.unlock();
+            customerLock.unlock();
         }
     }
 
-    public synchronized void removeCustomer (final String customerUsername)
+    public void removeCustomer (final String customerUsername)
     {
+        final Lock customerLock = customerLocks.get(customerUsername);
+        customerLock.lock();
         try
         {
             customerRepository.removeCustomer(customerUsername);
+            stockReservations.releaseAll(customerUsername);
         } catch (final RepositoryException exception)
         {
             throw new ShopServiceException("Could not remove customer: " + exception.getMessage(), exception);
+        } finally
+        {
+            customerLock.unlock();
         }
     }
 
 
-    public synchronized Order createOrder (final String customerUsername)
+    public Order createOrder (final String customerUsername)
     {
-        final Order newOrder;
+        final Lock customerLock = customerLocks.get(customerUsername);
+        customerLock.lock();
         try
         {
+            // A cart that was only changed in memory is written first, so rolling back the order does not lose it
+            customerRepository.flush(customerUsername);
             final Customer customer = customerRepository.getCustomer(customerUsername);
-            ArrayList<Integer> orderedProductIds = customer.getAllShoppingCartItems();
-            if (orderedProductIds.isEmpty())
+            final int[] cartProductIds = customer.getShoppingCartProductIds();
+            if (cartProductIds.length == 0)
             {
                 throw new ShopServiceException("This user has no items in their cart");
             }
-            productRepository.productsUpdateQuantity(orderedProductIds, -1);
+
+            final List<Lock> orderedProductLocks = productLocks.getAll(cartProductIds);
+            lockAll(orderedProductLocks);
             try
             {
-                newOrder = new Order(getNextOrderId(), customerUsername, orderedProductIds);
-                orderRepository.addOrder(newOrder);
-                try
-                {
-                    customer.emptyShoppingCart();
-                    customerRepository.updateCustomer(customer);
-                } catch (final RepositoryException exception)
-                {
-                    //orderRepository.removeOrder(orderId);
-                    throw new ShopServiceException("Could not update customer with new order: " + exception.getMessage(), exception);
-                }
-            } catch (final RepositoryException exception)
+                return createOrder(customer, cartProductIds);
+            } finally
             {
-                productRepository.productsUpdateQuantity(orderedProductIds, 1);
-                throw new ShopServiceException("Could not add new order: " + exception.getMessage(), exception);
+                unlockAll(orderedProductLocks);
             }
         } catch (final RepositoryException exception)
         {
             throw new ShopServiceException("Could not create order: " + exception.getMessage(), exception);
+        } finally
+        {
+            customerLock.unlock();
+        }
+    }
+
+    // Must be called with the customer lock and the locks of all ordered products held
+    private Order createOrder (final Customer customer, final int[] cartProductIds) throws RepositoryException
+    {
+        // The prices are taken now so later price changes do not change the order.
+        // Holds that ran out are taken again, unless other carts hold that stock now.
+        final OrderLines orderLines = new OrderLines(cartProductIds.length);
+        final int[] stockChanges = new int[cartProductIds.length];
+        // What was held again per product, given back if the order fails so the cart holds what it held before
+        final int[] heldAgain = new int[cartProductIds.length];
+        final List<Integer> unheldProductIds = new ArrayList<>();
+        try
+        {
+            for (int i = 0; i < cartProductIds.length; i++)
+            {
+                final int productId = cartProductIds[i];
+                final Product product = productRepository.getProduct(productId);
+                final int quantity = customer.getShoppingCartQuantity(productId);
+                stockChanges[i] = -quantity;
+                final int missing = quantity - stockReservations.getHeld(productId, customer.userName);
+                if (missing > 0)
+                {
+                    if (stockReservations.hold(productId, customer.userName, missing, product.getQuantity()))
+                    {
+                        heldAgain[i] = missing;
+                    }
+                    else
+                    {
+                        unheldProductIds.add(productId);
+                    }
+                }
+                orderLines.append(productId, quantity, product.price);
+            }
+            if (!unheldProductIds.isEmpty())
+            {
+                throw notInStock(unheldProductIds);
+            }
+        } catch (final RepositoryException | RuntimeException exception)
+        {
+            releaseHeldAgain(customer.userName, cartProductIds, heldAgain);
+            throw exception;
+        }
+
+        // Stock, order and cart are written as one unit, if any step fails none of them are kept
+        final Order newOrder = new Order(orderIdGenerator.next(), customer.userName, orderLines);
+        unitOfWork.begin();
+        try
+        {
+            final List<Integer> soldOutProductIds = productRepository.productsUpdateQuantities(cartProductIds, stockChanges);
+            if (!soldOutProductIds.isEmpty())
+            {
+                throw notInStock(soldOutProductIds);
+            }
+            // Only run by a unit of work whose repositories can not roll back, like the memory repositories
+            unitOfWork.onRollback(() -> productRepository.productsUpdateQuantities(cartProductIds,
+                    IntStream.of(stockChanges).map(change -> -change).toArray()));
+            orderRepository.addOrder(newOrder);
+            unitOfWork.onRollback(() -> orderRepository.removeOrder(newOrder.id));
+            customerRepository.emptyShoppingCart(customer.userName);
+        } catch (final Throwable exception)
+        {
+            rollback(exception);
+            releaseHeldAgain(customer.userName, cartProductIds, heldAgain);
+            throw exception;
+        }
+        unitOfWork.commit();
+
+        // The stock has been taken from the repository, the holds on it are done
+        for (int productId : cartProductIds)
+        {
+            stockReservations.release(productId, customer.userName);
         }
         return newOrder;
     }
 
-    public synchronized Order getOrder (final int orderId)
+    private void releaseHeldAgain (final String userName, final int[] productIds, final int[] heldAgain)
+    {
+        for (int i = 0; i < productIds.length; i++)
+        {
+            if (heldAgain[i] > 0)
+            {
+                stockReservations.release(productIds[i], userName, heldAgain[i]);
+            }
+        }
+    }
+
+    private static ShopServiceException notInStock (final List<Integer> productIds)
+    {
+        return new ShopServiceException("Not enough products with id " + productIds.stream()
+                .map(String::valueOf)
+                .collect(Collectors.joining(", ")) + " in stock");
+    }
+
+    private void rollback (final Throwable cause)
+    {
+        try
+        {
+            unitOfWork.rollback();
+        } catch (final RepositoryException exception)
+        {
+            cause.addSuppressed(exception);
+        }
+    }
+
+    public Order getOrder (final int orderId)
     {
         try
         {
@@ -250,7 +512,7 @@ public class ShopService
         }
     }
 
-    public synchronized List<Order> getOrdersFromUser (final String customerUsername)
+    public List<Order> getOrdersFromUser (final String customerUsername)
     {
         try
         {
@@ -270,7 +532,7 @@ public class ShopService
         }
     }
 
-    public synchronized void updateOrder (final Order order)
+    public void updateOrder (final Order order)
     {
         try
         {
@@ -281,7 +543,7 @@ public class ShopService
         }
     }
 
-    public synchronized void removeOrder (final int orderId)
+    public void removeOrder (final int orderId)
     {
         try
         {
@@ -292,13 +554,19 @@ public class ShopService
         }
     }
 
-    private int getNextProductId ()
+    private static void lockAll (final List<Lock> locks)
     {
-        return productIDGenerator.incrementAndGet();
+        for (Lock lock : locks)
+        {
+            lock.lock();
+        }
     }
 
-    private int getNextOrderId ()
+    private static void unlockAll (final List<Lock> locks)
     {
-        return orderIDGenerator.incrementAndGet();
+        for (int i = locks.size() - 1; i >= 0; i--)
+        {
+            locks.get(i).unlock();
+        }
     }
 }
\ No newline at end of file
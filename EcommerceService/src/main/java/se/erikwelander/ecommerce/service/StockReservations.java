@@ -0,0 +1,281 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        StockReservations.java
+// Encoding:	UTF-8
+//
+// Purpose:     Keeps track of the stock held by shopping carts, per product
+//              and customer, so two carts can not both hold the last unit.
+//              A hold lasts for a fixed time after the last addition and is
+//              given back by a background sweep when it runs out.
+//              The holds only live in this process, the stock in the
+//              product repository stays the truth at order time.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.service;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+final class StockReservations
+{
+    // One thread sweeps for every service, a service that is closed or gone stops its own sweep.
+    // The thread ends with the last sweep, so it does not outlive the application. Guarded by the class.
+    private static ScheduledExecutorService sweeper;
+    private static int sweepCount;
+
+    // The held count of a ProductHolds that has been taken out of products, holds must go to its replacement
+    private static final int RETIRED = -1;
+
+    private final long ttlNanos;
+    private final ScheduledFuture<?> sweep;
+    private final AtomicBoolean sweepEnded = new AtomicBoolean();
+    // Only products that something is held of, a product whose last hold is given back is taken out
+    private final ConcurrentHashMap<Integer, ProductHolds> products = new ConcurrentHashMap<>();
+    // The products each customer may hold, so giving back a customer's holds does not look through every product
+    private final ConcurrentHashMap<String, Set<Integer>> customerProductIds = new ConcurrentHashMap<>();
+
+    StockReservations (final long ttlMillis, final long sweepIntervalMillis)
+    {
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+
+        // Only this sweep's own state is reachable from the task, so the reservations can still be collected
+        final WeakReference<StockReservations> reservations = new WeakReference<>(this);
+        final AtomicReference<ScheduledFuture<?>> gcSweep = new AtomicReference<>();
+        final AtomicBoolean gcSweepEnded = sweepEnded;
+        synchronized (StockReservations.class)
+        {
+            if (sweeper == null)
+            {
+                sweeper = Executors.newSingleThreadScheduledExecutor(runnable ->
+                {
+                    final Thread thread = new Thread(runnable, "stock-reservation-sweeper");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            sweepCount++;
+            sweep = sweeper.scheduleWithFixedDelay(() ->
+            {
+                final StockReservations alive = reservations.get();
+                if (alive != null)
+                {
+                    alive.sweep();
+                }
+                else if (gcSweep.get() != null)
+                {
+                    endSweep(gcSweep.get(), gcSweepEnded);
+                }
+            }, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        gcSweep.set(sweep);
+    }
+
+    // Stops the sweep, the holds stay as they are
+    void close ()
+    {
+        endSweep(sweep, sweepEnded);
+    }
+
+    private static void endSweep (final ScheduledFuture<?> sweep, final AtomicBoolean ended)
+    {
+        if (!ended.compareAndSet(false, true))
+        {
+            return;
+        }
+        sweep.cancel(false);
+        synchronized (StockReservations.class)
+        {
+            if (--sweepCount == 0)
+            {
+                sweeper.shutdown();
+                sweeper = null;
+            }
+        }
+    }
+
+    // Holds amount more of the product for the customer if that still leaves the held total within stock.
+    // A successful hold also restarts the time of the customer's earlier holds of the product.
+    boolean hold (final int productId, final String userName, final int amount, final int stock)
+    {
+        if (amount <= 0)
+        {
+            throw new IllegalArgumentException("Cannot hold " + amount + " of product " + productId);
+        }
+        ProductHolds productHolds = products.computeIfAbsent(productId, id -> new ProductHolds());
+        while (true)
+        {
+            final int held = productHolds.held.get();
+            if (held == RETIRED)
+            {
+                products.remove(productId, productHolds);
+                productHolds = products.computeIfAbsent(productId, id -> new ProductHolds());
+                continue;
+            }
+            // Not held + amount, that overflows for large amounts and lets them through
+            if (amount > stock - held)
+            {
+                return false;
+            }
+            if (productHolds.held.compareAndSet(held, held + amount))
+            {
+                break;
+            }
+        }
+        final long expires = System.nanoTime() + ttlNanos;
+        productHolds.holds.merge(userName, new Hold(amount, expires), (hold, added) -> new Hold(hold.quantity + added.quantity, expires));
+        customerProductIds.compute(userName, (name, productIds) ->
+        {
+            final Set<Integer> heldProductIds = productIds != null ? productIds : ConcurrentHashMap.newKeySet();
+            heldProductIds.add(productId);
+            return heldProductIds;
+        });
+        return true;
+    }
+
+    // What the customer holds of the product, also when the hold has run out but has not been swept yet
+    int getHeld (final int productId, final String userName)
+    {
+        final ProductHolds productHolds = products.get(productId);
+        final Hold hold = productHolds == null ? null : productHolds.holds.get(userName);
+        return hold == null ? 0 : hold.quantity;
+    }
+
+    // Gives back the customer's hold, when the stock has been taken by an order or the cart is gone
+    void release (final int productId, final String userName)
+    {
+        final ProductHolds productHolds = products.get(productId);
+        if (productHolds != null)
+        {
+            final Hold hold = productHolds.holds.remove(userName);
+            if (hold != null)
+            {
+                released(productId, userName, productHolds, hold.quantity);
+            }
+        }
+    }
+
+    // Gives back amount of the customer's hold and keeps the rest, for holds taken by a step that then failed
+    void release (final int productId, final String userName, final int amount)
+    {
+        final ProductHolds productHolds = products.get(productId);
+        if (productHolds != null)
+        {
+            final int[] releasedQuantity = {0};
+            productHolds.holds.computeIfPresent(userName, (name, hold) ->
+            {
+                releasedQuantity[0] = Math.min(amount, hold.quantity);
+                return hold.quantity > amount ? new Hold(hold.quantity - amount, hold.expires) : null;
+            });
+            if (releasedQuantity[0] > 0)
+            {
+                released(productId, userName, productHolds, releasedQuantity[0]);
+            }
+        }
+    }
+
+    // Every hold of the customer but those of the kept products
+    void releaseAll (final String userName, final int... keptProductIds)
+    {
+        final Set<Integer> productIds = customerProductIds.get(userName);
+        if (productIds == null)
+        {
+            return;
+        }
+        for (int productId : productIds)
+        {
+            if (!IntStream.of(keptProductIds).anyMatch(keptProductId -> keptProductId == productId))
+            {
+                release(productId, userName);
+                // Also when the hold was swept or the product removed meanwhile
+                unindex(productId, userName);
+            }
+        }
+    }
+
+    void releaseAll (final int productId)
+    {
+        final ProductHolds productHolds = products.remove(productId);
+        if (productHolds != null)
+        {
+            for (String userName : productHolds.holds.keySet())
+            {
+                unindex(productId, userName);
+            }
+        }
+    }
+
+    private void sweep ()
+    {
+        final long now = System.nanoTime();
+        for (Map.Entry<Integer, ProductHolds> product : products.entrySet())
+        {
+            final ProductHolds productHolds = product.getValue();
+            for (Map.Entry<String, Hold> entry : productHolds.holds.entrySet())
+            {
+                final Hold hold = entry.getValue();
+                // Only this hold, a customer who added more meanwhile has a new one
+                if (now - hold.expires > 0 && productHolds.holds.remove(entry.getKey(), hold))
+                {
+                    released(product.getKey(), entry.getKey(), productHolds, hold.quantity);
+                }
+            }
+        }
+    }
+
+    // After quantity of a hold has been taken out of productHolds
+    private void released (final int productId, final String userName, final ProductHolds productHolds, final int quantity)
+    {
+        // Nothing held any more, a hold that comes in now sees RETIRED and starts a new ProductHolds
+        if (productHolds.held.addAndGet(-quantity) == 0 && productHolds.held.compareAndSet(0, RETIRED))
+        {
+            products.remove(productId, productHolds);
+        }
+        unindex(productId, userName);
+    }
+
+    // Takes the product out of the customer's products unless the customer still holds some of it.
+    // Under the customer's entry, a hold taken meanwhile adds it back after this.
+    private void unindex (final int productId, final String userName)
+    {
+        customerProductIds.computeIfPresent(userName, (name, productIds) ->
+        {
+            final ProductHolds productHolds = products.get(productId);
+            if (productHolds == null || !productHolds.holds.containsKey(userName))
+            {
+                productIds.remove(productId);
+            }
+            return productIds.isEmpty() ? null : productIds;
+        });
+    }
+
+    private static final class ProductHolds
+    {
+        private final AtomicInteger held = new AtomicInteger();
+        private final ConcurrentHashMap<String, Hold> holds = new ConcurrentHashMap<>();
+    }
+
+    private static final class Hold
+    {
+        private final int quantity;
+        private final long expires;
+
+        private Hold (final int quantity, final long expires)
+        {
+            this.quantity = quantity;
+            this.expires = expires;
+        }
+    }
+}
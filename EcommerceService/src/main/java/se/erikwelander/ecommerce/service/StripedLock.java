@@ -0,0 +1,99 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        StripedLock.java
+// Encoding:	UTF-8
+//
+// Purpose:     A fixed set of locks that entity keys are hashed onto.
+//              Lets the shop service lock single customers and products
+//              instead of the whole service.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class StripedLock
+{
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    StripedLock (final int minimumStripes)
+    {
+        // Round up to a power of two so the stripe index is a simple mask
+        int numStripes = 1;
+        while (numStripes < minimumStripes)
+        {
+            numStripes <<= 1;
+        }
+        stripes = new ReentrantLock[numStripes];
+        for (int i = 0; i < numStripes; i++)
+        {
+            stripes[i] = new ReentrantLock();
+        }
+        mask = numStripes - 1;
+    }
+
+    Lock get (final Object key)
+    {
+        return stripes[indexOf(key)];
+    }
+
+    // Returns the distinct stripes for all keys in ascending stripe order.
+    // Always acquiring in this order is what keeps multi-key callers from deadlocking each other.
+    List<Lock> getAll (final Collection<?> keys)
+    {
+        final TreeSet<Integer> indexes = new TreeSet<>();
+        for (Object key : keys)
+        {
+            indexes.add(indexOf(key));
+        }
+        return getAll(indexes);
+    }
+
+    // The same for int keys, locked as their Integer would be
+    List<Lock> getAll (final int[] keys)
+    {
+        final TreeSet<Integer> indexes = new TreeSet<>();
+        for (int key : keys)
+        {
+            indexes.add(indexOf(Integer.hashCode(key)));
+        }
+        return getAll(indexes);
+    }
+
+    private List<Lock> getAll (final TreeSet<Integer> indexes)
+    {
+        final List<Lock> locks = new ArrayList<>(indexes.size());
+        for (int index : indexes)
+        {
+            locks.add(stripes[index]);
+        }
+        return locks;
+    }
+
+    // Every stripe in ascending order, for the rare operation that touches all keys at once
+    List<Lock> all ()
+    {
+        return Arrays.<Lock>asList(stripes);
+    }
+
+    private int indexOf (final Object key)
+    {
+        return indexOf(key.hashCode());
+    }
+
+    private int indexOf (final int hash)
+    {
+        // Spread the hash so keys that only differ in the high bits do not share a stripe
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
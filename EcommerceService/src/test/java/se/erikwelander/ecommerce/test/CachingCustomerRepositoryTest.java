@@ -0,0 +1,258 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        CachingCustomerRepositoryTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Tests for the write-behind customer cache in front of an
+//              InMemoryCustomerRepository that counts reads and writes.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.exception.ShopServiceException;
+import se.erikwelander.ecommerce.model.Customer;
+import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.CustomerRepository;
+import se.erikwelander.ecommerce.repository.UnitOfWork;
+import se.erikwelander.ecommerce.repository.cache.CachingCustomerRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryCustomerRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryUnitOfWork;
+import se.erikwelander.ecommerce.service.ShopService;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachingCustomerRepositoryTest
+{
+    private static final int CACHE_SIZE = 1;
+    private static final long NO_PERIODIC_FLUSH_MILLIS = 60 * 60 * 1000;
+
+    private final Customer CUSTOMER_KIRA = new Customer("Kira", "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321");
+    private final Customer CUSTOMER_ALEX = new Customer("Alex", "secret", "alex@erikwelander.se", "Alex", "Welander", "Stockholm", "123456789");
+
+    private CountingCustomerRepository backend;
+    private CachingCustomerRepository cache;
+
+    @Before
+    public void setUp () throws RepositoryException
+    {
+        backend = new CountingCustomerRepository();
+        backend.addCustomer(CUSTOMER_KIRA);
+        backend.addCustomer(CUSTOMER_ALEX);
+    }
+
+    @After
+    public void tearDown () throws RepositoryException
+    {
+        if (cache != null)
+        {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void cartChangesAreWrittenOnFlush () throws RepositoryException
+    {
+        cache = new CachingCustomerRepository(backend, new InMemoryUnitOfWork(), CACHE_SIZE, NO_PERIODIC_FLUSH_MILLIS);
+
+        cache.addToShoppingCart(CUSTOMER_KIRA.userName, 4, 2);
+        cache.addToShoppingCart(CUSTOMER_KIRA.userName, 2, 1);
+        cache.addToShoppingCart(CUSTOMER_KIRA.userName, 4, 1);
+        cache.removeFromShoppingCart(CUSTOMER_KIRA.userName, 2);
+        assertEquals(Arrays.asList(4, 4, 4), cache.getCustomer(CUSTOMER_KIRA.userName).getAllShoppingCartItems());
+
+        assertEquals(1, backend.reads);
+        assertEquals(0, backend.updates);
+        assertTrue(backend.getCustomer(CUSTOMER_KIRA.userName).getAllShoppingCartItems().isEmpty());
+        assertEquals(1, cache.getDirtyCount());
+
+        cache.flush();
+        assertEquals(1, backend.updates);
+        assertEquals(Arrays.asList(4, 4, 4), backend.getCustomer(CUSTOMER_KIRA.userName).getAllShoppingCartItems());
+        assertEquals(0, cache.getDirtyCount());
+
+        // Nothing changed since the last flush
+        cache.flush();
+        assertEquals(1, backend.updates);
+    }
+
+    @Test
+    public void flushWritesOnlyChangedLines () throws RepositoryException
+    {
+        cache = new CachingCustomerRepository(backend, new InMemoryUnitOfWork(), CACHE_SIZE, NO_PERIODIC_FLUSH_MILLIS);
+        for (int productId = 1; productId <= 20; productId++)
+        {
+            cache.addToShoppingCart(CUSTOMER_KIRA.userName, productId, 1);
+        }
+        cache.flush();
+        assertEquals(20, backend.updatedLines);
+
+        cache.addToShoppingCart(CUSTOMER_KIRA.userName, 7, 2);
+        cache.removeFromShoppingCart(CUSTOMER_KIRA.userName, 12);
+        cache.flush();
+        assertEquals(22, backend.updatedLines);
+        assertEquals(3, backend.getCustomer(CUSTOMER_KIRA.userName).getShoppingCartQuantity(7));
+        assertEquals(0, backend.getCustomer(CUSTOMER_KIRA.userName).getShoppingCartQuantity(12));
+        assertEquals(19, backend.getCustomer(CUSTOMER_KIRA.userName).getShoppingCartProductIds().length);
+    }
+
+    @Test
+    public void unflushedCustomersAreNotEvicted () throws RepositoryException
+    {
+        cache = new CachingCustomerRepository(backend, new InMemoryUnitOfWork(), CACHE_SIZE, NO_PERIODIC_FLUSH_MILLIS);
+
+        cache.addToShoppingCart(CUSTOMER_KIRA.userName, 1, 1);
+        cache.addToShoppingCart(CUSTOMER_ALEX.userName, 2, 1);
+        assertEquals(2, cache.size());
+        assertEquals(0, cache.getEvictions());
+
+        cache.flush();
+        assertEquals(CACHE_SIZE, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(Arrays.asList(1), cache.getCustomer(CUSTOMER_KIRA.userName).getAllShoppingCartItems());
+        assertEquals(Arrays.asList(2), cache.getCustomer(CUSTOMER_ALEX.userName).getAllShoppingCartItems());
+    }
+
+    @Test
+    public void changesAreFlushedPeriodically () throws Exception
+    {
+        cache = new CachingCustomerRepository(backend, new InMemoryUnitOfWork(), CACHE_SIZE, 10);
+
+        cache.addToShoppingCart(CUSTOMER_KIRA.userName, 3, 5);
+        for (int attempt = 0; attempt < 200 && cache.getDirtyCount() > 0; attempt++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(0, cache.getDirtyCount());
+        assertEquals(5, backend.getCustomer(CUSTOMER_KIRA.userName).getShoppingCartQuantity(3));
+    }
+
+    @Test
+    public void readDuringOrderDoesNotKeepOrderedCart () throws RepositoryException
+    {
+        final DeferringUnitOfWork unitOfWork = new DeferringUnitOfWork();
+        final CustomerRepository transactionalBackend = new TransactionalCustomerRepository(backend, unitOfWork);
+        cache = new CachingCustomerRepository(transactionalBackend, unitOfWork, CACHE_SIZE, NO_PERIODIC_FLUSH_MILLIS);
+        cache.addToShoppingCart(CUSTOMER_KIRA.userName, 4, 3);
+        cache.flush();
+
+        // A read between emptying the cart and the commit gets the cart that is still stored
+        unitOfWork.begin();
+        cache.emptyShoppingCart(CUSTOMER_KIRA.userName);
+        assertEquals(3, cache.getCustomer(CUSTOMER_KIRA.userName).getShoppingCartQuantity(4));
+        unitOfWork.commit();
+
+        assertTrue(cache.getCustomer(CUSTOMER_KIRA.userName).getAllShoppingCartItems().isEmpty());
+    }
+
+    @Test
+    public void orderFlushesAndEmptiesCart () throws RepositoryException
+    {
+        cache = new CachingCustomerRepository(backend, new InMemoryUnitOfWork(), CACHE_SIZE, NO_PERIODIC_FLUSH_MILLIS);
+        final ShopService shopService = new ShopService(cache, new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+
+        shopService.addProductToCustomer(tomato.id, CUSTOMER_KIRA.userName, 2);
+        final Order order = shopService.createOrder(CUSTOMER_KIRA.userName);
+
+        assertEquals(Arrays.asList(tomato.id, tomato.id), order.getAllProductIDs());
+        assertTrue(shopService.getCustomer(CUSTOMER_KIRA.userName).getAllShoppingCartItems().isEmpty());
+        assertTrue(backend.getCustomer(CUSTOMER_KIRA.userName).getAllShoppingCartItems().isEmpty());
+    }
+
+    @Test
+    public void failedOrderKeepsCart () throws RepositoryException
+    {
+        cache = new CachingCustomerRepository(backend, new InMemoryUnitOfWork(), CACHE_SIZE, NO_PERIODIC_FLUSH_MILLIS);
+        final ShopService shopService = new ShopService(cache, new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+
+        // The cart holds the tomatoes, but the stock shrinks before the order
+        shopService.addProductToCustomer(tomato.id, CUSTOMER_KIRA.userName, 3);
+        shopService.addProductToCustomer(tomato.id, CUSTOMER_KIRA.userName, 2);
+        shopService.updateProduct(new Product(tomato.id, 4, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+        try
+        {
+            shopService.createOrder(CUSTOMER_KIRA.userName);
+            fail("Sold more tomatoes than there are in stock");
+        } catch (final ShopServiceException exception)
+        {
+        }
+
+        assertEquals(5, shopService.getCustomer(CUSTOMER_KIRA.userName).getShoppingCartQuantity(tomato.id));
+        assertEquals(5, backend.getCustomer(CUSTOMER_KIRA.userName).getShoppingCartQuantity(tomato.id));
+    }
+
+    // Empties carts only when the unit of work is committed, like the SQL repository inside a transaction
+    private static final class TransactionalCustomerRepository extends InMemoryCustomerRepository
+    {
+        private final CustomerRepository customerRepository;
+        private final UnitOfWork unitOfWork;
+
+        TransactionalCustomerRepository (final CustomerRepository customerRepository, final UnitOfWork unitOfWork)
+        {
+            this.customerRepository = customerRepository;
+            this.unitOfWork = unitOfWork;
+        }
+
+        @Override
+        public Customer getCustomer (final String userName) throws RepositoryException
+        {
+            return customerRepository.getCustomer(userName);
+        }
+
+        @Override
+        public void setShoppingCartQuantities (final String userName, final int[] productIds, final int[] quantities) throws RepositoryException
+        {
+            customerRepository.setShoppingCartQuantities(userName, productIds, quantities);
+        }
+
+        @Override
+        public void emptyShoppingCart (final String userName)
+        {
+            unitOfWork.afterCommit(() ->
+            {
+                try
+                {
+                    customerRepository.emptyShoppingCart(userName);
+                } catch (final RepositoryException exception)
+                {
+                    throw new IllegalStateException(exception);
+                }
+            });
+        }
+    }
+
+    private static final class CountingCustomerRepository extends InMemoryCustomerRepository
+    {
+        int reads, updates, updatedLines;
+
+        @Override
+        public synchronized Customer getCustomer (final String userName) throws RepositoryException
+        {
+            reads++;
+            return super.getCustomer(userName);
+        }
+
+        @Override
+        public synchronized void setShoppingCartQuantities (final String userName, final int[] productIds, final int[] quantities) throws RepositoryException
+        {
+            updates++;
+            updatedLines += productIds.length;
+            super.setShoppingCartQuantities(userName, productIds, quantities);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        CachingProductRepositoryTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Tests for the product cache in front of an InMemoryProductRepository
+//              that counts how often it is read.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.cache.CachingProductRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+
+public class CachingProductRepositoryTest
+{
+    private static final int CACHE_SIZE = 2;
+    private static final long CACHE_TTL_MILLIS = 60 * 1000;
+
+    private final Product PRODUCT_TOMATO = new Product(1, 5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg");
+    private final Product PRODUCT_LETTUCE = new Product(2, 88, 2, "Lettuce", "Vegetables", "France", "A mound of lettuce", "http://google.com/lettuce.jpg");
+    private final Product PRODUCT_APPLE = new Product(3, 20, 10, "Apple", "Fruit", "Asia", "Some delicious apples", "http://google.com/apple.jpg");
+
+    private CountingProductRepository backend;
+
+    @Before
+    public void setUp () throws RepositoryException
+    {
+        backend = new CountingProductRepository();
+        backend.addProduct(PRODUCT_TOMATO);
+        backend.addProduct(PRODUCT_LETTUCE);
+        backend.addProduct(PRODUCT_APPLE);
+    }
+
+    @Test
+    public void repeatedReadsAreHits () throws RepositoryException
+    {
+        final CachingProductRepository cache = new CachingProductRepository(backend, CACHE_SIZE, CACHE_TTL_MILLIS);
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(PRODUCT_TOMATO, cache.getProduct(PRODUCT_TOMATO.id));
+            assertEquals(3, cache.getAllproducts().size());
+        }
+        assertEquals(2, backend.reads);
+        assertEquals(18, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0.9, cache.getHitRatio(), 0.0001);
+    }
+
+    @Test
+    public void writesInvalidate () throws RepositoryException
+    {
+        final CachingProductRepository cache = new CachingProductRepository(backend, CACHE_SIZE, CACHE_TTL_MILLIS);
+        cache.getProduct(PRODUCT_TOMATO.id);
+        cache.getAllproducts();
+
+        final Product updatedTomato = new Product(PRODUCT_TOMATO.id, 7, 50, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg");
+        cache.updateProduct(updatedTomato);
+        assertEquals(updatedTomato, cache.getProduct(PRODUCT_TOMATO.id));
+
+        cache.productsUpdateQuantity(Arrays.asList(PRODUCT_TOMATO.id, PRODUCT_TOMATO.id), -1);
+        assertEquals(5, cache.getProduct(PRODUCT_TOMATO.id).getQuantity());
+
+        cache.removeProduct(PRODUCT_LETTUCE.id);
+        assertEquals(2, cache.getAllproducts().size());
+        assertEquals(5, backend.reads);
+    }
+
+    @Test
+    public void stockIsDroppedWhenCommitted () throws RepositoryException
+    {
+        final DeferringUnitOfWork unitOfWork = new DeferringUnitOfWork();
+        final CachingProductRepository cache = new CachingProductRepository(backend, unitOfWork, CACHE_SIZE, CACHE_TTL_MILLIS);
+        cache.getProduct(PRODUCT_TOMATO.id);
+
+        // Until the commit the old stock is what every other reader sees, so it is still what the cache hands out
+        unitOfWork.begin();
+        cache.productsUpdateQuantities(new int[]{PRODUCT_TOMATO.id}, new int[]{-2});
+        assertEquals(5, cache.getProduct(PRODUCT_TOMATO.id).getQuantity());
+        unitOfWork.commit();
+
+        assertEquals(3, cache.getProduct(PRODUCT_TOMATO.id).getQuantity());
+        assertEquals(2, backend.reads);
+    }
+
+    @Test
+    public void callersCannotChangeCachedProducts () throws RepositoryException
+    {
+        final CachingProductRepository cache = new CachingProductRepository(backend, CACHE_SIZE, CACHE_TTL_MILLIS);
+        cache.getProduct(PRODUCT_APPLE.id);
+        cache.getAllproducts();
+
+        cache.getProduct(PRODUCT_APPLE.id).increaseDecreaseQuantity(100);
+        cache.getAllproducts().get(0).increaseDecreaseQuantity(100);
+
+        assertEquals(PRODUCT_APPLE.getQuantity(), cache.getProduct(PRODUCT_APPLE.id).getQuantity());
+        for (Product product : cache.getAllproducts())
+        {
+            assertEquals(backend.getProduct(product.id).getQuantity(), product.getQuantity());
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted () throws RepositoryException
+    {
+        final CachingProductRepository cache = new CachingProductRepository(backend, CACHE_SIZE, CACHE_TTL_MILLIS);
+        cache.getProduct(PRODUCT_TOMATO.id);
+        cache.getProduct(PRODUCT_LETTUCE.id);
+        cache.getProduct(PRODUCT_TOMATO.id);
+        cache.getProduct(PRODUCT_APPLE.id);
+
+        assertEquals(CACHE_SIZE, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        cache.getProduct(PRODUCT_TOMATO.id);
+        assertEquals(3, backend.reads);
+        cache.getProduct(PRODUCT_LETTUCE.id);
+        assertEquals(4, backend.reads);
+    }
+
+    @Test
+    public void oldEntriesExpire () throws Exception
+    {
+        final CachingProductRepository cache = new CachingProductRepository(backend, CACHE_SIZE, 1);
+        cache.getProduct(PRODUCT_TOMATO.id);
+        Thread.sleep(10);
+        cache.getProduct(PRODUCT_TOMATO.id);
+
+        assertEquals(2, backend.reads);
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    public void forEachProductDoesNotFillCache () throws RepositoryException
+    {
+        final CachingProductRepository cache = new CachingProductRepository(backend, CACHE_SIZE, CACHE_TTL_MILLIS);
+        final List<Product> streamedProducts = new ArrayList<>();
+        cache.forEachProduct(streamedProducts::add);
+        assertEquals(3, streamedProducts.size());
+        assertEquals(1, backend.reads);
+        cache.getAllproducts();
+        assertEquals(2, backend.reads);
+
+        // Once the list is cached it is streamed from the cache, as copies
+        streamedProducts.clear();
+        cache.forEachProduct(streamedProducts::add);
+        streamedProducts.get(0).increaseDecreaseQuantity(100);
+        assertEquals(2, backend.reads);
+        assertEquals(3, streamedProducts.size());
+        for (Product product : cache.getAllproducts())
+        {
+            assertEquals(backend.getProduct(product.id).getQuantity(), product.getQuantity());
+        }
+    }
+
+    private static final class CountingProductRepository extends InMemoryProductRepository
+    {
+        int reads;
+
+        @Override
+        public synchronized Product getProduct (final int productId) throws RepositoryException
+        {
+            reads++;
+            return super.getProduct(productId);
+        }
+
+        @Override
+        public synchronized List<Product> getAllproducts () throws RepositoryException
+        {
+            reads++;
+            return super.getAllproducts();
+        }
+
+        @Override
+        public synchronized void forEachProduct (final Consumer<Product> consumer) throws RepositoryException
+        {
+            reads++;
+            super.forEachProduct(consumer);
+        }
+    }
+}
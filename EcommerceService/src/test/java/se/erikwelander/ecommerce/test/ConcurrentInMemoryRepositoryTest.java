@@ -0,0 +1,191 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        ConcurrentInMemoryRepositoryTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Hammers the InMemoryRepositories directly from many threads,
+//              without any locking in ShopService, to make sure every
+//              operation is atomic on its own.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.model.Customer;
+import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.memory.InMemoryCustomerRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentInMemoryRepositoryTest
+{
+    private static final int NUM_THREADS = 16;
+    private static final int ROUNDS_PER_THREAD = 2000;
+    private static final int TOMATO_STOCK = 1000;
+    private static final int APPLE_STOCK = 3000;
+    private static final String USER_NAME = "Kira";
+
+    @Test (timeout = 60000)
+    public void sameKeyIsAddedOnce () throws Exception
+    {
+        final InMemoryCustomerRepository customerRepository = new InMemoryCustomerRepository();
+        final InMemoryOrderRepository orderRepository = new InMemoryOrderRepository();
+        final AtomicInteger addedCustomers = new AtomicInteger(), addedOrders = new AtomicInteger();
+
+        runConcurrently(thread ->
+        {
+            for (int round = 0; round < ROUNDS_PER_THREAD; round++)
+            {
+                try
+                {
+                    customerRepository.addCustomer(newCustomer("customer" + round));
+                    addedCustomers.incrementAndGet();
+                } catch (final RepositoryException exception)
+                {
+                }
+                try
+                {
+                    orderRepository.addOrder(new Order(round, USER_NAME, new ArrayList<>(Collections.singletonList(thread))));
+                    addedOrders.incrementAndGet();
+                } catch (final RepositoryException exception)
+                {
+                }
+            }
+        });
+
+        assertEquals(ROUNDS_PER_THREAD, addedCustomers.get());
+        assertEquals(ROUNDS_PER_THREAD, customerRepository.getAllCustomers().size());
+        assertEquals(ROUNDS_PER_THREAD, addedOrders.get());
+        assertEquals(ROUNDS_PER_THREAD, orderRepository.getAllOrders(USER_NAME).size());
+    }
+
+    @Test (timeout = 60000)
+    public void stockIsNeverOversold () throws Exception
+    {
+        final InMemoryProductRepository productRepository = new InMemoryProductRepository();
+        final Product tomato = new Product(1, TOMATO_STOCK, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg");
+        final Product apple = new Product(2, APPLE_STOCK, 10, "Apple", "Fruit", "Asia", "Some delicious apples", "http://google.com/apple.jpg");
+        productRepository.addProduct(tomato);
+        productRepository.addProduct(apple);
+
+        final AtomicInteger soldTomatoes = new AtomicInteger(), soldApples = new AtomicInteger();
+        final AtomicBoolean sawNegativeStock = new AtomicBoolean(false);
+        runConcurrently(thread ->
+        {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int round = 0; round < ROUNDS_PER_THREAD; round++)
+            {
+                // Both products in one call, either both are sold or none is
+                final int tomatoes = 1 + random.nextInt(3), apples = 1 + random.nextInt(3);
+                final List<Integer> productIds = new ArrayList<>();
+                productIds.addAll(Collections.nCopies(tomatoes, tomato.id));
+                productIds.addAll(Collections.nCopies(apples, apple.id));
+                if (productRepository.productsUpdateQuantity(productIds, -1).isEmpty())
+                {
+                    soldTomatoes.addAndGet(tomatoes);
+                    soldApples.addAndGet(apples);
+                }
+                if (productRepository.getProduct(tomato.id).getQuantity() < 0 || productRepository.getProduct(apple.id).getQuantity() < 0)
+                {
+                    sawNegativeStock.set(true);
+                }
+            }
+        });
+
+        assertFalse(sawNegativeStock.get());
+        assertEquals(TOMATO_STOCK, productRepository.getProduct(tomato.id).getQuantity() + soldTomatoes.get());
+        assertEquals(APPLE_STOCK, productRepository.getProduct(apple.id).getQuantity() + soldApples.get());
+    }
+
+    @Test (timeout = 60000)
+    public void cartChangesAreNotLost () throws Exception
+    {
+        final InMemoryCustomerRepository customerRepository = new InMemoryCustomerRepository();
+        customerRepository.addCustomer(newCustomer(USER_NAME));
+        final List<Integer> removedProductIds = Arrays.asList(-1, -2);
+
+        runConcurrently(thread ->
+        {
+            for (int round = 0; round < ROUNDS_PER_THREAD; round++)
+            {
+                customerRepository.addToShoppingCart(USER_NAME, thread, 1);
+                customerRepository.addToShoppingCart(USER_NAME, removedProductIds.get(round % 2), 1);
+                if (round % 10 == 0)
+                {
+                    customerRepository.removeProductFromAllCarts(removedProductIds.get(round % 2));
+                }
+                // Readers must always see a whole cart
+                customerRepository.getCustomer(USER_NAME).getAllShoppingCartItems();
+            }
+        });
+        for (int productId : removedProductIds)
+        {
+            customerRepository.removeFromShoppingCart(USER_NAME, productId);
+        }
+
+        final Customer customer = customerRepository.getCustomer(USER_NAME);
+        for (int thread = 0; thread < NUM_THREADS; thread++)
+        {
+            assertEquals(ROUNDS_PER_THREAD, customer.getShoppingCartQuantity(thread));
+        }
+        assertEquals(NUM_THREADS * ROUNDS_PER_THREAD, customer.getAllShoppingCartItems().size());
+    }
+
+    private static void runConcurrently (final Work work) throws Exception
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> workers = new ArrayList<>();
+        for (int thread = 0; thread < NUM_THREADS; thread++)
+        {
+            final int threadNumber = thread;
+            workers.add(executor.submit((Callable<Void>) () ->
+            {
+                start.await();
+                work.run(threadNumber);
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> worker : workers)
+        {
+            worker.get();
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static Customer newCustomer (final String userName)
+    {
+        return new Customer(userName, "password", userName + "@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321");
+    }
+
+    private interface Work
+    {
+        void run (final int thread) throws Exception;
+    }
+}
@@ -0,0 +1,148 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        ConcurrentShopServiceTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Hammers ShopService from many threads using InMemoryRepositories
+//              to make sure stock is never oversold.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.exception.ShopServiceException;
+import se.erikwelander.ecommerce.model.Customer;
+import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.memory.InMemoryCustomerRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
+import se.erikwelander.ecommerce.service.ShopService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentShopServiceTest
+{
+    private static final int NUM_CUSTOMERS = 16;
+    private static final int ROUNDS_PER_CUSTOMER = 500;
+    private static final int TOMATO_STOCK = 100;
+    private static final int APPLE_STOCK = 250;
+
+    @Test (timeout = 60000)
+    public void stockNeverGoesNegative () throws Exception
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+
+        final Product tomato = shopService.addProduct(new Product(TOMATO_STOCK, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+        final Product apple = shopService.addProduct(new Product(APPLE_STOCK, 10, "Apple", "Fruit", "Asia", "Some delicious apples", "http://google.com/apple.jpg"));
+
+        final List<String> userNames = new ArrayList<>();
+        for (int i = 0; i < NUM_CUSTOMERS; i++)
+        {
+            final String userName = "customer" + i;
+            shopService.addCustomer(newCustomer(userName));
+            userNames.add(userName);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(NUM_CUSTOMERS + 1);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicBoolean sawNegativeStock = new AtomicBoolean(false);
+
+        // Reader that must never observe a negative stock level while the buyers are running
+        final Future<?> reader = executor.submit(() ->
+        {
+            start.await();
+            while (running.get())
+            {
+                if (shopService.getProduct(tomato.id).getQuantity() < 0 || shopService.getProduct(apple.id).getQuantity() < 0)
+                {
+                    sawNegativeStock.set(true);
+                }
+            }
+            return null;
+        });
+
+        final List<Future<?>> buyers = new ArrayList<>();
+        for (final String userName : userNames)
+        {
+            buyers.add(executor.submit(() ->
+            {
+                start.await();
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int round = 0; round < ROUNDS_PER_CUSTOMER; round++)
+                {
+                    try
+                    {
+                        shopService.addProductToCustomer(tomato.id, userName, 1 + random.nextInt(3));
+                        if (random.nextBoolean())
+                        {
+                            shopService.addProductToCustomer(apple.id, userName, 1 + random.nextInt(3));
+                        }
+                        shopService.createOrder(userName);
+                    } catch (final ShopServiceException exception)
+                    {
+                        // Sold out or held by other carts, start over with an empty cart
+                        shopService.updateCustomer(newCustomer(userName));
+                    }
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> buyer : buyers)
+        {
+            buyer.get();
+        }
+        running.set(false);
+        reader.get();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        int orderedTomatoes = 0, orderedApples = 0;
+        for (final String userName : userNames)
+        {
+            for (Order order : shopService.getOrdersFromUser(userName))
+            {
+                for (int productId : order.getAllProductIDs())
+                {
+                    if (productId == tomato.id)
+                    {
+                        orderedTomatoes++;
+                    }
+                    else if (productId == apple.id)
+                    {
+                        orderedApples++;
+                    }
+                }
+            }
+        }
+
+        assertFalse(sawNegativeStock.get());
+        assertTrue(shopService.getProduct(tomato.id).getQuantity() >= 0);
+        assertTrue(shopService.getProduct(apple.id).getQuantity() >= 0);
+        assertEquals(TOMATO_STOCK, shopService.getProduct(tomato.id).getQuantity() + orderedTomatoes);
+        assertEquals(APPLE_STOCK, shopService.getProduct(apple.id).getQuantity() + orderedApples);
+    }
+
+    private static Customer newCustomer (final String userName)
+    {
+        return new Customer(userName, "password", userName + "@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321");
+    }
+}
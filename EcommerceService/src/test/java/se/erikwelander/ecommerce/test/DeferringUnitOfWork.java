@@ -0,0 +1,94 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        DeferringUnitOfWork.java
+// Encoding:	UTF-8
+//
+// Purpose:     UnitOfWork for tests of the caches in front of the memory
+//              repositories. Holds back the after commit actions until the
+//              commit like a database transaction would, the writes of the
+//              memory repositories are still immediate and only undone by
+//              the undos registered for them.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import se.erikwelander.ecommerce.repository.UnitOfWork;
+
+import se.erikwelander.ecommerce.exception.RepositoryException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+final class DeferringUnitOfWork implements UnitOfWork
+{
+    // Null while no unit of work is running
+    private List<Runnable> afterCommitActions;
+    private Deque<Undo> undos;
+
+    @Override
+    public synchronized void begin ()
+    {
+        afterCommitActions = new ArrayList<>();
+        undos = new ArrayDeque<>();
+    }
+
+    @Override
+    public void commit ()
+    {
+        final List<Runnable> actions;
+        synchronized (this)
+        {
+            actions = afterCommitActions;
+            afterCommitActions = null;
+            undos = null;
+        }
+        actions.forEach(Runnable::run);
+    }
+
+    @Override
+    public void rollback () throws RepositoryException
+    {
+        final Deque<Undo> rolledBack;
+        synchronized (this)
+        {
+            rolledBack = undos;
+            afterCommitActions = null;
+            undos = null;
+        }
+        if (rolledBack != null)
+        {
+            for (Undo undo : rolledBack)
+            {
+                undo.run();
+            }
+        }
+    }
+
+    @Override
+    public void afterCommit (final Runnable action)
+    {
+        synchronized (this)
+        {
+            if (afterCommitActions != null)
+            {
+                afterCommitActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    @Override
+    public synchronized void onRollback (final Undo undo)
+    {
+        if (undos != null)
+        {
+            undos.push(undo);
+        }
+    }
+}
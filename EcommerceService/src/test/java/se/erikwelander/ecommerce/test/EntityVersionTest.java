@@ -0,0 +1,180 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        EntityVersionTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Tests that the repositories raise the version of products
+//              and customers on every change, also through the caches, and
+//              that updates against an old version are refused.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.exception.ShopServiceException;
+import se.erikwelander.ecommerce.exception.VersionConflictException;
+import se.erikwelander.ecommerce.model.Customer;
+import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.cache.CachingCustomerRepository;
+import se.erikwelander.ecommerce.repository.cache.CachingProductRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryCustomerRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryUnitOfWork;
+import se.erikwelander.ecommerce.service.ShopService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EntityVersionTest
+{
+    private static final int CACHE_SIZE = 10;
+    private static final long CACHE_MILLIS = 60 * 60 * 1000;
+    private static final String USER_NAME = "Kira";
+
+    @Test
+    public void productVersionRisesOnEveryChange ()
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(),
+                new CachingProductRepository(new InMemoryProductRepository(), CACHE_SIZE, CACHE_MILLIS),
+                new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+
+        final long added = shopService.getProduct(tomato.id).version;
+        assertTrue(added > 0);
+        // Read again from the cache, nothing changed
+        assertEquals(added, shopService.getProduct(tomato.id).version);
+
+        shopService.updateProduct(new Product(tomato.id, 6, 45, "Tomato", "Vegetables", "Spain", "A red tomato", "http://google.com/tomato.jpg"));
+        final long updated = shopService.getProduct(tomato.id).version;
+        assertTrue(updated > added);
+
+        shopService.addCustomer(new Customer(USER_NAME, "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321"));
+        shopService.addProductToCustomer(tomato.id, USER_NAME, 2);
+        shopService.createOrder(USER_NAME);
+        assertTrue(shopService.getProduct(tomato.id).version > updated);
+    }
+
+    @Test
+    public void productsVersionChangesWithTheCatalog ()
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final long empty = shopService.getProductsVersion();
+
+        final Product tomato = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+        final long added = shopService.getProductsVersion();
+        assertNotEquals(empty, added);
+        assertEquals(added, shopService.getProductsVersion());
+
+        shopService.updateProduct(new Product(tomato.id, 6, 45, "Tomato", "Vegetables", "Spain", "A red tomato", "http://google.com/tomato.jpg"));
+        final long updated = shopService.getProductsVersion();
+        assertNotEquals(added, updated);
+
+        // The catalog is as empty as at the start, but a client's copy of it is not
+        shopService.removeProduct(tomato.id);
+        final long removed = shopService.getProductsVersion();
+        assertNotEquals(updated, removed);
+        assertNotEquals(empty, removed);
+    }
+
+    @Test
+    public void customerVersionRisesOnUpdate () throws Exception
+    {
+        final CachingCustomerRepository customerRepository = new CachingCustomerRepository(new InMemoryCustomerRepository(),
+                new InMemoryUnitOfWork(), CACHE_SIZE, CACHE_MILLIS);
+        final ShopService shopService = new ShopService(customerRepository, new InMemoryProductRepository(), new InMemoryOrderRepository());
+        try
+        {
+            shopService.addCustomer(new Customer(USER_NAME, "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321"));
+            final long added = shopService.getCustomer(USER_NAME).version;
+            assertTrue(added > 0);
+
+            shopService.updateCustomer(new Customer(USER_NAME, "password", "kira@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321"));
+            final Customer updated = shopService.getCustomer(USER_NAME);
+            assertEquals("kira@erikwelander.se", updated.email);
+            assertTrue(updated.version > added);
+        } finally
+        {
+            customerRepository.close();
+        }
+    }
+
+    @Test
+    public void staleProductUpdateConflicts ()
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(),
+                new CachingProductRepository(new InMemoryProductRepository(), CACHE_SIZE, CACHE_MILLIS),
+                new InMemoryOrderRepository());
+        final Product tomato = shopService.getProduct(shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg")).id);
+
+        shopService.updateProduct(new Product(tomato.id, 6, 45, "Tomato", "Vegetables", "Spain", "A red tomato", "http://google.com/tomato.jpg", tomato.version));
+        assertConflict(() -> shopService.updateProduct(new Product(tomato.id, 7, 45, "Tomato", "Vegetables", "Spain", "A green tomato", "http://google.com/tomato.jpg", tomato.version)));
+        assertEquals("A red tomato", shopService.getProduct(tomato.id).description);
+
+        // Version 0 updates whatever is stored
+        shopService.updateProduct(new Product(tomato.id, 7, 45, "Tomato", "Vegetables", "Spain", "A green tomato", "http://google.com/tomato.jpg"));
+        assertEquals("A green tomato", shopService.getProduct(tomato.id).description);
+    }
+
+    @Test
+    public void staleCustomerUpdateConflicts () throws Exception
+    {
+        final CachingCustomerRepository customerRepository = new CachingCustomerRepository(new InMemoryCustomerRepository(),
+                new InMemoryUnitOfWork(), CACHE_SIZE, CACHE_MILLIS);
+        final ShopService shopService = new ShopService(customerRepository, new InMemoryProductRepository(), new InMemoryOrderRepository());
+        try
+        {
+            final Product tomato = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+            shopService.addCustomer(new Customer(USER_NAME, "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321"));
+            final long added = shopService.getCustomer(USER_NAME).version;
+
+            // Writing the cached cart back is not an update of the customer
+            shopService.addProductToCustomer(tomato.id, USER_NAME, 2);
+            customerRepository.flush();
+            assertEquals(added, shopService.getCustomer(USER_NAME).version);
+
+            shopService.updateCustomer(new Customer(USER_NAME, "password", "kira@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321", added));
+            assertConflict(() -> shopService.updateCustomer(new Customer(USER_NAME, "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321", added)));
+            assertEquals("kira@erikwelander.se", shopService.getCustomer(USER_NAME).email);
+        } finally
+        {
+            customerRepository.close();
+        }
+    }
+
+    @Test
+    public void staleOrderUpdateConflicts ()
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+        shopService.addCustomer(new Customer(USER_NAME, "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321"));
+        shopService.addProductToCustomer(tomato.id, USER_NAME, 2);
+        final Order created = shopService.getOrder(shopService.createOrder(USER_NAME).id);
+        assertTrue(created.version > 0);
+
+        shopService.updateOrder(created);
+        final long updated = shopService.getOrder(created.id).version;
+        assertTrue(updated > created.version);
+        assertConflict(() -> shopService.updateOrder(created));
+        shopService.updateOrder(created.withVersion(0));
+        assertTrue(shopService.getOrder(created.id).version > updated);
+    }
+
+    private static void assertConflict (final Runnable update)
+    {
+        try
+        {
+            update.run();
+            fail("Updated against an old version");
+        } catch (final ShopServiceException exception)
+        {
+            assertTrue(exception.getCause() instanceof VersionConflictException);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        InMemoryGetAllOrdersBenchmark.java
+// Encoding:	UTF-8
+//
+// Purpose:     Compares looking up the orders of one customer through the
+//              customer index in InMemoryOrderRepository with scanning every
+//              order, like getAllOrders used to, at one million orders.
+//              Needs a big heap, run it explicitly with
+//              mvn test -Dtest=InMemoryGetAllOrdersBenchmark -DargLine=-Xmx4g
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class InMemoryGetAllOrdersBenchmark
+{
+    private static final int ORDER_COUNT = 1000000;
+    private static final int ORDERS_PER_CUSTOMER = 10;
+    private static final int LOOKUPS = 1000;
+    private static final String USER_NAME_PREFIX = "customer";
+
+    @Test
+    public void indexedVersusScan () throws Exception
+    {
+        final InMemoryOrderRepository orderRepository = new InMemoryOrderRepository();
+        final Map<Integer, Order> scannedOrders = new HashMap<>();
+        final ArrayList<Integer> productIds = new ArrayList<>(Arrays.asList(1, 2, 3));
+        final int customerCount = ORDER_COUNT / ORDERS_PER_CUSTOMER;
+        for (int orderId = 1; orderId <= ORDER_COUNT; orderId++)
+        {
+            final Order order = new Order(orderId, USER_NAME_PREFIX + orderId % customerCount, productIds);
+            orderRepository.addOrder(order);
+            scannedOrders.put(orderId, order);
+        }
+
+        // Warm up both before measuring
+        for (int lookup = 0; lookup < 10; lookup++)
+        {
+            assertEquals(ORDERS_PER_CUSTOMER, orderRepository.getAllOrders(USER_NAME_PREFIX + lookup).size());
+            assertEquals(ORDERS_PER_CUSTOMER, scan(scannedOrders, USER_NAME_PREFIX + lookup).size());
+        }
+
+        final long indexedStart = System.nanoTime();
+        for (int lookup = 0; lookup < LOOKUPS; lookup++)
+        {
+            orderRepository.getAllOrders(USER_NAME_PREFIX + lookup * 97 % customerCount);
+        }
+        final long indexedNanos = System.nanoTime() - indexedStart;
+
+        final int scanLookups = LOOKUPS / 100;
+        final long scanStart = System.nanoTime();
+        for (int lookup = 0; lookup < scanLookups; lookup++)
+        {
+            scan(scannedOrders, USER_NAME_PREFIX + lookup * 97 % customerCount);
+        }
+        final long scanNanos = System.nanoTime() - scanStart;
+
+        System.out.println(String.format("%d orders, %d per customer", ORDER_COUNT, ORDERS_PER_CUSTOMER));
+        System.out.println(String.format("indexed: %10.3f us per lookup", indexedNanos / 1e3 / LOOKUPS));
+        System.out.println(String.format("scan:    %10.3f us per lookup", scanNanos / 1e3 / scanLookups));
+    }
+
+    // How getAllOrders used to find the orders of a customer
+    private static List<Order> scan (final Map<Integer, Order> orders, final String customerUsername)
+    {
+        final List<Order> orderList = new ArrayList<>();
+        for (Order order : orders.values())
+        {
+            if (order.customerUserName.equals(customerUsername))
+            {
+                orderList.add(order);
+            }
+        }
+        return orderList;
+    }
+}
@@ -0,0 +1,127 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        InMemoryIdGenerationTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Checks that ids handed out by ShopService never collide,
+//              also after removals and with several services on the same
+//              InMemoryRepositories.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.model.Customer;
+import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.memory.InMemoryCustomerRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
+import se.erikwelander.ecommerce.service.ShopService;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryIdGenerationTest
+{
+    private static final int NUM_THREADS = 8;
+    private static final int PRODUCTS_PER_THREAD = 1000;
+    private static final String USER_NAME = "Kira";
+
+    @Test
+    public void removedProductIdIsNotReused ()
+    {
+        final InMemoryProductRepository productRepository = new InMemoryProductRepository();
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), productRepository, new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(newTomato());
+        final Product lettuce = shopService.addProduct(newTomato());
+        shopService.removeProduct(tomato.id);
+
+        // A restarted service must not count the products to find the next id
+        final ShopService restartedShopService = new ShopService(new InMemoryCustomerRepository(), productRepository, new InMemoryOrderRepository());
+        final Product apple = restartedShopService.addProduct(newTomato());
+
+        assertTrue(apple.id > lettuce.id);
+        assertEquals(lettuce, restartedShopService.getProduct(lettuce.id));
+        assertEquals(apple, restartedShopService.getProduct(apple.id));
+    }
+
+    @Test
+    public void removedOrderIdIsNotReused ()
+    {
+        final InMemoryCustomerRepository customerRepository = new InMemoryCustomerRepository();
+        final InMemoryProductRepository productRepository = new InMemoryProductRepository();
+        final InMemoryOrderRepository orderRepository = new InMemoryOrderRepository();
+        final ShopService shopService = new ShopService(customerRepository, productRepository, orderRepository);
+        final Product tomato = shopService.addProduct(newTomato());
+        shopService.addCustomer(new Customer(USER_NAME, "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321"));
+
+        shopService.addProductToCustomer(tomato.id, USER_NAME, 1);
+        final Order firstOrder = shopService.createOrder(USER_NAME);
+        shopService.addProductToCustomer(tomato.id, USER_NAME, 1);
+        final Order secondOrder = shopService.createOrder(USER_NAME);
+        shopService.removeOrder(firstOrder.id);
+
+        final ShopService restartedShopService = new ShopService(customerRepository, productRepository, orderRepository);
+        restartedShopService.addProductToCustomer(tomato.id, USER_NAME, 1);
+        final Order thirdOrder = restartedShopService.createOrder(USER_NAME);
+
+        assertTrue(thirdOrder.id > secondOrder.id);
+        assertEquals(2, restartedShopService.getOrdersFromUser(USER_NAME).size());
+    }
+
+    @Test (timeout = 60000)
+    public void concurrentServicesHandOutUniqueIds () throws Exception
+    {
+        final InMemoryProductRepository productRepository = new InMemoryProductRepository();
+        final ShopService[] shopServices = {
+                new ShopService(new InMemoryCustomerRepository(), productRepository, new InMemoryOrderRepository()),
+                new ShopService(new InMemoryCustomerRepository(), productRepository, new InMemoryOrderRepository())};
+
+        final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        final List<Future<List<Integer>>> results = new ArrayList<>();
+        try
+        {
+            for (int i = 0; i < NUM_THREADS; i++)
+            {
+                final ShopService shopService = shopServices[i % shopServices.length];
+                results.add(executor.submit(() ->
+                {
+                    final List<Integer> productIds = new ArrayList<>();
+                    for (int j = 0; j < PRODUCTS_PER_THREAD; j++)
+                    {
+                        productIds.add(shopService.addProduct(newTomato()).id);
+                    }
+                    return productIds;
+                }));
+            }
+
+            final Set<Integer> productIds = new HashSet<>();
+            for (Future<List<Integer>> result : results)
+            {
+                productIds.addAll(result.get());
+            }
+            assertEquals(NUM_THREADS * PRODUCTS_PER_THREAD, productIds.size());
+            assertEquals(NUM_THREADS * PRODUCTS_PER_THREAD, productRepository.getAllproducts().size());
+        } finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Product newTomato ()
+    {
+        return new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg");
+    }
+}
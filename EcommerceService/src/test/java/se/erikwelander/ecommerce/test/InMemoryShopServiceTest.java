@@ -14,6 +14,7 @@ package se.erikwelander.ecommerce.test;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
+import se.erikwelander.ecommerce.exception.RepositoryException;
 import se.erikwelander.ecommerce.exception.ShopServiceException;
 import se.erikwelander.ecommerce.model.Customer;
 import se.erikwelander.ecommerce.model.Order;
@@ -23,18 +24,20 @@ import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
 import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
 import se.erikwelander.ecommerce.service.ShopService;
 
-import java.sql.Date;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @FixMethodOrder (MethodSorters.NAME_ASCENDING)
 public class InMemoryShopServiceTest
 {
-    private Date currentDate = new Date(System.currentTimeMillis());
+    private LocalDate currentDate = LocalDate.now();
 
     @Test
     public void addGetProduct ()
@@ -84,6 +87,23 @@ public class InMemoryShopServiceTest
         assertEquals(PRODUCT_APPLE, shopService.getProduct(PRODUCT_APPLE.id));
     }
 
+    @Test
+    public void pageProducts ()
+    {
+        ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+
+        Product PRODUCT_TOMATO = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+        Product PRODUCT_LETTUCE = shopService.addProduct(new Product(88, 2, "Lettuce", "Vegetables", "France", "A mound of lettuce", "http://google.com/lettuce.jpg"));
+        Product PRODUCT_APPLE = shopService.addProduct(new Product(20, 10, "Apple", "Fruit", "Asia", "Some delicious apples", "http://google.com/apple.jpg"));
+
+        assertEquals(Arrays.asList(PRODUCT_TOMATO, PRODUCT_LETTUCE), shopService.getProductsAfter(0, 2));
+        assertEquals(Arrays.asList(PRODUCT_APPLE), shopService.getProductsAfter(PRODUCT_LETTUCE.id, 2));
+        assertTrue(shopService.getProductsAfter(PRODUCT_APPLE.id, 2).isEmpty());
+
+        shopService.removeProduct(PRODUCT_LETTUCE.id);
+        assertEquals(Arrays.asList(PRODUCT_APPLE), shopService.getProductsAfter(PRODUCT_TOMATO.id, 2));
+    }
+
     @Test
     public void addUpdateResetProduct ()
     {
@@ -216,9 +236,34 @@ public class InMemoryShopServiceTest
         shopService.addProductToCustomer(PRODUCT_APPLE.id, CUSTOMER_3.userName, 1);
 
 
-        assertEquals(CUSTOMER_1, shopService.getCustomer(CUSTOMER_1.userName));
-        assertEquals(CUSTOMER_2, shopService.getCustomer(CUSTOMER_2.userName));
-        assertEquals(CUSTOMER_3, shopService.getCustomer(CUSTOMER_3.userName));
+        // The repository stores changed copies, the identical copies hold the expected carts
+        assertEquals(CUSTOMER_1_1, shopService.getCustomer(CUSTOMER_1.userName));
+        assertEquals(CUSTOMER_2_2, shopService.getCustomer(CUSTOMER_2.userName));
+        assertEquals(CUSTOMER_3_3, shopService.getCustomer(CUSTOMER_3.userName));
+    }
+
+    @Test
+    public void addNoProductsToCustomer ()
+    {
+        ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+
+        final Customer CUSTOMER_1 = new Customer("Kira", "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321");
+        final Product PRODUCT_TOMATO = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+
+        shopService.addCustomer(CUSTOMER_1);
+        shopService.addProductToCustomer(PRODUCT_TOMATO.id, CUSTOMER_1.userName, 2);
+
+        for (int amount : new int[]{0, -5})
+        {
+            try
+            {
+                shopService.addProductToCustomer(PRODUCT_TOMATO.id, CUSTOMER_1.userName, amount);
+                fail("Added " + amount + " to the cart");
+            } catch (final ShopServiceException exception)
+            {
+            }
+        }
+        assertEquals(2, shopService.getCustomer(CUSTOMER_1.userName).getShoppingCartQuantity(PRODUCT_TOMATO.id));
     }
 
     @Test
@@ -257,6 +302,15 @@ public class InMemoryShopServiceTest
         shopService.addProductToCustomer(PRODUCT_LETTUCE.id, CUSTOMER_3.userName, 1);
         shopService.addProductToCustomer(PRODUCT_APPLE.id, CUSTOMER_3.userName, 1);
 
+        CUSTOMER_1.addToShoppingCart(PRODUCT_TOMATO.id);
+        CUSTOMER_1.addToShoppingCart(PRODUCT_LETTUCE.id);
+        CUSTOMER_1.addToShoppingCart(PRODUCT_APPLE.id, 2);
+
+        CUSTOMER_2.addToShoppingCart(PRODUCT_TOMATO.id, 2);
+
+        CUSTOMER_3.addToShoppingCart(PRODUCT_TOMATO.id);
+        CUSTOMER_3.addToShoppingCart(PRODUCT_LETTUCE.id);
+        CUSTOMER_3.addToShoppingCart(PRODUCT_APPLE.id);
 
         assertEquals(CUSTOMER_1, shopService.getCustomer(CUSTOMER_1.userName));
         assertEquals(CUSTOMER_2, shopService.getCustomer(CUSTOMER_2.userName));
@@ -355,4 +409,36 @@ public class InMemoryShopServiceTest
         shopService.removeOrder(1);
         shopService.getOrder(1);
     }
+
+    @Test
+    public void failedOrderKeepsStockAndCart ()
+    {
+        // The last write of the order fails, after the stock has been taken and the order stored
+        final InMemoryOrderRepository orderRepository = new InMemoryOrderRepository();
+        ShopService shopService = new ShopService(new InMemoryCustomerRepository()
+        {
+            @Override
+            public void emptyShoppingCart (final String userName) throws RepositoryException
+            {
+                throw new RepositoryException("Could not empty the cart");
+            }
+        }, new InMemoryProductRepository(), orderRepository);
+
+        final Customer CUSTOMER_1 = new Customer("Erik", "lol123", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321");
+        shopService.addCustomer(CUSTOMER_1);
+        Product PRODUCT_TOMATO = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+        shopService.addProductToCustomer(PRODUCT_TOMATO.id, CUSTOMER_1.userName, 2);
+
+        try
+        {
+            shopService.createOrder(CUSTOMER_1.userName);
+            fail("Created an order whose cart could not be emptied");
+        } catch (final ShopServiceException exception)
+        {
+        }
+
+        assertEquals(5, shopService.getProduct(PRODUCT_TOMATO.id).getQuantity());
+        assertEquals(2, shopService.getCustomer(CUSTOMER_1.userName).getShoppingCartQuantity(PRODUCT_TOMATO.id));
+        assertTrue(shopService.getOrdersFromUser(CUSTOMER_1.userName).isEmpty());
+    }
 }
\ No newline at end of file
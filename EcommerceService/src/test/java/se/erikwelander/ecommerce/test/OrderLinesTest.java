@@ -0,0 +1,79 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        OrderLinesTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Tests for the line items of an Order and the unit prices
+//              ShopService captures when the order is created.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.model.Customer;
+import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.model.OrderLines;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.memory.InMemoryCustomerRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
+import se.erikwelander.ecommerce.service.ShopService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class OrderLinesTest
+{
+    private static final double DELTA = 0.0001;
+    private static final String USER_NAME = "Kira";
+
+    @Test
+    public void productIdsBecomeOneLinePerProduct ()
+    {
+        final Order order = new Order(1, USER_NAME, new ArrayList<>(Arrays.asList(4, 2, 4, 4, 3)));
+
+        assertEquals(3, order.getLineCount());
+        assertEquals(4, order.getLineProductId(0));
+        assertEquals(3, order.getLineQuantity(0));
+        assertEquals(2, order.getLineProductId(1));
+        assertEquals(1, order.getLineQuantity(1));
+        assertEquals(3, order.getLineProductId(2));
+        assertEquals(5, order.getItemCount());
+        assertEquals(Arrays.asList(4, 4, 4, 2, 3), order.getAllProductIDs());
+    }
+
+    @Test
+    public void pricesAreNotPartOfEquality ()
+    {
+        final OrderLines orderLines = new OrderLines(1);
+        orderLines.append(4, 3, 45);
+        orderLines.append(3, 1, 10);
+
+        final Order order = new Order(1, USER_NAME, orderLines);
+        assertEquals(45, order.getLineUnitPrice(0), DELTA);
+        assertEquals(3, order.getLineQuantity(0));
+        assertEquals(new Order(1, USER_NAME, new ArrayList<>(Arrays.asList(4, 4, 4, 3))), order);
+    }
+
+    @Test
+    public void createdOrderKeepsPriceAtOrderTime ()
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(new Product(5, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+        shopService.addCustomer(new Customer(USER_NAME, "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321"));
+        shopService.addProductToCustomer(tomato.id, USER_NAME, 2);
+
+        final Order order = shopService.createOrder(USER_NAME);
+        shopService.updateProduct(new Product(tomato.id, 3, 99, tomato.title, tomato.category, tomato.manufacturer, tomato.description, tomato.image));
+
+        final Order storedOrder = shopService.getOrder(order.id);
+        assertEquals(1, storedOrder.getLineCount());
+        assertEquals(2, storedOrder.getLineQuantity(0));
+        assertEquals(45, storedOrder.getLineUnitPrice(0), DELTA);
+    }
+}
@@ -0,0 +1,83 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        ProductBatchTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Tests adding products in batches through ShopService
+//              using InMemoryRepositories.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.cache.CachingProductRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryCustomerRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
+import se.erikwelander.ecommerce.service.ShopService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProductBatchTest
+{
+    private static final int BATCH_SIZE = 250;
+
+    @Test
+    public void batchGetsNewIds ()
+    {
+        final CachingProductRepository productRepository = new CachingProductRepository(new InMemoryProductRepository(), 100, 60 * 1000);
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), productRepository, new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(newProduct(7, "Tomato"));
+        // Cached before the batch, the batch must replace it
+        assertEquals(1, shopService.getAllProducts().size());
+
+        final List<Product> batch = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+            batch.add(newProduct(7, "Product " + i));
+        }
+        final List<Product> added = shopService.addProducts(batch);
+
+        assertEquals(BATCH_SIZE, added.size());
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+            assertTrue(added.get(i).id != tomato.id);
+            assertEquals("Product " + i, added.get(i).title);
+            assertEquals(added.get(i), shopService.getProduct(added.get(i).id));
+        }
+        assertEquals(BATCH_SIZE + 1, shopService.getAllProducts().size());
+    }
+
+    @Test
+    public void duplicateKeepsNothingInMemory () throws RepositoryException
+    {
+        final InMemoryProductRepository productRepository = new InMemoryProductRepository();
+        productRepository.addProduct(newProduct(3, "Tomato"));
+
+        try
+        {
+            productRepository.addProducts(Arrays.asList(newProduct(1, "Lettuce"), newProduct(2, "Apple"), newProduct(3, "Duplicate")));
+            fail("Added a product whose id is taken");
+        } catch (final RepositoryException exception)
+        {
+        }
+        assertEquals(1, productRepository.getAllproducts().size());
+        assertEquals("Tomato", productRepository.getProduct(3).title);
+    }
+
+    private static Product newProduct (final int id, final String title)
+    {
+        return new Product(id, 5, 45, title, "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg");
+    }
+}
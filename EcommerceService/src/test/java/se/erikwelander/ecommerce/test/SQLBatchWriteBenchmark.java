@@ -0,0 +1,120 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        SQLBatchWriteBenchmark.java
+// Encoding:	UTF-8
+//
+// Purpose:     Compares row by row inserts of cart items with batched inserts.
+//              Needs the MySQL database from DBInfo, run it explicitly with
+//              mvn test -Dtest=SQLBatchWriteBenchmark
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.repository.sql.DBInfo;
+import se.erikwelander.ecommerce.repository.sql.SQLConnector;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertTrue;
+
+public class SQLBatchWriteBenchmark
+{
+    private static final int[] CART_SIZES = {1, 10, 100, 1000};
+    private static final int ROUNDS = 20;
+    private static final String USER_NAME = "batch_benchmark";
+    private static final String SQL_INSERT_ITEM = "INSERT INTO " + DBInfo.database + ".customer_cart (id_item, user_name) VALUES(?,?);";
+    private static final String SQL_DELETE_ITEMS = "DELETE FROM " + DBInfo.database + ".customer_cart WHERE user_name = ?;";
+
+    @Test
+    public void rowByRowVersusBatched () throws SQLException
+    {
+        final SQLConnector sqlConnector = new SQLConnector();
+
+        System.out.println(String.format("%6s | %22s %10s | %22s %10s", "items", "row by row round trips", "avg ms", "batched round trips", "avg ms"));
+        for (final int cartSize : CART_SIZES)
+        {
+            try (final Connection connection = sqlConnector.getConnection())
+            {
+                // Warm up the statement cache and the server before measuring
+                insertItems(sqlConnector, connection, cartSize, false);
+                deleteItems(sqlConnector, connection);
+                insertItems(sqlConnector, connection, cartSize, true);
+                deleteItems(sqlConnector, connection);
+
+                long rowByRowTrips = 0, rowByRowNanos = 0, batchedTrips = 0, batchedNanos = 0;
+                for (int round = 0; round < ROUNDS; round++)
+                {
+                    final long rowByRowQuestions = questions(connection);
+                    final long rowByRowStart = System.nanoTime();
+                    insertItems(sqlConnector, connection, cartSize, false);
+                    rowByRowNanos += System.nanoTime() - rowByRowStart;
+                    rowByRowTrips += questions(connection) - rowByRowQuestions - 1;
+                    deleteItems(sqlConnector, connection);
+
+                    final long batchedQuestions = questions(connection);
+                    final long batchedStart = System.nanoTime();
+                    insertItems(sqlConnector, connection, cartSize, true);
+                    batchedNanos += System.nanoTime() - batchedStart;
+                    batchedTrips += questions(connection) - batchedQuestions - 1;
+                    deleteItems(sqlConnector, connection);
+                }
+
+                System.out.println(String.format("%6d | %22d %10.3f | %22d %10.3f", cartSize,
+                        rowByRowTrips / ROUNDS, rowByRowNanos / ROUNDS / 1e6,
+                        batchedTrips / ROUNDS, batchedNanos / ROUNDS / 1e6));
+                assertTrue(batchedTrips <= rowByRowTrips);
+            }
+        }
+    }
+
+    private static void insertItems (final SQLConnector sqlConnector, final Connection connection, final int cartSize, final boolean batched) throws SQLException
+    {
+        try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, SQL_INSERT_ITEM))
+        {
+            for (int itemId = 1; itemId <= cartSize; itemId++)
+            {
+                preparedStatement.setInt(1, itemId);
+                preparedStatement.setString(2, USER_NAME);
+                if (batched)
+                {
+                    preparedStatement.addBatch();
+                }
+                else
+                {
+                    sqlConnector.queryUpdate(preparedStatement);
+                }
+            }
+            if (batched)
+            {
+                sqlConnector.queryBatch(preparedStatement);
+            }
+        }
+    }
+
+    private static void deleteItems (final SQLConnector sqlConnector, final Connection connection) throws SQLException
+    {
+        try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, SQL_DELETE_ITEMS))
+        {
+            preparedStatement.setString(1, USER_NAME);
+            sqlConnector.queryUpdate(preparedStatement);
+        }
+    }
+
+    // Statements the server has received on this session, every round trip counts as one
+    private static long questions (final Connection connection) throws SQLException
+    {
+        try (final PreparedStatement preparedStatement = connection.prepareStatement("SHOW SESSION STATUS LIKE 'Questions';");
+             final ResultSet resultSet = preparedStatement.executeQuery())
+        {
+            resultSet.next();
+            return resultSet.getLong(2);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        SQLCreateOrderAtomicityTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Crashes ShopService.createOrder halfway through using SQL
+//              repositories and checks that nothing of the order was kept.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.erikwelander.ecommerce.exception.RepositoryException;
+import se.erikwelander.ecommerce.exception.ShopServiceException;
+import se.erikwelander.ecommerce.model.Customer;
+import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.sql.*;
+import se.erikwelander.ecommerce.service.ShopService;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SQLCreateOrderAtomicityTest
+{
+    private static final int TOMATO_STOCK = 5;
+    private static final int ORDERED_TOMATOES = 2;
+    private static final String USER_NAME = "Kira";
+
+    private ShopService shopService;
+    private Product tomato;
+
+    @Before
+    public void setUp () throws Exception
+    {
+        truncateTables();
+        shopService = new ShopService(new SQLCustomerRepository(),
+                new SQLProductRepository(),
+                new SQLOrderRepository(),
+                new SQLUnitOfWork());
+
+        tomato = shopService.addProduct(new Product(TOMATO_STOCK, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg"));
+        shopService.addCustomer(new Customer(USER_NAME, "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321"));
+        shopService.addProductToCustomer(tomato.id, USER_NAME, ORDERED_TOMATOES);
+    }
+
+    @After
+    public void tearDown () throws SQLException
+    {
+        truncateTables();
+    }
+
+    @Test
+    public void crashAfterOrderInsertKeepsNothing () throws Exception
+    {
+        // The order and its items have been written when the crash happens
+        final ShopService crashingShopService = new ShopService(new SQLCustomerRepository(),
+                new SQLProductRepository(),
+                new SQLOrderRepository()
+                {
+                    @Override
+                    public void addOrder (final Order order) throws RepositoryException
+                    {
+                        super.addOrder(order);
+                        throw new IllegalStateException("Injected crash after the order insert");
+                    }
+                },
+                new SQLUnitOfWork());
+
+        try
+        {
+            crashingShopService.createOrder(USER_NAME);
+            fail("The injected crash did not happen");
+        } catch (final IllegalStateException exception)
+        {
+        }
+        assertNothingKept();
+    }
+
+    @Test
+    public void crashAfterCartUpdateKeepsNothing () throws Exception
+    {
+        // Every write of the order has been made, only the commit is missing
+        final ShopService crashingShopService = new ShopService(new SQLCustomerRepository()
+                {
+                    @Override
+                    public void emptyShoppingCart (final String userName) throws RepositoryException
+                    {
+                        super.emptyShoppingCart(userName);
+                        throw new RepositoryException("Injected crash after the cart update");
+                    }
+                },
+                new SQLProductRepository(),
+                new SQLOrderRepository(),
+                new SQLUnitOfWork());
+
+        try
+        {
+            crashingShopService.createOrder(USER_NAME);
+            fail("The injected crash did not happen");
+        } catch (final ShopServiceException exception)
+        {
+        }
+        assertNothingKept();
+    }
+
+    @Test
+    public void orderWithoutCrashIsKept ()
+    {
+        final Order order = shopService.createOrder(USER_NAME);
+
+        assertEquals(order, shopService.getOrder(order.id));
+        assertEquals(TOMATO_STOCK - ORDERED_TOMATOES, shopService.getProduct(tomato.id).getQuantity());
+        assertTrue(shopService.getCustomer(USER_NAME).getAllShoppingCartItems().isEmpty());
+    }
+
+    @Test
+    public void soldOutOrderKeepsNothing ()
+    {
+        // The cart holds the tomatoes, but the stock shrinks before the order
+        final int shrunkStock = ORDERED_TOMATOES - 1;
+        shopService.updateProduct(new Product(tomato.id, shrunkStock, tomato.price, tomato.title, tomato.category,
+                tomato.manufacturer, tomato.description, tomato.image));
+
+        try
+        {
+            shopService.createOrder(USER_NAME);
+            fail("Sold more tomatoes than there are in stock");
+        } catch (final ShopServiceException exception)
+        {
+        }
+        assertEquals(shrunkStock, shopService.getProduct(tomato.id).getQuantity());
+        assertTrue(shopService.getOrdersFromUser(USER_NAME).isEmpty());
+        assertEquals(ORDERED_TOMATOES, shopService.getCustomer(USER_NAME).getAllShoppingCartItems().size());
+    }
+
+    private void assertNothingKept ()
+    {
+        assertEquals(TOMATO_STOCK, shopService.getProduct(tomato.id).getQuantity());
+        assertTrue(shopService.getOrdersFromUser(USER_NAME).isEmpty());
+        assertEquals(ORDERED_TOMATOES, shopService.getCustomer(USER_NAME).getAllShoppingCartItems().size());
+
+        // The connection went back to the pool, later work on this thread must not end up in the dead transaction
+        shopService.addProductToCustomer(tomato.id, USER_NAME, 1);
+        assertEquals(ORDERED_TOMATOES + 1, shopService.getCustomer(USER_NAME).getAllShoppingCartItems().size());
+    }
+
+    private static void truncateTables () throws SQLException
+    {
+        SQLConnector sqlConnector = new SQLConnector();
+        try (Connection connection = sqlConnector.getConnection())
+        {
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".customer"));
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".customer_cart"));
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".`order`"));
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".order_items"));
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".product"));
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".id_allocation"));
+        }
+    }
+}
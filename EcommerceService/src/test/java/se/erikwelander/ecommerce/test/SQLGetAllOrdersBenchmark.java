@@ -0,0 +1,167 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        SQLGetAllOrdersBenchmark.java
+// Encoding:	UTF-8
+//
+// Purpose:     Compares loading all orders of a customer one order at a time
+//              with the single joined query in SQLOrderRepository.getAllOrders.
+//              Needs the MySQL database from DBInfo and nobody else using it,
+//              run it explicitly with mvn test -Dtest=SQLGetAllOrdersBenchmark
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.model.Order;
+import se.erikwelander.ecommerce.repository.sql.DBInfo;
+import se.erikwelander.ecommerce.repository.sql.SQLConnector;
+import se.erikwelander.ecommerce.repository.sql.SQLOrderRepository;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SQLGetAllOrdersBenchmark
+{
+    private static final int[] ORDER_COUNTS = {1, 100, 10000};
+    private static final int ITEMS_PER_ORDER = 3;
+    private static final int ROUNDS = 5;
+    private static final String USER_NAME_PREFIX = "orders_benchmark_";
+    private static final String SQL_INSERT_ORDER = "INSERT INTO " + DBInfo.database + ".`order` (id_order, customer_name, created, shipped) VALUES(?,?,?,?);";
+    private static final String SQL_INSERT_ORDER_ITEM = "INSERT INTO " + DBInfo.database + ".order_items (id_order, id_product) VALUES(?,?);";
+    private static final String SQL_ORDER_IDS = "SELECT id_order FROM " + DBInfo.database + ".`order` WHERE customer_name = ?;";
+    private static final String SQL_DELETE_ORDER_ITEMS = "DELETE i FROM " + DBInfo.database + ".order_items i JOIN " + DBInfo.database + ".`order` o ON o.id_order = i.id_order WHERE o.customer_name LIKE ?;";
+    private static final String SQL_DELETE_ORDERS = "DELETE FROM " + DBInfo.database + ".`order` WHERE customer_name LIKE ?;";
+
+    @Test
+    public void oneOrderAtATimeVersusJoined () throws Exception
+    {
+        final SQLConnector sqlConnector = new SQLConnector();
+        final SQLOrderRepository orderRepository = new SQLOrderRepository();
+
+        deleteOrders(sqlConnector);
+        try
+        {
+            System.out.println(String.format("%7s | %24s %10s | %24s %10s", "orders", "one at a time round trips", "avg ms", "joined round trips", "avg ms"));
+            for (final int orderCount : ORDER_COUNTS)
+            {
+                final String userName = USER_NAME_PREFIX + orderCount;
+                insertOrders(sqlConnector, orderRepository.getHighestOrderId() + 1, userName, orderCount);
+
+                // Warm up the statement cache and the server before measuring
+                assertEquals(orderCount, oneOrderAtATime(sqlConnector, orderRepository, userName).size());
+                assertEquals(orderCount, orderRepository.getAllOrders(userName).size());
+
+                long oneAtATimeTrips = 0, oneAtATimeNanos = 0, joinedTrips = 0, joinedNanos = 0;
+                for (int round = 0; round < ROUNDS; round++)
+                {
+                    final long oneAtATimeQuestions = questions(sqlConnector);
+                    final long oneAtATimeStart = System.nanoTime();
+                    oneOrderAtATime(sqlConnector, orderRepository, userName);
+                    oneAtATimeNanos += System.nanoTime() - oneAtATimeStart;
+                    oneAtATimeTrips += questions(sqlConnector) - oneAtATimeQuestions - 1;
+
+                    final long joinedQuestions = questions(sqlConnector);
+                    final long joinedStart = System.nanoTime();
+                    orderRepository.getAllOrders(userName);
+                    joinedNanos += System.nanoTime() - joinedStart;
+                    joinedTrips += questions(sqlConnector) - joinedQuestions - 1;
+                }
+
+                System.out.println(String.format("%7d | %24d %10.3f | %24d %10.3f", orderCount,
+                        oneAtATimeTrips / ROUNDS, oneAtATimeNanos / ROUNDS / 1e6,
+                        joinedTrips / ROUNDS, joinedNanos / ROUNDS / 1e6));
+            }
+        } finally
+        {
+            deleteOrders(sqlConnector);
+        }
+    }
+
+    // How getAllOrders used to work, the order ids first and then two queries per order
+    private static List<Order> oneOrderAtATime (final SQLConnector sqlConnector, final SQLOrderRepository orderRepository, final String userName) throws Exception
+    {
+        final List<Integer> orderIds = new ArrayList<>();
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, SQL_ORDER_IDS))
+        {
+            preparedStatement.setString(1, userName);
+            try (final ResultSet resultSet = sqlConnector.queryResult(preparedStatement))
+            {
+                while (resultSet.next())
+                {
+                    orderIds.add(resultSet.getInt(1));
+                }
+            }
+        }
+
+        final List<Order> orders = new ArrayList<>();
+        for (int orderId : orderIds)
+        {
+            orders.add(orderRepository.getOrder(orderId));
+        }
+        return orders;
+    }
+
+    private static void insertOrders (final SQLConnector sqlConnector, final int firstOrderId, final String userName, final int orderCount) throws SQLException
+    {
+        final Date created = new Date(System.currentTimeMillis());
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement orderStatement = sqlConnector.prepareStatement(connection, SQL_INSERT_ORDER);
+             final PreparedStatement itemStatement = sqlConnector.prepareStatement(connection, SQL_INSERT_ORDER_ITEM))
+        {
+            for (int orderId = firstOrderId; orderId < firstOrderId + orderCount; orderId++)
+            {
+                orderStatement.setInt(1, orderId);
+                orderStatement.setString(2, userName);
+                orderStatement.setDate(3, created);
+                orderStatement.setDate(4, null);
+                orderStatement.addBatch();
+                for (int productId = 1; productId <= ITEMS_PER_ORDER; productId++)
+                {
+                    itemStatement.setInt(1, orderId);
+                    itemStatement.setInt(2, productId);
+                    itemStatement.addBatch();
+                }
+            }
+            sqlConnector.queryBatch(orderStatement);
+            sqlConnector.queryBatch(itemStatement);
+        }
+    }
+
+    private static void deleteOrders (final SQLConnector sqlConnector) throws SQLException
+    {
+        try (final Connection connection = sqlConnector.getConnection())
+        {
+            for (final String sqlQuery : new String[]{SQL_DELETE_ORDER_ITEMS, SQL_DELETE_ORDERS})
+            {
+                try (final PreparedStatement preparedStatement = sqlConnector.prepareStatement(connection, sqlQuery))
+                {
+                    preparedStatement.setString(1, USER_NAME_PREFIX + "%");
+                    sqlConnector.queryUpdate(preparedStatement);
+                }
+            }
+        }
+    }
+
+    // Statements the server has received from every session, the repository uses its own connections
+    private static long questions (final SQLConnector sqlConnector) throws SQLException
+    {
+        try (final Connection connection = sqlConnector.getConnection();
+             final PreparedStatement preparedStatement = connection.prepareStatement("SHOW GLOBAL STATUS LIKE 'Questions';");
+             final ResultSet resultSet = preparedStatement.executeQuery())
+        {
+            resultSet.next();
+            return resultSet.getLong(2);
+        }
+    }
+}
@@ -11,25 +11,29 @@
 /////////////////////////////////////////////////////////////////////////////
 package se.erikwelander.ecommerce.test;
 
-import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 import se.erikwelander.ecommerce.exception.ShopServiceException;
+import se.erikwelander.ecommerce.exception.VersionConflictException;
 import se.erikwelander.ecommerce.model.Customer;
 import se.erikwelander.ecommerce.model.Order;
 import se.erikwelander.ecommerce.model.Product;
 import se.erikwelander.ecommerce.repository.sql.*;
 import se.erikwelander.ecommerce.service.ShopService;
 
-import java.sql.Date;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @FixMethodOrder (MethodSorters.NAME_ASCENDING)
 public class SQLShopServiceTest
@@ -42,30 +46,36 @@ public class SQLShopServiceTest
     private static Customer CUSTOMER_1 = new Customer("Kira", "password", "erik@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321");
     private static Customer CUSTOMER_2 = new Customer("Erik", "lol123", "erik.welander@hotmail.com", "Erik2", "Welander2", "Järfälla2", "9876543212");
     private static Customer CUSTOMER_3 = new Customer("Erik2", "lol123456789", "erik.welander@hotmail.com", "Erik22", "Welander22", "Järfälla22", "98765432122");
-    private static Date currentDate = new Date(System.currentTimeMillis());
+    private static LocalDate currentDate = LocalDate.now();
     private static Order CUSTOMER_1_ORDER = new Order(1, CUSTOMER_1.userName, new ArrayList<Integer>(Arrays.asList(PRODUCT_TOMATO_READDED.id, PRODUCT_LETTUCE.id, PRODUCT_APPLE.id, PRODUCT_APPLE.id)), currentDate, null);
     private static Order CUSTOMER_1_ORDER_UPDATED = new Order(1, CUSTOMER_1.userName, new ArrayList<Integer>(Arrays.asList(PRODUCT_TOMATO_READDED.id, PRODUCT_LETTUCE.id, PRODUCT_APPLE.id, PRODUCT_APPLE.id)), currentDate, currentDate);
     private static Order CUSTOMER_2_ORDER = new Order(2, CUSTOMER_2.userName, new ArrayList<Integer>(Arrays.asList(PRODUCT_TOMATO_READDED.id, PRODUCT_TOMATO_READDED.id)), currentDate, null);
     private static Order CUSTOMER_3_ORDER = new Order(3, CUSTOMER_3.userName, new ArrayList<Integer>(Arrays.asList(PRODUCT_TOMATO_READDED.id, PRODUCT_LETTUCE.id, PRODUCT_APPLE.id)), currentDate, null);
-    ShopService shopService;
+    // One service for every step, a new service would start on a new block of ids
+    private static ShopService shopService;
 
-    @Before
-    public void setUp () throws Exception
+    @BeforeClass
+    public static void setUp () throws Exception
     {
         shopService = new ShopService(new SQLCustomerRepository(),
                 new SQLProductRepository(),
-                new SQLOrderRepository());
+                new SQLOrderRepository(),
+                new SQLUnitOfWork());
     }
 
     @Test
     public void CLEAN0_STATE () throws SQLException
     {
         SQLConnector sqlConnector = new SQLConnector();
-        sqlConnector.queryUpdate(sqlConnector.prepareStatement("TRUNCATE TABLE " + DBInfo.database + ".customer"));
-        sqlConnector.queryUpdate(sqlConnector.prepareStatement("TRUNCATE TABLE " + DBInfo.database + ".customer_cart"));
-        sqlConnector.queryUpdate(sqlConnector.prepareStatement("TRUNCATE TABLE " + DBInfo.database + ".`order`"));
-        sqlConnector.queryUpdate(sqlConnector.prepareStatement("TRUNCATE TABLE " + DBInfo.database + ".order_items"));
-        sqlConnector.queryUpdate(sqlConnector.prepareStatement("TRUNCATE TABLE " + DBInfo.database + ".product"));
+        try (Connection connection = sqlConnector.getConnection())
+        {
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".customer"));
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".customer_cart"));
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".`order`"));
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".order_items"));
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".product"));
+            sqlConnector.queryUpdate(sqlConnector.prepareStatement(connection, "TRUNCATE TABLE " + DBInfo.database + ".id_allocation"));
+        }
     }
 
     @Test
@@ -84,6 +94,18 @@ public class SQLShopServiceTest
         assertEquals(PRODUCT_APPLE, shopService.getProduct(PRODUCT_APPLE.id));
     }
 
+    @Test
+    public void test2_GetProductReusesStatement () throws SQLException
+    {
+        final SQLConnector sqlConnector = new SQLConnector();
+        final long statementCacheHits = sqlConnector.getStatementCacheHits();
+
+        // Same SQL text on a recycled connection, the second lookup at the latest must hit the cache
+        assertEquals(PRODUCT_TOMATO, shopService.getProduct(PRODUCT_TOMATO.id));
+        assertEquals(PRODUCT_TOMATO, shopService.getProduct(PRODUCT_TOMATO.id));
+        assertTrue(sqlConnector.getStatementCacheHits() > statementCacheHits);
+    }
+
     @Test
     public void test3_GetAllProducts () throws ShopServiceException
     {
@@ -93,6 +115,14 @@ public class SQLShopServiceTest
         allProducts.add(PRODUCT_APPLE);
 
         assertEquals(allProducts, shopService.getAllProducts());
+
+        final List<Product> streamedProducts = new ArrayList<>();
+        shopService.forEachProduct(streamedProducts::add);
+        assertEquals(allProducts, streamedProducts);
+
+        final List<Product> firstPage = shopService.getProductsAfter(0, 2);
+        assertEquals(allProducts.subList(0, 2), firstPage);
+        assertEquals(allProducts.subList(2, 3), shopService.getProductsAfter(firstPage.get(1).id, 2));
     }
 
     @Test
@@ -100,9 +130,24 @@ public class SQLShopServiceTest
     {
         PRODUCT_TOMATO.increaseDecreaseQuantity(2);
         PRODUCT_TOMATO_READDED.increaseDecreaseQuantity(2);
-        assertNotEquals(PRODUCT_TOMATO, shopService.getProduct(PRODUCT_TOMATO.id));
+        final Product before = shopService.getProduct(PRODUCT_TOMATO.id);
+        assertNotEquals(PRODUCT_TOMATO, before);
 
         shopService.updateProduct(PRODUCT_TOMATO);
+        final Product after = shopService.getProduct(PRODUCT_TOMATO.id);
+        assertEquals(PRODUCT_TOMATO, after);
+        assertTrue(after.version > before.version);
+
+        // The update made before.version stale
+        try
+        {
+            shopService.updateProduct(new Product(before.id, before.getQuantity(), before.price, before.title, before.category,
+                    before.manufacturer, before.description, before.image, before.version));
+            fail("Updated against an old version");
+        } catch (final ShopServiceException exception)
+        {
+            assertTrue(exception.getCause() instanceof VersionConflictException);
+        }
         assertEquals(PRODUCT_TOMATO, shopService.getProduct(PRODUCT_TOMATO.id));
     }
 
@@ -0,0 +1,152 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        ShoppingCartTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Tests for the quantity based ShoppingCart.
+//              Random adds and removes are checked against a plain map.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.exception.ModelException;
+import se.erikwelander.ecommerce.model.ShoppingCart;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public class ShoppingCartTest
+{
+    private static final int OPERATIONS = 100000;
+    private static final int PRODUCT_IDS = 200;
+
+    @Test
+    public void keepsQuantitiesInAddedOrder () throws ModelException
+    {
+        final ShoppingCart shoppingCart = new ShoppingCart();
+        shoppingCart.add(4);
+        shoppingCart.add(2);
+        shoppingCart.add(4, 2);
+        shoppingCart.add(3);
+        shoppingCart.remove(2);
+
+        assertEquals(3, shoppingCart.getQuantity(4));
+        assertEquals(0, shoppingCart.getQuantity(2));
+        assertArrayEquals(new int[]{4, 3}, shoppingCart.getProductIds());
+        assertEquals(Arrays.asList(4, 4, 4, 3), shoppingCart.getAll());
+
+        // The list is a copy
+        shoppingCart.getAll().clear();
+        assertEquals(1, shoppingCart.getQuantity(3));
+    }
+
+    @Test
+    public void removingMissingProductFails ()
+    {
+        final ShoppingCart shoppingCart = new ShoppingCart();
+        shoppingCart.add(1);
+        try
+        {
+            shoppingCart.remove(2);
+            fail("Removed a product that is not in the cart");
+        } catch (final ModelException exception)
+        {
+        }
+        try
+        {
+            shoppingCart.removeAll(2);
+            fail("Removed a product that is not in the cart");
+        } catch (final ModelException exception)
+        {
+        }
+    }
+
+    @Test
+    public void equalityIgnoresOrder ()
+    {
+        final ShoppingCart shoppingCart = new ShoppingCart(),
+                otherShoppingCart = new ShoppingCart();
+        shoppingCart.add(1);
+        shoppingCart.add(2, 2);
+        otherShoppingCart.add(2);
+        otherShoppingCart.add(1);
+        assertNotEquals(shoppingCart, otherShoppingCart);
+
+        otherShoppingCart.add(2);
+        assertEquals(shoppingCart, otherShoppingCart);
+    }
+
+    @Test
+    public void matchesMapAfterRandomChanges () throws ModelException
+    {
+        final Random random = new Random(42);
+        final ShoppingCart shoppingCart = new ShoppingCart();
+        final Map<Integer, Integer> expected = new LinkedHashMap<>();
+
+        for (int operation = 0; operation < OPERATIONS; operation++)
+        {
+            final int productId = random.nextInt(PRODUCT_IDS) - PRODUCT_IDS / 2;
+            switch (random.nextInt(4))
+            {
+                case 0:
+                    shoppingCart.add(productId);
+                    expected.merge(productId, 1, Integer::sum);
+                    break;
+                case 1:
+                    final int quantity = 1 + random.nextInt(5);
+                    shoppingCart.add(productId, quantity);
+                    expected.merge(productId, quantity, Integer::sum);
+                    break;
+                case 2:
+                    if (expected.containsKey(productId))
+                    {
+                        shoppingCart.remove(productId);
+                        expected.computeIfPresent(productId, (id, count) -> count == 1 ? null : count - 1);
+                    }
+                    break;
+                default:
+                    if (expected.remove(productId) != null)
+                    {
+                        shoppingCart.removeAll(productId);
+                    }
+                    break;
+            }
+            if (operation % 1000 == 0)
+            {
+                assertSameContent(expected, shoppingCart);
+            }
+        }
+        assertSameContent(expected, shoppingCart);
+
+        shoppingCart.empty();
+        assertEquals(0, shoppingCart.getProductIds().length);
+        assertEquals(0, shoppingCart.getQuantity(1));
+    }
+
+    private static void assertSameContent (final Map<Integer, Integer> expected, final ShoppingCart shoppingCart)
+    {
+        final ArrayList<Integer> expectedItems = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet())
+        {
+            assertEquals((int) entry.getValue(), shoppingCart.getQuantity(entry.getKey()));
+            for (int quantity = 0; quantity < entry.getValue(); quantity++)
+            {
+                expectedItems.add(entry.getKey());
+            }
+        }
+        assertEquals(expected.size(), shoppingCart.getProductIds().length);
+        assertEquals(expectedItems, shoppingCart.getAll());
+    }
+}
@@ -0,0 +1,244 @@
+/////////////////////////////////////////////////////////////////////////////
+// Name:        StockReservationTest.java
+// Encoding:	UTF-8
+//
+// Purpose:     Tests that stock put in a cart is held for that cart until it
+//              is ordered or the hold runs out, so the last units can not
+//              end up in more than one cart.
+//
+// Author:      Erik Welander (mail@erikwelander.se)
+// Modified:    2016-06-21
+// Copyright:   Erik Welander
+// Licence:     Creative Commons "by-nc-nd"
+/////////////////////////////////////////////////////////////////////////////
+package se.erikwelander.ecommerce.test;
+
+import org.junit.Test;
+import se.erikwelander.ecommerce.exception.ShopServiceException;
+import se.erikwelander.ecommerce.model.Customer;
+import se.erikwelander.ecommerce.model.Product;
+import se.erikwelander.ecommerce.repository.memory.InMemoryCustomerRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryOrderRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryProductRepository;
+import se.erikwelander.ecommerce.repository.memory.InMemoryUnitOfWork;
+import se.erikwelander.ecommerce.service.ShopService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class StockReservationTest
+{
+    private static final long SHORT_TTL_MILLIS = 100;
+    private static final int NUM_CUSTOMERS = 50;
+    private static final int TOMATO_STOCK = 10;
+
+    @Test
+    public void lastUnitGoesToOneCart ()
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(newTomato(1));
+        shopService.addCustomer(newCustomer("Kira"));
+        shopService.addCustomer(newCustomer("Erik"));
+
+        shopService.addProductToCustomer(tomato.id, "Kira", 1);
+        try
+        {
+            shopService.addProductToCustomer(tomato.id, "Erik", 1);
+            fail("Put a tomato held by another cart in the cart");
+        } catch (final ShopServiceException exception)
+        {
+        }
+        assertEquals(1, shopService.getCustomer("Kira").getShoppingCartQuantity(tomato.id));
+        assertEquals(0, shopService.getCustomer("Erik").getShoppingCartQuantity(tomato.id));
+
+        shopService.createOrder("Kira");
+        assertEquals(0, shopService.getProduct(tomato.id).getQuantity());
+    }
+
+    @Test
+    public void orderGivesBackTheHold ()
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(newTomato(2));
+        shopService.addCustomer(newCustomer("Kira"));
+        shopService.addCustomer(newCustomer("Erik"));
+
+        shopService.addProductToCustomer(tomato.id, "Kira", 1);
+        shopService.createOrder("Kira");
+
+        // The ordered tomato left the stock and the hold, the other one is free
+        shopService.addProductToCustomer(tomato.id, "Erik", 1);
+        assertEquals(1, shopService.getCustomer("Erik").getShoppingCartQuantity(tomato.id));
+        shopService.createOrder("Erik");
+        assertEquals(0, shopService.getProduct(tomato.id).getQuantity());
+    }
+
+    @Test
+    public void emptiedCartGivesBackTheHold ()
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(newTomato(1));
+        shopService.addCustomer(newCustomer("Kira"));
+        shopService.addCustomer(newCustomer("Erik"));
+
+        shopService.addProductToCustomer(tomato.id, "Kira", 1);
+        shopService.updateCustomer(newCustomer("Kira"));
+
+        shopService.addProductToCustomer(tomato.id, "Erik", 1);
+        assertEquals(1, shopService.getCustomer("Erik").getShoppingCartQuantity(tomato.id));
+    }
+
+    @Test
+    public void smallerCartGivesBackTheRest ()
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(newTomato(5));
+        shopService.addCustomer(newCustomer("Kira"));
+        shopService.addCustomer(newCustomer("Erik"));
+
+        shopService.addProductToCustomer(tomato.id, "Kira", 5);
+        final Customer kira = newCustomer("Kira");
+        kira.addToShoppingCart(tomato.id, 1);
+        shopService.updateCustomer(kira);
+
+        shopService.addProductToCustomer(tomato.id, "Erik", 4);
+        assertEquals(4, shopService.getCustomer("Erik").getShoppingCartQuantity(tomato.id));
+        shopService.createOrder("Kira");
+        shopService.createOrder("Erik");
+        assertEquals(0, shopService.getProduct(tomato.id).getQuantity());
+    }
+
+    @Test (timeout = 10000)
+    public void holdRunsOut () throws Exception
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository(),
+                new InMemoryUnitOfWork(), SHORT_TTL_MILLIS);
+        final Product tomato = shopService.addProduct(newTomato(1));
+        shopService.addCustomer(newCustomer("Kira"));
+        shopService.addCustomer(newCustomer("Erik"));
+
+        shopService.addProductToCustomer(tomato.id, "Kira", 1);
+        // Swept within a ttl after it ran out
+        holdOnceFree(shopService, tomato.id, "Erik");
+
+        // Kira's tomato is still in the cart, but Erik holds it now
+        try
+        {
+            shopService.createOrder("Kira");
+            fail("Ordered a tomato held by another cart");
+        } catch (final ShopServiceException exception)
+        {
+        }
+        shopService.createOrder("Erik");
+        assertEquals(0, shopService.getProduct(tomato.id).getQuantity());
+    }
+
+    @Test (timeout = 10000)
+    public void failedOrderGivesBackWhatItHeldAgain () throws Exception
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository(),
+                new InMemoryUnitOfWork(), SHORT_TTL_MILLIS);
+        final Product tomato = shopService.addProduct(newTomato(1));
+        final Product potato = shopService.addProduct(new Product(1, 12, "Potato", "Vegetables", "Sweden", "A solid potato", "http://google.com/potato.jpg"));
+        shopService.addCustomer(newCustomer("Kira"));
+        shopService.addCustomer(newCustomer("Erik"));
+        shopService.addCustomer(newCustomer("Alex"));
+
+        shopService.addProductToCustomer(tomato.id, "Kira", 1);
+        shopService.addProductToCustomer(potato.id, "Kira", 1);
+        holdOnceFree(shopService, potato.id, "Erik");
+
+        // The order holds Kira's tomato again before it finds Erik holding the potato
+        try
+        {
+            shopService.createOrder("Kira");
+            fail("Ordered a potato held by another cart");
+        } catch (final ShopServiceException exception)
+        {
+        }
+        shopService.addProductToCustomer(tomato.id, "Alex", 1);
+        assertEquals(1, shopService.getCustomer("Alex").getShoppingCartQuantity(tomato.id));
+    }
+
+    @Test (timeout = 60000)
+    public void flashSaleHoldsNoMoreThanTheStock () throws Exception
+    {
+        final ShopService shopService = new ShopService(new InMemoryCustomerRepository(), new InMemoryProductRepository(), new InMemoryOrderRepository());
+        final Product tomato = shopService.addProduct(newTomato(TOMATO_STOCK));
+        for (int i = 0; i < NUM_CUSTOMERS; i++)
+        {
+            shopService.addCustomer(newCustomer("customer" + i));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(NUM_CUSTOMERS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> buyers = new ArrayList<>();
+        for (int i = 0; i < NUM_CUSTOMERS; i++)
+        {
+            final String userName = "customer" + i;
+            buyers.add(executor.submit(() ->
+            {
+                start.await();
+                try
+                {
+                    shopService.addProductToCustomer(tomato.id, userName, 1);
+                } catch (final ShopServiceException exception)
+                {
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> buyer : buyers)
+        {
+            buyer.get();
+        }
+        executor.shutdown();
+
+        // Every cart that got a tomato can order it
+        int ordered = 0;
+        for (int i = 0; i < NUM_CUSTOMERS; i++)
+        {
+            if (shopService.getCustomer("customer" + i).getShoppingCartQuantity(tomato.id) > 0)
+            {
+                shopService.createOrder("customer" + i);
+                ordered++;
+            }
+        }
+        assertEquals(TOMATO_STOCK, ordered);
+        assertEquals(0, shopService.getProduct(tomato.id).getQuantity());
+    }
+
+    // Adds one unit to the cart as soon as the holds of other carts have run out
+    private static void holdOnceFree (final ShopService shopService, final int productId, final String userName) throws InterruptedException
+    {
+        while (true)
+        {
+            Thread.sleep(SHORT_TTL_MILLIS);
+            try
+            {
+                shopService.addProductToCustomer(productId, userName, 1);
+                return;
+            } catch (final ShopServiceException exception)
+            {
+            }
+        }
+    }
+
+    private static Product newTomato (final int stock)
+    {
+        return new Product(stock, 45, "Tomato", "Vegetables", "Spain", "A beautiful tomato", "http://google.com/tomato.jpg");
+    }
+
+    private static Customer newCustomer (final String userName)
+    {
+        return new Customer(userName, "password", userName + "@erikwelander.se", "Erik", "Welander", "Järfälla", "987654321");
+    }
+}